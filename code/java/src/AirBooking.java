@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,6 +24,10 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.SimpleDateFormat; 
 import java.util.Date;
 
@@ -35,6 +40,59 @@ import java.util.Date;
 public class AirBooking{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//connection settings, kept for the helper connections of background workers
+	private String _url, _user, _passwd;
+	//write-behind review pipeline used by TakeCustomerReview
+	private ReviewIngestor _reviews = null;
+	//booked pIDs per flight and departure, built by preload
+	private BookingIndex _bookings = null;
+	//registered passport numbers, built on the first bulk registration
+	private PassengerImport.BloomFilter _passports = null;
+	//in-memory index over the most recent reviews, null when disabled
+	private RecentReviewIndex _recentReviews = null;
+	//pooled connections for parallel work and the in-memory reference tables
+	private ConnectionPool _pool = null;
+	//hands out pID, rID and bookRef values from blocks reserved on the sequences
+	private KeyAllocator _keys = null;
+	//data access of the menu operations, on the pool
+	private AirBookingRepository _repository = null;
+	private volatile ReferenceData _reference = null;
+	private long _connectNanos;
+	//follows the changes other instances make to the cached tables
+	private InvalidationListener _listener = null;
+	private Waitlist.Promoter _promoter = null;
+	private final Waitlist.Stats _waitlistStats = new Waitlist.Stats();
+	//HTTP interface, started when airbooking.http names a port
+	private BookingServer _http = null;
+	//results of repeated menu queries, null unless airbooking.querycachekb is set
+	private QueryCache _queryCache = null;
+	
+	//rows per round trip when streaming Booking into the booking index
+	static final int BOOKING_FETCH_SIZE = 10000;
+	//hot statements, prepared and warmed up at startup by preload
+	static final String PASSENGER_LOGIN_SQL = "SELECT * FROM Passenger WHERE fullName = ? AND passNum = ?;";
+	static final String SEATS_BOOKED_SQL = "SELECT COUNT(*) FROM Booking WHERE flightNum = ? AND departure = ?;";
+	static final String DUPLICATE_BOOKING_SQL = "SELECT 1 FROM Booking WHERE flightNum = ? AND departure = ? AND pID = ? LIMIT 1;";
+	static final String SEARCH_FLIGHTS_SQL = "SELECT F.flightNum, A.name, F.plane, F.duration, F.seats, COUNT(B.bookRef) AS booked, F.seats - COUNT(B.bookRef) AS available "
+		+ "FROM Flight F JOIN Airline A ON A.airId = F.airId "
+		+ "LEFT JOIN Booking B ON B.flightNum = F.flightNum AND B.departure = ? "
+		+ "WHERE F.origin = ? AND F.destination = ? "
+		+ "GROUP BY F.flightNum, A.name, F.plane, F.duration, F.seats ";
+	static final String SEARCH_BY_DURATION_SQL = SEARCH_FLIGHTS_SQL + "ORDER BY F.duration ASC, available DESC;";
+	static final String SEARCH_BY_AVAILABILITY_SQL = SEARCH_FLIGHTS_SQL + "ORDER BY available DESC, F.duration ASC;";
+	static final String INSERT_PASSENGER_SQL = "INSERT INTO Passenger (pID, passNum, fullName, bdate, country) VALUES (?, ?, ?, ?, ?);";
+	static final String INSERT_BOOKING_SQL = "INSERT INTO Booking (bookRef, departure, flightNum, pID) VALUES (?, ?, ?, ?);";
+	static final String LIST_FLIGHTS_SQL = "Select flightNum, origin,destination, plane,duration From Flight F Where F.destination = ? AND F.origin = ?;";
+	static final String POPULAR_DESTINATIONS_SQL = "SELECT destination, COUNT(*) FROM Flight GROUP BY destination ORDER BY COUNT(*) DESC LIMIT ?;";
+	//the column labels of the LIST_FLIGHTS_SQL and HIGHEST_RATED_SQL results
+	static final String[] LIST_FLIGHTS_COLUMNS = {"flightnum", "origin", "destination", "plane", "duration"};
+	static final String[] HIGHEST_RATED_COLUMNS = {"origin", "destination", "average_score", "flightnum"};
+	static final String HIGHEST_RATED_SQL = "Select origin, destination, AVG(SCORE) as Average_Score,F.flightNum From Ratings R, Flight F Where R.flightNum = F.flightNum Group By F.flightNum Order By AVG(SCORE) DESC Limit ?;";
+	static final String FLIGHTS_BY_DURATION_SQL = "SELECT A.name, F.flightNum, F.origin, F.destination, F.duration, F.plane FROM Airline A, Flight F WHERE F.airId = A.airID AND origin = ? AND destination = ? ORDER BY F.duration ASC LIMIT ?;";
+	static final String DEPARTURE_LOCK_SQL = "SELECT pg_advisory_xact_lock(hashtext(?));";
+	static final String FLIGHT_SEATS_SQL = "SELECT seats FROM Flight WHERE flightNum = ? FOR KEY SHARE;";
+	static final String DAILY_TOTALS_SQL = "SELECT (SELECT COUNT(*) FROM Passenger), (SELECT COUNT(*) FROM Booking), (SELECT COUNT(*) FROM Ratings), (SELECT COUNT(*) FROM Booking WHERE departure = ?);";
+	
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public AirBooking(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -43,9 +101,14 @@ public class AirBooking{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
+			this._url = url;
+			this._user = user;
+			this._passwd = passwd;
 			
 			// obtain a physical connection
+			long start = System.nanoTime();
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._connectNanos = System.nanoTime() - start;
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -70,6 +133,9 @@ public class AirBooking{
 
 		// close the instruction
 	    stmt.close ();
+	    
+	    //cached results that read the written table are stale now
+	    if (this._queryCache != null) this._queryCache.writtenBy(sql);
 	}//end executeUpdate
 
 	/**
@@ -152,6 +218,310 @@ public class AirBooking{
 		return result; 
 	}//end executeQueryAndReturnResult
 	
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT).
+	 * The parameters are bound in order to the '?' placeholders of the query,
+	 * so the statement is sent once and no values are spliced into the SQL.
+	 * Queries registered with the query cache are answered from it; their
+	 * records are read-only.
+	 * 
+	 * @param query the input query string with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executePreparedQueryAndReturnResult (String query, Object... params) throws SQLException {
+		if (this._queryCache != null && this._queryCache.caches(query))
+			return this._queryCache.get(this._connection, query, params);
+		return executePreparedQueryAndReturnResult(this._connection, query, params);
+	}//end executePreparedQueryAndReturnResult
+	
+	/**
+	 * Same as executePreparedQueryAndReturnResult, on the given connection.
+	 * Worker threads use it with a connection borrowed from the pool.
+	 * 
+	 * @param c the connection to run the query on
+	 * @param query the input query string with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static List<List<String>> executePreparedQueryAndReturnResult (Connection c, String query, Object... params) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement (query);
+		try{
+			for (int i = 0; i < params.length; ++i)
+				stmt.setObject (i + 1, params[i]);
+			
+			ResultSet rs = stmt.executeQuery ();
+			int numCol = rs.getMetaData ().getColumnCount ();
+			List<List<String>> result = new ArrayList<List<String>>();
+			while (rs.next()){
+				List<String> record = new ArrayList<String>();
+				for (int i=1; i<=numCol; ++i)
+					record.add(rs.getString (i));
+				result.add(record);
+			}//end while
+			return result;
+		}finally{
+			stmt.close ();
+		}
+	}//end executePreparedQueryAndReturnResult
+	
+	/*
+	 * Data access of the menu operations. They take the connection to run on
+	 * so that the interactive menu (on _connection) and the tools built on
+	 * top of AirBooking (on their own or pooled connections) share one code
+	 * path and one set of SQL statements.
+	 */
+	
+	/**
+	 * Lists every flight from origin to destination together with its airline
+	 * name, duration and the seats still free on the given departure date.
+	 * The seat count comes from a LEFT JOIN on Booking grouped per flight, so
+	 * the whole search is a single round trip no matter how many flights match.
+	 * 
+	 * @param c the connection to run the query on
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @param departure the departure date
+	 * @param byAvailability order by most seats left instead of shortest duration
+	 * @return records of (flightNum, airline, plane, duration, seats, booked, available)
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static List<List<String>> searchFlights (Connection c, String origin, String destination, java.sql.Date departure, boolean byAvailability) throws SQLException {
+		return executePreparedQueryAndReturnResult(c, byAvailability ? SEARCH_BY_AVAILABILITY_SQL : SEARCH_BY_DURATION_SQL, departure, origin, destination);
+	}//end searchFlights
+	
+	/**
+	 * Same as searchFlights, on this instance's connection.
+	 */
+	public List<List<String>> searchFlights (String origin, String destination, java.sql.Date departure, boolean byAvailability) throws SQLException {
+		return searchFlights(this._connection, origin, destination, departure, byAvailability);
+	}//end searchFlights
+	
+	/**
+	 * Method to count the bookings of a flight on a departure date.
+	 * 
+	 * @param c the connection to run the query on
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @return the number of booked seats
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static int countBookedSeats (Connection c, String flightNum, java.sql.Date departure) throws SQLException {
+		return Integer.parseInt(executePreparedQueryAndReturnResult(c, SEATS_BOOKED_SQL, flightNum, departure).get(0).get(0));
+	}//end countBookedSeats
+	
+	/**
+	 * Same as countBookedSeats, on this instance's connection and through
+	 * the query cache.
+	 */
+	public int countBookedSeats (String flightNum, java.sql.Date departure) throws SQLException {
+		return Integer.parseInt(executePreparedQueryAndReturnResult(SEATS_BOOKED_SQL, flightNum, departure).get(0).get(0));
+	}//end countBookedSeats
+	
+	/**
+	 * Method to check whether a passenger already booked a flight on a date.
+	 * 
+	 * @param c the connection to run the query on
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @param pID the passenger
+	 * @return true when the booking exists
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static boolean hasBooking (Connection c, String flightNum, java.sql.Date departure, int pID) throws SQLException {
+		return executePreparedQueryAndReturnResult(c, DUPLICATE_BOOKING_SQL, flightNum, departure, pID).size() > 0;
+	}//end hasBooking
+	
+	/**
+	 * Method to insert a passenger with a key from the allocator.
+	 * 
+	 * @param c the connection to run the insert on
+	 * @param keys hands out the pID
+	 * @return the pID of the new passenger
+	 * @throws java.sql.SQLException when the insert failed, e.g. on a duplicate passport number
+	 */
+	public static int addPassenger (Connection c, KeyAllocator keys, String passNum, String fullName, java.sql.Date bdate, String country) throws SQLException {
+		int pID = keys.nextPassengerId();
+		PreparedStatement stmt = c.prepareStatement (INSERT_PASSENGER_SQL);
+		try{
+			stmt.setInt(1, pID);
+			stmt.setString(2, passNum);
+			stmt.setString(3, fullName);
+			stmt.setDate(4, bdate);
+			stmt.setString(5, country);
+			stmt.executeUpdate();
+		}finally{
+			stmt.close ();
+		}
+		return pID;
+	}//end addPassenger
+	
+	/**
+	 * Method to insert a booking with a key from the allocator.
+	 * 
+	 * @param c the connection to run the insert on
+	 * @param keys hands out the bookRef
+	 * @return the bookRef of the new booking
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public static String insertBooking (Connection c, KeyAllocator keys, int pID, String flightNum, java.sql.Date departure) throws SQLException {
+		String bookRef = keys.nextBookRef();
+		PreparedStatement stmt = c.prepareStatement (INSERT_BOOKING_SQL);
+		try{
+			stmt.setString(1, bookRef);
+			stmt.setDate(2, departure);
+			stmt.setString(3, flightNum);
+			stmt.setInt(4, pID);
+			stmt.executeUpdate();
+		}finally{
+			stmt.close ();
+		}
+		return bookRef;
+	}//end insertBooking
+	
+	/**
+	 * Books a seat the way BookFlight does: checks an existing booking of the
+	 * same passenger, then, in one transaction holding the departure lock,
+	 * the remaining seats, and inserts.
+	 * 
+	 * @param c the connection to run the queries on
+	 * @param keys hands out the bookRef
+	 * @param bookings answers the duplicate check and records the new booking
+	 * @param pID the passenger
+	 * @param flight the flight to book
+	 * @param departure the departure date
+	 * @return the bookRef, or null when the flight is full or already booked by the passenger
+	 * @throws java.sql.SQLException when failed to execute the queries
+	 */
+	public static String bookFlight (Connection c, KeyAllocator keys, BookingIndex bookings, int pID, ReferenceData.Flight flight, java.sql.Date departure) throws SQLException {
+		if (bookings.contains(flight.flightNum, departure, pID)) return null;
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		try{
+			lockDeparture(c, flight.flightNum, departure);
+			if (countBookedSeats(c, flight.flightNum, departure) >= lockFlightSeats(c, flight.flightNum)) return null;
+			String bookRef;
+			try{
+				bookRef = insertBooking(c, keys, pID, flight.flightNum, departure);
+				c.commit();
+			}catch(SQLException e){
+				//booked through another instance, not yet announced to this one
+				if (!isUniqueViolation(e)) throw e;
+				bookRef = null;
+			}
+			bookings.add(flight.flightNum, departure, pID);
+			return bookRef;
+		}finally{
+			//nothing left to roll back after the commit
+			c.rollback();
+			c.setAutoCommit(autoCommit);
+		}
+	}//end bookFlight
+	
+	/**
+	 * Takes the transaction-level advisory lock of a departure. Every path
+	 * that inserts or deletes bookings holds it until commit, so the seat
+	 * count read under it stays exact, also across client instances.
+	 * 
+	 * @param c the connection to lock on; it must be in a transaction
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static void lockDeparture (Connection c, String flightNum, java.sql.Date departure) throws SQLException {
+		executePreparedQueryAndReturnResult(c, DEPARTURE_LOCK_SQL, departureLockKey(flightNum, departure));
+	}//end lockDeparture
+	
+	/**
+	 * Reads the capacity of a flight and keeps it from changing until the
+	 * transaction ends. FlightChange locks the row FOR UPDATE while it
+	 * changes capacities, so a booking checked against this value cannot
+	 * slip past its overbooking check.
+	 * 
+	 * @param c the connection to read on; it must be in a transaction
+	 * @param flightNum the flight number
+	 * @return the seats of the flight, or -1 when it does not exist
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static int lockFlightSeats (Connection c, String flightNum) throws SQLException {
+		List<List<String>> seats = executePreparedQueryAndReturnResult(c, FLIGHT_SEATS_SQL, flightNum);
+		return seats.isEmpty() ? -1 : Integer.parseInt(seats.get(0).get(0));
+	}//end lockFlightSeats
+	
+	/**
+	 * @return the key hashed into the advisory lock of a departure
+	 */
+	public static String departureLockKey (String flightNum, java.sql.Date departure) {
+		return flightNum.trim() + "|" + departure;
+	}//end departureLockKey
+	
+	/**
+	 * @return true when the statement failed on a primary key or unique constraint
+	 */
+	public static boolean isUniqueViolation (SQLException e) {
+		return "23505".equals(e.getSQLState());
+	}//end isUniqueViolation
+	
+	/**
+	 * @return records of (flightNum, origin, destination, plane, duration)
+	 */
+	public static List<List<String>> listFlights (Connection c, String origin, String destination) throws SQLException {
+		return executePreparedQueryAndReturnResult(c, LIST_FLIGHTS_SQL, destination, origin);
+	}//end listFlights
+	
+	/**
+	 * @return records of (destination, number of flights), the k most served first
+	 */
+	public static List<List<String>> mostPopularDestinations (Connection c, int k) throws SQLException {
+		return executePreparedQueryAndReturnResult(c, POPULAR_DESTINATIONS_SQL, Math.max(k, 0));
+	}//end mostPopularDestinations
+	
+	/**
+	 * Same as mostPopularDestinations, on this instance's connection and
+	 * through the query cache.
+	 */
+	public List<List<String>> mostPopularDestinations (int k) throws SQLException {
+		return executePreparedQueryAndReturnResult(POPULAR_DESTINATIONS_SQL, Math.max(k, 0));
+	}//end mostPopularDestinations
+	
+	/**
+	 * @return records of (origin, destination, average score, flightNum), the k best rated first
+	 */
+	public static List<List<String>> highestRatedRoutes (Connection c, int k) throws SQLException {
+		return executePreparedQueryAndReturnResult(c, HIGHEST_RATED_SQL, Math.max(k, 0));
+	}//end highestRatedRoutes
+	
+	/**
+	 * @return records of (airline, flightNum, origin, destination, duration, plane), the k shortest first
+	 */
+	public static List<List<String>> flightsByDuration (Connection c, String origin, String destination, int k) throws SQLException {
+		return executePreparedQueryAndReturnResult(c, FLIGHTS_BY_DURATION_SQL, origin, destination, Math.max(k, 0));
+	}//end flightsByDuration
+	
+	/**
+	 * Same as flightsByDuration, on this instance's connection and through
+	 * the query cache.
+	 */
+	public List<List<String>> flightsByDuration (String origin, String destination, int k) throws SQLException {
+		return executePreparedQueryAndReturnResult(FLIGHTS_BY_DURATION_SQL, origin, destination, Math.max(k, 0));
+	}//end flightsByDuration
+	
+	/**
+	 * Parses a date typed as yyyy-m-d, rejecting impossible dates such as
+	 * 2017-2-31 instead of rolling them over.
+	 * 
+	 * @param date the date string
+	 * @return the date
+	 * @throws java.text.ParseException when the date is not valid
+	 */
+	public static java.sql.Date toSqlDate (String date) throws java.text.ParseException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-M-d");
+		format.setLenient(false);
+		return new java.sql.Date(format.parse(date).getTime());
+	}//end toSqlDate
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
@@ -195,10 +565,415 @@ public class AirBooking{
 		return -1;
 	}
 
+	/**
+	 * Startup phase run before the menu accepts requests. Opens the connection
+	 * pool, loads Airline, Flight and the distinct cities into an immutable
+	 * snapshot with one pooled connection per table, then prepares the hot
+	 * statements and runs a short synthetic workload on every connection so
+	 * the driver has switched them to server-side prepared statements and the
+	 * JIT has compiled the query path. Prints a timing breakdown.
+	 * 
+	 * The pool size and warm-up length come from the airbooking.pool and
+	 * airbooking.warmup properties.
+	 * 
+	 * @throws java.lang.Exception when a connection or a load fails
+	 */
+	public void preload() throws Exception {
+		int poolSize = Math.max(3, Integer.getInteger("airbooking.pool", 4));
+		int iterations = Integer.getInteger("airbooking.warmup", 200);
+		long start = System.nanoTime();
+		ExecutorService startup = Executors.newFixedThreadPool(poolSize + 1);
+		try{
+			this._pool = new ConnectionPool(this._url, this._user, this._passwd, poolSize, startup);
+			this._keys = new KeyAllocator(this._pool);
+			this._repository = new PostgresRepository(this._pool, this._keys);
+			long poolNanos = System.nanoTime() - start;
+			
+			//one table per pooled connection, timed individually
+			long loadStart = System.nanoTime();
+			final long[] tableNanos = new long[4];
+			Future<Map<Integer, ReferenceData.Airline>> airlines = startup.submit(() -> {
+				long t = System.nanoTime();
+				Connection c = this._pool.borrow();
+				try{ return ReferenceData.loadAirlines(c); }
+				finally{ this._pool.release(c); tableNanos[0] = System.nanoTime() - t; }
+			});
+			Future<Map<String, ReferenceData.Flight>> flights = startup.submit(() -> {
+				long t = System.nanoTime();
+				Connection c = this._pool.borrow();
+				try{ return ReferenceData.loadFlights(c); }
+				finally{ this._pool.release(c); tableNanos[1] = System.nanoTime() - t; }
+			});
+			Future<String[]> cities = startup.submit(() -> {
+				long t = System.nanoTime();
+				Connection c = this._pool.borrow();
+				try{ return ReferenceData.loadCities(c); }
+				finally{ this._pool.release(c); tableNanos[2] = System.nanoTime() - t; }
+			});
+			Future<BookingIndex> bookings = startup.submit(() -> {
+				long t = System.nanoTime();
+				BookingIndex index = new BookingIndex();
+				Connection c = this._pool.borrow();
+				try{ index.load(c, BOOKING_FETCH_SIZE); return index; }
+				finally{ this._pool.release(c); tableNanos[3] = System.nanoTime() - t; }
+			});
+			this._reference = new ReferenceData(airlines.get(), flights.get(), cities.get());
+			this._bookings = bookings.get();
+			long loadNanos = System.nanoTime() - loadStart;
+			
+			//warm every pooled connection and the interactive one concurrently
+			long warmStart = System.nanoTime();
+			List<Future<Integer>> warming = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < poolSize; ++i){
+				warming.add(startup.submit(() -> {
+					Connection c = this._pool.borrow();
+					try{ return warmUp(c, this._reference, iterations); }
+					finally{ this._pool.release(c); }
+				}));
+			}
+			warming.add(startup.submit(() -> warmUp(this._connection, this._reference, iterations)));
+			int statements = 0;
+			for (Future<Integer> f : warming) statements += f.get();
+			long warmNanos = System.nanoTime() - warmStart;
+			
+			System.out.println(String.format("Startup: connect %.1f ms | pool of %d %.1f ms | Airline %.1f ms, Flight %.1f ms, cities %.1f ms, Booking index %.1f ms (parallel %.1f ms) | warm-up %d statements %.1f ms | total %.1f ms",
+				this._connectNanos / 1e6, poolSize, poolNanos / 1e6, tableNanos[0] / 1e6, tableNanos[1] / 1e6, tableNanos[2] / 1e6, tableNanos[3] / 1e6,
+				loadNanos / 1e6, statements, warmNanos / 1e6, (this._connectNanos + System.nanoTime() - start) / 1e6));
+			System.out.println("Booking index: " + this._bookings.stats());
+		}finally{
+			startup.shutdown();
+		}
+	}
+	
+	/**
+	 * Runs the hot statements on one connection with parameters drawn from the
+	 * reference snapshot. Every statement is executed at least five times, the
+	 * driver's default threshold for switching to a named server-side prepared
+	 * statement, which the driver then keeps in its per-connection cache.
+	 * 
+	 * @return the number of statements executed
+	 */
+	private static int warmUp(Connection c, ReferenceData reference, int iterations) throws SQLException {
+		List<ReferenceData.Flight> flights = new ArrayList<ReferenceData.Flight>(reference.flights().values());
+		if (flights.isEmpty()) return 0;
+		java.sql.Date today = new java.sql.Date(System.currentTimeMillis());
+		int executed = 0;
+		for (int i = 0; i < Math.max(5, iterations); ++i){
+			ReferenceData.Flight f = flights.get(i % flights.size());
+			executePreparedQueryAndReturnResult(c, SEATS_BOOKED_SQL, f.flightNum, today);
+			executePreparedQueryAndReturnResult(c, DUPLICATE_BOOKING_SQL, f.flightNum, today, -1);
+			executePreparedQueryAndReturnResult(c, i % 2 == 0 ? SEARCH_BY_DURATION_SQL : SEARCH_BY_AVAILABILITY_SQL, today, f.origin, f.destination);
+			executePreparedQueryAndReturnResult(c, PASSENGER_LOGIN_SQL, "", "");
+			executed += 4;
+		}
+		return executed;
+	}
+	
+	/**
+	 * @return the reference data snapshot loaded by preload
+	 */
+	public ReferenceData getReferenceData(){
+		return this._reference;
+	}
+	
+	/**
+	 * @return the booking membership index built by preload
+	 */
+	public BookingIndex getBookingIndex(){
+		return this._bookings;
+	}
+	
+	/**
+	 * Returns the Bloom filter of registered passport numbers, building it on
+	 * first use and rebuilding it once it holds more passports than it was
+	 * sized for.
+	 * 
+	 * @throws java.sql.SQLException when the passports cannot be read
+	 */
+	public synchronized PassengerImport.BloomFilter getPassportFilter() throws SQLException {
+		if (this._passports == null || this._passports.isSaturated()){
+			Connection c = this._pool.borrow();
+			try{
+				this._passports = PassengerImport.BloomFilter.load(c);
+			}finally{
+				this._pool.release(c);
+			}
+		}
+		return this._passports;
+	}
+	
+	/**
+	 * @return the key allocator created by preload
+	 */
+	public KeyAllocator getKeys(){
+		return this._keys;
+	}
+	
+	/**
+	 * @return the connection pool opened by preload
+	 */
+	public ConnectionPool getPool(){
+		return this._pool;
+	}
+	
+	/**
+	 * @return the data access of the menu operations, created by preload
+	 */
+	public AirBookingRepository getRepository(){
+		return this._repository;
+	}
+	
+	/**
+	 * Rebuilds the Flight part of the snapshot after a route was inserted or
+	 * updated through this instance.
+	 * 
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void reloadFlights() throws SQLException {
+		Map<String, ReferenceData.Flight> flights = ReferenceData.loadFlights(this._connection);
+		String[] cities = ReferenceData.loadCities(this._connection);
+		updateReference(r -> r.withFlights(flights, cities));
+	}
+	
+	/**
+	 * Swaps the reference snapshot. Serialized so that the menu thread and the
+	 * invalidation listener cannot lose each other's updates.
+	 */
+	private synchronized void updateReference(java.util.function.UnaryOperator<ReferenceData> change){
+		this._reference = change.apply(this._reference);
+	}
+	
+	/**
+	 * Subscribes to the change events of all instances. Called before
+	 * preload, so that every change committed while the caches load is
+	 * delivered once startInvalidationListener runs, and the listener does
+	 * not repeat the whole preload on its first connection.
+	 * 
+	 * @throws java.sql.SQLException when the listener cannot connect
+	 */
+	public void listenForChanges() throws SQLException {
+		long poll = Long.getLong("airbooking.notifyms", 500L);
+		this._listener = new InvalidationListener(this._url, this._user, this._passwd, poll);
+		this._listener.addHandler(new InvalidationListener.Handler(){
+			public void onChange(Connection c, String table, char op, String[] key) throws SQLException {
+				if (_queryCache != null) _queryCache.written(table);
+				if (table.equals("Airline")){
+					int airId = Integer.parseInt(key[0]);
+					ReferenceData.Airline a = op == 'D' ? null : ReferenceData.loadAirline(c, airId);
+					updateReference(r -> r.withAirline(airId, a));
+				}
+				else if (table.equals("Flight")){
+					ReferenceData.Flight f = op == 'D' ? null : ReferenceData.loadFlight(c, key[0]);
+					updateReference(r -> r.withFlight(key[0], f));
+				}
+				else if (table.equals("Passenger") && _reviews != null){
+					_reviews.invalidatePassenger(key.length > 1 ? key[1] : null);
+				}
+				else if (table.equals("Ratings") && _recentReviews != null){
+					int rID = Integer.parseInt(key[0]);
+					if (op == 'D') _recentReviews.remove(rID);
+					//an insert already indexed is the echo of this instance's own flush
+					else if (op == 'U' || !_recentReviews.contains(rID)) _recentReviews.reload(c, rID);
+				}
+				else if (table.equals("Booking")){
+					java.sql.Date departure = java.sql.Date.valueOf(key[1]);
+					//updates arrive as D of the old row followed by I of the new one
+					if (op == 'I') _bookings.add(key[0], departure, Integer.parseInt(key[2]));
+					else _bookings.remove(key[0], departure, Integer.parseInt(key[2]));
+				}
+			}
+			public void onResync(Connection c) throws SQLException {
+				if (_queryCache != null) _queryCache.clear();
+				Map<Integer, ReferenceData.Airline> airlines = ReferenceData.loadAirlines(c);
+				Map<String, ReferenceData.Flight> flights = ReferenceData.loadFlights(c);
+				String[] cities = ReferenceData.loadCities(c);
+				updateReference(r -> new ReferenceData(airlines, flights, cities));
+				if (_reviews != null) _reviews.resync(c);
+				_bookings.load(c, BOOKING_FETCH_SIZE);
+				//add is idempotent, so this only picks up the reviews that were missed
+				if (_recentReviews != null) _recentReviews.load(c);
+			}
+		});
+		this._listener.listen();
+	}
+	
+	/**
+	 * Starts the thread that keeps the reference snapshot and the review
+	 * validation caches coherent with changes made by other instances. It
+	 * polls every airbooking.notifyms milliseconds (500 by default) and does
+	 * a full resync whenever its connection is re-established.
+	 */
+	public void startInvalidationListener(){
+		this._listener.start();
+	}
+	
+	/**
+	 * Starts the write-behind review pipeline. Reviews are logged to the file
+	 * named by the airbooking.reviewlog property (reviews.log by default) and
+	 * anything left in it by a previous crash is replayed first.
+	 * 
+	 * @throws java.sql.SQLException when the flusher connection cannot be set up
+	 * @throws java.io.IOException when the review log cannot be opened
+	 */
+	public void startReviewIngestor() throws SQLException, java.io.IOException {
+		File log = new File(System.getProperty("airbooking.reviewlog", "reviews.log"));
+		int batchSize = Integer.getInteger("airbooking.reviewbatch", 500);
+		long interval = Long.getLong("airbooking.reviewflushms", 200L);
+		this._reviews = new ReviewIngestor(this._url, this._user, this._passwd, this._keys, this._bookings, log, batchSize, interval);
+	}
+	
+	/**
+	 * Builds the in-memory index over the airbooking.recentreviews most recent
+	 * reviews (10000 by default, 0 disables it). It follows the reviews
+	 * flushed by this instance and, through the invalidation listener, those
+	 * inserted by other instances.
+	 * 
+	 * @throws java.sql.SQLException when the initial load fails
+	 */
+	public void startRecentReviewIndex() throws SQLException {
+		int capacity = Integer.getInteger("airbooking.recentreviews", 10000);
+		if (capacity <= 0) return;
+		RecentReviewIndex index = new RecentReviewIndex(capacity);
+		Connection c = this._pool.borrow();
+		try{
+			index.load(c);
+		}finally{
+			this._pool.release(c);
+		}
+		if (this._reviews != null){
+			this._reviews.setFlushListener(r -> index.add(r.rID, r.pID, r.flightNum, r.score, r.comment));
+		}
+		this._recentReviews = index;
+	}
+	
+	/**
+	 * @return the recent review index, or null when it is disabled
+	 */
+	public RecentReviewIndex getRecentReviewIndex(){
+		return this._recentReviews;
+	}
+	
+	/**
+	 * Starts caching the results of the repeated menu queries, within
+	 * airbooking.querycachekb kilobytes (0 by default, which disables it).
+	 * Route and rating results are served for airbooking.querycachettlms
+	 * milliseconds (60000 by default), seat counts for
+	 * airbooking.seatcachettlms (1000). Writes through executeUpdate and the
+	 * change events of the invalidation listener drop the affected results
+	 * before that.
+	 */
+	public void startQueryCache(){
+		long kb = Long.getLong("airbooking.querycachekb", 0L);
+		if (kb <= 0) return;
+		long ttl = Long.getLong("airbooking.querycachettlms", 60000L);
+		QueryCache cache = new QueryCache(kb * 1024, "Airline", "Passenger", "Flight", "Ratings", "Booking", "Waitlist");
+		cache.cache(LIST_FLIGHTS_SQL, ttl);
+		cache.cache(POPULAR_DESTINATIONS_SQL, ttl);
+		cache.cache(FLIGHTS_BY_DURATION_SQL, ttl);
+		cache.cache(HIGHEST_RATED_SQL, ttl);
+		cache.cache(SEATS_BOOKED_SQL, Long.getLong("airbooking.seatcachettlms", 1000L));
+		this._queryCache = cache;
+		if (this._repository instanceof PostgresRepository) ((PostgresRepository) this._repository).setQueryCache(cache);
+	}
+	
+	/**
+	 * Drops the cached results that read a table written through this
+	 * instance other than by executeUpdate.
+	 * 
+	 * @param table the written table
+	 */
+	public void invalidateQueryCache(String table){
+		if (this._queryCache != null) this._queryCache.written(table);
+	}
+	
+	/**
+	 * @return the review pipeline, or null when it was not started
+	 */
+	public ReviewIngestor getReviewIngestor(){
+		return this._reviews;
+	}
+	
+	/**
+	 * Starts the HTTP/JSON interface on the port named by the airbooking.http
+	 * property, next to the menu; without the property nothing is started.
+	 * The server gets its own pool of airbooking.httppool connections (16 by
+	 * default), admits airbooking.httpmax requests at once (2000) and bounds
+	 * statements and connection waits by airbooking.httptimeoutms (2000).
+	 * Without virtual threads it runs on airbooking.httpthreads platform
+	 * threads (200).
+	 * 
+	 * @throws java.sql.SQLException when the server connections cannot be opened
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public void startHttpServer() throws SQLException, java.io.IOException {
+		Integer port = Integer.getInteger("airbooking.http");
+		if (port == null) return;
+		int poolSize = Integer.getInteger("airbooking.httppool", 16);
+		int maxInFlight = Integer.getInteger("airbooking.httpmax", 2000);
+		long timeout = Long.getLong("airbooking.httptimeoutms", 2000L);
+		int threads = Integer.getInteger("airbooking.httpthreads", 200);
+		ExecutorService opening = Executors.newFixedThreadPool(Math.min(poolSize, 16));
+		ConnectionPool pool;
+		try{
+			pool = new ConnectionPool(this._url, this._user, this._passwd, poolSize, opening);
+		}finally{
+			opening.shutdown();
+		}
+		try{
+			this._http = new BookingServer(this, pool, port, maxInFlight, timeout, threads);
+		}catch(SQLException | java.io.IOException e){
+			pool.close();
+			throw e;
+		}
+		System.out.println("HTTP API listening on port " + this._http.port());
+	}
+	
+	/**
+	 * Starts airbooking.promoters waitlist promoters (2 by default, 0
+	 * disables them) on the connection pool. A promoter with nothing to do
+	 * polls again after airbooking.promoteidlems milliseconds (500).
+	 */
+	public void startWaitlistPromoter(){
+		int workers = Integer.getInteger("airbooking.promoters", 2);
+		if (workers <= 0) return;
+		long idle = Long.getLong("airbooking.promoteidlems", 500L);
+		this._promoter = new Waitlist.Promoter(this._pool, this._keys, this._bookings, workers, idle, this._waitlistStats);
+	}
+	
+	/**
+	 * @return the promotion counters and latencies of this instance
+	 */
+	public Waitlist.Stats getWaitlistStats(){
+		return this._waitlistStats;
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
+		if (this._http != null){
+			//lets requests in flight finish while the pipeline and pool are still up
+			this._http.stop(2);
+			System.out.println("HTTP API: " + this._http.metrics());
+		}
+		if (this._promoter != null){
+			this._promoter.close();
+			System.out.println("Waitlist: " + this._waitlistStats);
+		}
+		if (this._listener != null){
+			this._listener.close();
+		}
+		if (this._queryCache != null){
+			System.out.println("Query cache: " + this._queryCache.stats());
+		}
+		if (this._reviews != null){
+			//drains pending reviews before the connection goes away
+			this._reviews.close();
+			System.out.println("Review pipeline: " + this._reviews.stats());
+		}
+		if (this._pool != null){
+			this._pool.close();
+		}
 		try{
 			if (this._connection != null){
 				this._connection.close ();
@@ -211,13 +986,15 @@ public class AirBooking{
 	/**
 	 * The main execution method
 	 * 
-	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>,
+	 *        optionally followed by --batch <command file> to run BatchRunner instead of the menu
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		boolean batch = args.length == 5 && args[3].equals("--batch");
+		if (args.length != 3 && !batch) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + AirBooking.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [--batch <command file>]");
 			return;
 		}//end if
 		
@@ -238,7 +1015,30 @@ public class AirBooking{
 			String dbport = args[1];
 			String user = args[2];
 			
+			if (batch){
+				//standard output carries only the results; progress messages go to standard error
+				java.io.PrintStream results = System.out;
+				System.setOut(System.err);
+				esql = new AirBooking (dbname, dbport, user, "");
+				esql.preload();
+				BufferedReader commands = new BufferedReader(new java.io.FileReader(args[4]));
+				try{
+					BatchRunner.run(esql, commands, results, System.err, Integer.getInteger("airbooking.batchsize", 1000));
+				}finally{
+					commands.close();
+				}
+				return;
+			}
+			
 			esql = new AirBooking (dbname, dbport, user, "");
+			esql.listenForChanges();
+			esql.preload();
+			esql.startReviewIngestor();
+			esql.startRecentReviewIndex();
+			esql.startQueryCache();
+			esql.startInvalidationListener();
+			esql.startWaitlistPromoter();
+			esql.startHttpServer();
 			
 			boolean keepon = true;
 			while(keepon){
@@ -253,6 +1053,13 @@ public class AirBooking{
 				System.out.println("7. List Highest Rated Destinations");
 				System.out.println("8. List Flights to Destination in order of Duration");
 				System.out.println("9. Find Number of Available Seats on a given Flight");
+				System.out.println("11. Search Flights with Seat Availability");
+				System.out.println("12. Search Reviews");
+				System.out.println("13. View Passenger Itinerary");
+				System.out.println("14. Load Factor Report");
+				System.out.println("15. Register Passengers from File");
+				System.out.println("16. Daily Report");
+				System.out.println("17. Cancel Booking");
 				System.out.println("10. < EXIT");
 				
 				switch (readChoice()){
@@ -266,6 +1073,13 @@ public class AirBooking{
 					case 8: ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
 					case 9: FindNumberOfAvailableSeatsForFlight(esql); break;
 					case 10: keepon = false; break;
+					case 11: SearchFlightsWithAvailability(esql); break;
+					case 12: SearchReviews(esql); break;
+					case 13: ViewItinerary(esql); break;
+					case 14: LoadFactorAnalytics(esql); break;
+					case 15: RegisterPassengersFromFile(esql); break;
+					case 16: DailyReport(esql); break;
+					case 17: CancelBooking(esql); break;
 				}
 			}
 		}catch(Exception e){
@@ -302,11 +1116,6 @@ public class AirBooking{
 	public static void AddPassenger(AirBooking esql){//1
 		//Add a new passenger to the database
 		try{
-			String trigger_query0 = "DROP TRIGGER IF EXISTS pID_trigger ON Passenger;";
-			String trigger_query = "CREATE TRIGGER pID_trigger BEFORE INSERT ON Passenger FOR EACH ROW EXECUTE PROCEDURE next_id();"; 
-			esql.executeUpdate(trigger_query0); 
-			esql.executeUpdate(trigger_query); 
-			
 			String fname, lname, name; 
 			do { 
 				System.out.print("\tEnter your first name: ");
@@ -361,11 +1170,27 @@ public class AirBooking{
 				}
 			} while (passCountry.length() == 0); 
 			 
-			String query = "INSERT INTO Passenger (passNum, fullName, bdate, country) VALUES (";
-			query += "'" + passNum + "', '" + name + "', '" + date + "', '" + passCountry + "');"; 
-			//System.out.println(query); 
-
-			esql.executeUpdate(query); 
+			//pID comes from the client-side key allocator, no trigger or currval needed
+			SimpleDateFormat format = new SimpleDateFormat("M/d/yyyy");
+			format.setLenient(false);
+			java.sql.Date bdate = new java.sql.Date(format.parse(date).getTime());
+			try
+			{
+				esql.getRepository().addPassenger(passNum, name, bdate, passCountry); 
+			}
+			catch(SQLException e)
+			{
+				if(!isUniqueViolation(e))
+				{
+					throw e;
+				}
+				System.out.println("\tThat passport number is already registered.");
+				return;
+			}
+			if(esql._passports != null)
+			{
+				esql._passports.add(passNum);
+			}
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
@@ -374,10 +1199,6 @@ public class AirBooking{
 	public static void BookFlight(AirBooking esql){//2
 		//Book Flight for an existing customer
 		try {
-				String trigger_query0 = "DROP TRIGGER IF EXISTS bookRef_trigger ON Booking;";
-				String trigger_query = "CREATE TRIGGER bookRef_trigger BEFORE INSERT ON Booking FOR EACH ROW EXECUTE PROCEDURE next_bookRef();"; 
-				esql.executeUpdate(trigger_query0); 
-				esql.executeUpdate(trigger_query);
 				int exit = 0;
 				
 				System.out.print("\tEnter your full name: "); 
@@ -385,17 +1206,11 @@ public class AirBooking{
 				System.out.print("\tEnter your passport number: "); 
 				String pass = in.readLine(); 
 				
-				String query0 = "Select * From Passenger where fullname = '"; 
-				query0 += name;
-				query0 += "' AND passnum = '";
-				query0 += pass;
-				query0 += "';"; 
-				List<List<String>> q_result = esql.executeQueryAndReturnResult(query0); 
-				int query0_result = q_result.size();
+				Integer passenger = esql.getRepository().login(name, pass); 
 				
-				if(query0_result == 0)
+				if(passenger == null)
 				{
-					while(query0_result == 0)
+					while(passenger == null)
 					{
 						System.out.print("\tYou did not enter a valid fullname or passport#. Press 0 to try again or 1 to exit. "); 
 						String choice = in.readLine();
@@ -406,13 +1221,7 @@ public class AirBooking{
 							System.out.print("\tEnter your passport number: "); 
 							pass = in.readLine(); 
 							
-							query0 = "Select * From Passenger where fullname = '"; 
-							query0 += name;
-							query0 += "' AND passnum = '";
-							query0 += pass;
-							query0 += "';"; 
-							q_result = esql.executeQueryAndReturnResult(query0); 
-							query0_result = q_result.size();
+							passenger = esql.getRepository().login(name, pass); 
 						}
 						else if(Integer.parseInt(choice) == 1)
 						{
@@ -425,19 +1234,22 @@ public class AirBooking{
 					}
 				}
 				
-				int pId = Integer.parseInt(q_result.get(0).get(0));
+				int pId = passenger;
 				System.out.println("\tHi " +name+ "!");
 				System.out.print("\tEnter where you plan to fly from: "); 
 				String origin = in.readLine(); 
 				System.out.print("\tEnter where you plan to fly to: "); 
 				String destination = in.readLine(); 
 				
-				String query1 = "Select * From Flight Where origin = '" + origin + "' AND destination = '" + destination + "';"; 
-				List<List<String>> query1_result = esql.executeQueryAndReturnResult(query1); 
+				origin = resolveCity(esql, origin); 
+				destination = resolveCity(esql, destination); 
+				List<ReferenceData.Flight> query1_result = esql.getReferenceData().flightsBetween(origin, destination); 
 				int flightCount = query1_result.size();
 				
 				while(flightCount == 0)
 				{
+					printCitySuggestions(esql, origin); 
+					printCitySuggestions(esql, destination); 
 					System.out.print("\tNo flights from " + origin + " to " + destination + " are available. Press 0 to try again and 1 to exit."); 
 					String choice = in.readLine();
 					if(Integer.parseInt(choice) == 0)
@@ -447,12 +1259,9 @@ public class AirBooking{
 						System.out.print("\tEnter where you plan to fly to: "); 
 						destination = in.readLine();
 						
-						query1 = "Select * From Flight Where origin = '"; 
-						query1 += origin;
-						query1 += "' AND destination = '";
-						query1 += destination;
-						query1 += "';"; 
-						query1_result = esql.executeQueryAndReturnResult(query1); 
+						origin = resolveCity(esql, origin); 
+						destination = resolveCity(esql, destination); 
+						query1_result = esql.getReferenceData().flightsBetween(origin, destination); 
 						flightCount = query1_result.size();
 					}
 					else if(Integer.parseInt(choice) == 1)
@@ -467,7 +1276,7 @@ public class AirBooking{
 				
 				for(int i = 0; i < flightCount;i++)
 				{
-					String tuple = "\t(" + i + ") Flight Number: " + query1_result.get(i).get(1) + " Plane: " + query1_result.get(i).get(4) + " Seats: " + query1_result.get(i).get(5) + " Duration: " + query1_result.get(i).get(6);
+					String tuple = "\t(" + i + ") Flight Number: " + query1_result.get(i).flightNum + " Plane: " + query1_result.get(i).plane + " Seats: " + query1_result.get(i).seats + " Duration: " + query1_result.get(i).duration;
 					System.out.println(tuple);
 				}
 				 
@@ -492,7 +1301,7 @@ public class AirBooking{
 					}
 				}
 				
-				List<String> flightChosen = query1_result.get(Integer.parseInt(choiceFlight));
+				ReferenceData.Flight flightChosen = query1_result.get(Integer.parseInt(choiceFlight));
 				
 				System.out.print("\tEnter the year you would like to take the flight. (After 2016) ");
 				String year = in.readLine();
@@ -531,14 +1340,9 @@ public class AirBooking{
 					}
 				}
 				String date = year + "-" + month +"-" + day;
-				String query2=  "Select * From Booking B Where B.flightNum = '";
-				 query2 += flightChosen.get(1);
-				 query2 += "' AND B.departure = '";
-				 query2 += date;
-				 query2 += "';";
-				 List<List<String>> q_result2 = esql.executeQueryAndReturnResult(query2);
-				 int query_result2 = q_result2.size();
-				 int numSeats = Integer.parseInt(flightChosen.get(5));
+				 java.sql.Date departure = toSqlDate(date);
+				 int query_result2 = esql.getRepository().countBookedSeats(flightChosen.flightNum, departure);
+				 int numSeats = flightChosen.seats;
 				 System.out.println("\tNum of seats left: " + (numSeats - query_result2));
 				 if(numSeats - query_result2 > 0)
 				 {
@@ -559,30 +1363,41 @@ public class AirBooking{
 						 }
 					 }
 					 
-					 String query3=  "Select * From Booking B Where B.flightNum = '"+ flightChosen.get(1) + "' AND B.departure = '" + date + "' AND pId = '" +pId+ "';";
-					 List<List<String>> q_result3 = esql.executeQueryAndReturnResult(query3);
-					 int query_result3 = q_result3.size();
-					 if(query_result3 > 0)
+					 if(esql.getBookingIndex().contains(flightChosen.flightNum, departure, pId))
 					 {
 						 System.out.println("\tSorry you already booked this same flight and departure time!"); 
 					 }
 					 else
 					 {
-						 String queryLast = "INSERT INTO Booking (departure, flightNum, pId) VALUES (";
-						 queryLast += "'" + date + "', '" + flightChosen.get(1) + "', '" + pId +"');"; 
-						 System.out.println("\tYour flight has been successfully booked!"); 
-
-						 esql.executeUpdate(queryLast);
+						 //counts the seats again under the departure lock, the last seat may be gone
+						 String bookRef = esql.getRepository().book(pId, flightChosen.flightNum, departure);
+						 if(bookRef != null)
+						 {
+							 esql.getBookingIndex().add(flightChosen.flightNum, departure, pId);
+							 System.out.println("\tYour flight has been successfully booked! Your booking reference is " + bookRef + "."); 
+						 }
+						 //booked through another instance, not yet announced to this one
+						 else if(esql.getRepository().hasBooking(flightChosen.flightNum, departure, pId))
+						 {
+							 esql.getBookingIndex().add(flightChosen.flightNum, departure, pId);
+							 System.out.println("\tSorry you already booked this same flight and departure time!"); 
+						 }
+						 else
+						 {
+							 System.out.println("\tSorry! That flight is fully booked.");
+							 offerWaitlist(esql, pId, flightChosen, departure);
+						 }
 					 }
 				 }
 				 else
 				 {
 					 System.out.println("\tSorry! That flight is fully booked.");
+					 offerWaitlist(esql, pId, flightChosen, departure);
 					 return;
 				 }
 				 
 				 
-	//Insert into âBookingâ Values ($departure,$flightNum,$pId) // the first value which is bookref auto increments
+	//Insert into âBookingâ Values ($bookRef,$departure,$flightNum,$pId) // bookRef comes from the key allocator
 
 			} catch (Exception e) { 
 				System.err.println(e.getMessage()); 
@@ -605,17 +1420,15 @@ public class AirBooking{
 					if(exit.length() > 0 && Integer.parseInt(exit) == 1) { return; } 
 				} 
 				else { 
-					//Query to find pID 
-					String query0 = "SELECT pID FROM Passenger WHERE fullName = '"; 
-					query0 += name + "';"; 
-					List<List<String>> query0_result = esql.executeQueryAndReturnResult(query0); 
-					if(query0_result.size() == 0) { 
+					//Find pID, from the review pipeline's passenger cache when possible
+					Integer pID = esql.getReviewIngestor().lookupPassenger(esql._connection, name); 
+					if(pID == null) { 
 						System.out.print("\tInvalid entry. Try again or enter 1 to exit. ");
 						String exit = in.readLine();
 						if(exit.length() > 0 && Integer.parseInt(exit) == 1) { return; } 
 					}
 					else { 
-						passID = query0_result.get(0).get(0); 
+						passID = String.valueOf(pID); 
 						//System.out.print(passID);
 						invalid = false; 
 					} 
@@ -632,12 +1445,8 @@ public class AirBooking{
 					if(exit.length() > 0 && Integer.parseInt(exit) == 1) { return; } 
 				} 
 				else {
-					//Query checks if passenger is in the booking table for that flight
-					String query1 = "SELECT * FROM Booking WHERE flightNum = "; 
-					query1 += "'" + flightNum + "' AND pID = '" + passID + "';";
-					//System.out.print(query1); 
-					List<List<String>> query1_result = esql.executeQueryAndReturnResult(query1); 
-					if(query1_result.size() == 0) { 
+					//Checks if passenger is in the booking table for that flight
+					if(!esql.getReviewIngestor().hasFlown(esql._connection, Integer.parseInt(passID), flightNum)) { 
 						System.out.print("\tInvalid flight number. Passenger not found for this flight. Try again or enter 1 to exit. "); 
 						String exit = in.readLine(); 
 						if(exit.length() > 0 && Integer.parseInt(exit) == 1) { return; } 
@@ -649,22 +1458,19 @@ public class AirBooking{
 			} while (invalid); 
 			
 			//If passenger exists, allow them to create a review
-			System.out.print("\tEnter your rating score 1-5, where 1 is poor and 5 is excellent: "); 
+			System.out.print("\tEnter your rating score 0-5, where 0 is poor and 5 is excellent: "); 
 			int score = Integer.parseInt(in.readLine()); 
+			//checked here, the write-behind pipeline inserts long after the prompt
+			while(score < 0 || score > 5) { 
+				System.out.print("\tThe score must be between 0 and 5. Enter your rating score: "); 
+				score = Integer.parseInt(in.readLine()); 
+			} 
 			System.out.print("\tEnter a comment (optional): "); 
 			String comment = in.readLine(); 
 			
-			//Query that drops/creates trigger for rID
-			String drop_trigger = "DROP TRIGGER IF EXISTS rID_trigger ON Ratings;"; 
-			String review_trigger = "CREATE TRIGGER rID_trigger BEFORE INSERT ON Ratings FOR EACH ROW EXECUTE PROCEDURE next_rid();"; 
-			esql.executeUpdate(drop_trigger); 
-			esql.executeUpdate(review_trigger); 
-			
-			//Insert customer review into the ratings table
-			String insert_query = "INSERT INTO Ratings (pID, flightNum, score, comment) VALUES ('"; 
-			insert_query += passID + "', '" + flightNum + "', '" + score + "', '" + comment + "');"; 
-			//System.out.print(insert_query); 
-			esql.executeUpdate(insert_query);  
+			//Hand the review to the write-behind pipeline; it is logged locally and inserted into Ratings in batches
+			esql.getReviewIngestor().submit(Integer.parseInt(passID), flightNum, score, comment); 
+			System.out.println("\tThank you! Your review has been recorded."); 
 		}
 		catch(Exception e) {
 			System.err.println(e.getMessage()); 
@@ -696,18 +1502,19 @@ public class AirBooking{
 			
 			if(Integer.parseInt(choice) == 1)
 			{
-				String query = "SELECT * FROM Airline;";
-				esql.executeQueryAndPrintResult(query);
+				//airlines come from the in-memory snapshot, not a fresh SELECT * FROM Airline
+				System.out.println("airid\tname\tfounded\tcountry\thub");
+				for(ReferenceData.Airline a : esql.getReferenceData().airlines())
+				{
+					System.out.println(a.airId + "\t" + a.name + "\t" + a.founded + "\t" + a.country + "\t" + a.hub);
+				}
 				System.out.print("\tGreat! Please select the airline from the list above using its airId. (Enter -1 to return to main menu) " );
 				String airId = in.readLine();
 				if(Integer.parseInt(airId) == -1)
 				{
 					return;
 				}
-				String query0 = "SELECT * FROM Airline WHERE airId = '"; 
-				query0 += airId + "';"; 
-				List<List<String>> query0_result = esql.executeQueryAndReturnResult(query0);
-				while(query0_result.size()== 0)
+				while(esql.getReferenceData().airline(Integer.parseInt(airId)) == null)
 				{
 					System.out.println("\tSorry, you entered an invalid airId." );
 					System.out.print("\tPlease select the airline from the list above using its airId. (Enter -1 to return to main menu) " );
@@ -716,9 +1523,6 @@ public class AirBooking{
 					{
 						return;
 					}
-					query0 = "SELECT * FROM Airline WHERE airId = '"; 
-					query0 += airId + "';"; 
-					query0_result = esql.executeQueryAndReturnResult(query0);
 				}
 				//String query1 = "SELECT * FROM Flight Where airId='" + query0_result.get(0).get(0) + "';";
 				//esql.executeQueryAndPrintResult(query1);
@@ -746,19 +1550,30 @@ public class AirBooking{
 				}
 				System.out.print("\tEnter flight number: ");
 				String flightNum = in.readLine();
-				String queryLast = "INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) VALUES (";
-				queryLast += "'" + airId + "', '" + flightNum + "', '" + origin + "', '" + destination + "', '" + plane +"', '" + seats +"', '" + duration +"');"; 
+				ReferenceData.Flight created = new ReferenceData.Flight(Integer.parseInt(airId), flightNum.trim(), origin.trim(), destination.trim(), plane.trim(), Integer.parseInt(seats), Integer.parseInt(duration));
+				try
+				{
+					esql.getRepository().addFlight(created);
+				}
+				catch(SQLException e)
+				{
+					if(!isUniqueViolation(e))
+					{
+						throw e;
+					}
+					System.out.println("\tFlight " + created.flightNum + " already exists; update it instead.");
+					return;
+				}
 				System.out.println("\tYour have successfully created a flight!"); 
-                esql.executeUpdate(queryLast);
+                esql.reloadFlights();
 			}
 			else if(Integer.parseInt(choice) == 2)
 			{
 				System.out.print("\tEnter flight number: ");
 				String flightNum = in.readLine();
 				
-				String query = "SELECT * FROM Flight Where flightNum = '" +flightNum+ "';";
-				List<List<String>> query_result = esql.executeQueryAndReturnResult(query);
-				while(query_result.size() == 0)
+				ReferenceData.Flight current = esql.getReferenceData().flight(flightNum);
+				while(current == null)
 				{
 					System.out.print("\tNo flight found. Please enter a flight number. (Enter Exit to return to main menu) ");
 					flightNum = in.readLine();
@@ -766,8 +1581,7 @@ public class AirBooking{
 					{
 						return;
 					}
-					query = "SELECT * FROM Flight Where flightNum = '" +flightNum+ "';";
-					query_result = esql.executeQueryAndReturnResult(query);
+					current = esql.getReferenceData().flight(flightNum);
 				}
 				//airId INTEGER NOT NULL,
 				//flightNum CHAR(8) NOT NULL,
@@ -776,13 +1590,13 @@ public class AirBooking{
 				//plane CHAR(16) NOT NULL,
 				//seats _SEATS NOT NULL,
 	//duration _HOURS NOT NULL,
-				String airId = query_result.get(0).get(0);
-				String origin = query_result.get(0).get(2);
-				String destination = query_result.get(0).get(3);
-				String plane = query_result.get(0).get(4);
-				String seats = query_result.get(0).get(5);
-				String duration = query_result.get(0).get(6);
-				esql.executeQueryAndPrintResult(query);
+				flightNum = current.flightNum;
+				String origin = current.origin;
+				String destination = current.destination;
+				String plane = current.plane;
+				String seats = String.valueOf(current.seats);
+				String duration = String.valueOf(current.duration);
+				printFlight(current);
 				System.out.print("\tWould you like the update the origin? (Yes or No) ");
 				String newOrigin = in.readLine();
 				
@@ -869,11 +1683,32 @@ public class AirBooking{
 					duration = in.readLine();
 				}
 				
-				String queryLast = "UPDATE Flight SET origin = '" +origin+ "', destination = '" +destination+ "', plane = '" +plane+ "', seats = '" +seats+ "', duration ='" +duration+ "'Where flightNum = '" +flightNum+ "';";
+				//the future departures are checked in the same transaction as the update
+				List<FlightChange.Route> change = java.util.Collections.singletonList(new FlightChange.Route(flightNum, origin, destination, plane, Integer.parseInt(seats), Integer.parseInt(duration)));
+				FlightChange.Result result = FlightChange.apply(esql._connection, change, false);
+				if(!result.applied)
+				{
+					System.out.println("\tWith " + seats.trim() + " seats, " + result.overbookedDepartures + " future departure(s) would have more bookings than seats (" + result.passengers.size() + " passenger(s) to rebook).");
+					System.out.print("\tWould you like to update the flight anyway? (Yes or No) ");
+					if(!in.readLine().equals("Yes"))
+					{
+						System.out.println("\tThe flight was not updated.");
+						return;
+					}
+					result = FlightChange.apply(esql._connection, change, true);
+				}
 				System.out.println("\tYou have successfully updated the flight!"); 
-				//System.out.println(queryLast); 
-                esql.executeUpdate(queryLast);
-                esql.executeQueryAndPrintResult(query);
+				if(result.passengers.size() > 0)
+				{
+					System.out.println("\tPassengers to rebook:");
+					for(FlightChange.Affected a : result.passengers)
+					{
+						System.out.println("\t" + String.join("\t", a.fields()));
+					}
+				}
+                esql.reloadFlights();
+                esql.invalidateQueryCache("Flight");
+                printFlight(esql.getReferenceData().flight(flightNum));
 			}
 		  }catch(Exception e){
 			 System.err.println (e.getMessage());
@@ -887,15 +1722,11 @@ public class AirBooking{
 			 String origin = in.readLine();
 			 System.out.print("\tEnter destination: ");
 			 String destination = in.readLine();
-			 String query =  "Select flightNum, origin,destination, plane,duration From Flight F Where F.destination = '";
-			 query += destination;
-			 query += "' AND F.origin = '";
-			 query += origin;
-			 query += "';";
-
-			 int rowCount = esql.executeQueryAndPrintResult(query);
+			 int rowCount = printRecords(esql.getRepository().listFlights(resolveCity(esql, origin), resolveCity(esql, destination)), LIST_FLIGHTS_COLUMNS);
 			 while(rowCount == 0)
 			 {
+				 printCitySuggestions(esql, origin);
+				 printCitySuggestions(esql, destination);
 				 System.out.print("\tThere are no flights from "+ origin +" to "+ destination +". Would you like to try again? (Yes or No) ");
 				 String response = in.readLine();
 				 if(response.equals("No"))
@@ -906,12 +1737,7 @@ public class AirBooking{
 				 origin = in.readLine();
 				 System.out.print("\tEnter destination: ");
 				 destination = in.readLine();
-				 query =  "Select flightNum, origin,destination, plane,duration From Flight F Where F.destination = '";
-				 query += destination;
-				 query += "' AND F.origin = '";
-				 query += origin;
-				 query += "';";
-				 rowCount = esql.executeQueryAndPrintResult(query);
+				 rowCount = printRecords(esql.getRepository().listFlights(resolveCity(esql, origin), resolveCity(esql, destination)), LIST_FLIGHTS_COLUMNS);
 			 }
 		  }catch(Exception e){
 			 System.err.println (e.getMessage());
@@ -924,20 +1750,11 @@ public class AirBooking{
 			System.out.print("\tEnter the number of destinations you would like to see: ");
 			int k = Integer.parseInt(in.readLine()); 
 			
-			String query = "SELECT destination, COUNT(*) FROM Flight GROUP BY destination ORDER BY COUNT(*) DESC;"; 
-			List<List<String>> top_Dest = esql.executeQueryAndReturnResult(query); 
+			List<List<String>> top_Dest = esql.getRepository().mostPopularDestinations(k); 
 			
-			if ( k > top_Dest.size() ) { 
-				for(int i = 0; i < top_Dest.size(); i++) { 
-					System.out.print(i+1); 
-					System.out.println(". " + top_Dest.get(i).get(0)); 
-				} 
-			}
-			else { 
-				for(int i = 0; i < k; i++) { 
-					System.out.print(i+1); 
-					System.out.println(". " + top_Dest.get(i).get(0)); 
-				}
+			for(int i = 0; i < top_Dest.size(); i++) { 
+				System.out.print(i+1); 
+				System.out.println(". " + top_Dest.get(i).get(0)); 
 			}
 		} catch(Exception e) { 
 			System.err.println(e.getMessage()); 
@@ -947,15 +1764,10 @@ public class AirBooking{
 	public static void ListHighestRatedRoutes(AirBooking esql){//7
 		//List the k highest rated Routes (i.e. Airline Name, flightNum, Avg_Score)
 		try{
-			 String query =  "Select origin, destination, AVG(SCORE) as Average_Score,F.flightNum From Ratings R, Flight F Where R.flightNum = F.flightNum Group By F.flightNum Order By AVG(SCORE) DESC Limit ";
 			 System.out.print("\tEnter k: ");
 			 String input = in.readLine();
-			 query += input;
-			 query += ";";
 
-             //String query1 = "Select * From Ratings;";
-			 int rowCount = esql.executeQueryAndPrintResult(query);
-			 //int rowCount1 = esql.executeQueryAndPrintResult(query1);
+			 int rowCount = printRecords(esql.getRepository().highestRatedRoutes(Integer.parseInt(input)), HIGHEST_RATED_COLUMNS);
 			 if(rowCount == 0)
 			 {
 				 System.out.println("\tThere are no reviews.");
@@ -980,14 +1792,14 @@ public class AirBooking{
 					if(exit.length() > 0 && Integer.parseInt(exit) == 0) { return; } 
 				} 
 				else { 
-					String origin_check = "SELECT * FROM Flight WHERE origin = '" + origin + "';"; 
-					List<List<String>> origin_res = esql.executeQueryAndReturnResult(origin_check); 
-					if(origin_res.size() == 0) { 
+					String city = esql.getReferenceData().cityIndex().find(origin); 
+					if(city == null) { 
+						printCitySuggestions(esql, origin); 
 						System.out.print("\tInvalid origin. Try again or enter 1 to exit. "); 
 						String exit = in.readLine(); 
 						if(exit.length() > 0 && Integer.parseInt(exit) == 0) { return; } 
 					} 
-					else { invalid = false; } 
+					else { origin = city; invalid = false; } 
 				}
 			} while (invalid);
 			
@@ -1001,46 +1813,30 @@ public class AirBooking{
 					if(exit.length() > 0 && Integer.parseInt(exit) == 0) { return; } 
 				} 
 				else { 
-					String dest_check = "SELECT * FROM Flight WHERE destination = '" + dest + "';"; 
-					List<List<String>> dest_res = esql.executeQueryAndReturnResult(dest_check); 
-					if(dest_res.size() == 0) { 
+					String city = esql.getReferenceData().cityIndex().find(dest); 
+					if(city == null) { 
+						printCitySuggestions(esql, dest); 
 						System.out.print("\tInvalid destination. Try again or enter 1 to exit. "); 
 						String exit = in.readLine(); 
 						if(exit.length() > 0 && Integer.parseInt(exit) == 0) { return; } 
 					} 
-					else { invalid = false; } 
+					else { dest = city; invalid = false; } 
 				} 
 			} while (invalid); 
 			
 			System.out.print("\tEnter the number of flights you would like to see: ");
 			int k = Integer.parseInt(in.readLine()); 
 			
-			String query = "SELECT A.name, F.flightNum, F.origin, F.destination, F.duration, F.plane FROM Airline A, FLight F WHERE F.airId = A.airID AND origin = '";
-			query += origin + "' AND destination = '" + dest + "' ORDER BY F.duration ASC"; 
-			
-			List<List<String>> flights = esql.executeQueryAndReturnResult(query); 
+			List<List<String>> flights = esql.getRepository().flightsByDuration(origin, dest, k); 
 			
-			if ( k > flights.size() ) { 
-				System.out.print("Airline \t Flight Number \t Origin \t Destination \t Duration \t Plane"); 
-				System.out.println();
-				for(int i = 0; i < flights.size(); i++) { 
-					for(int j = 0; j < flights.get(i).size(); j++) { 
-						System.out.print(flights.get(i).get(j));
-						System.out.print("\t");  
-					}
-					System.out.println();
-				} 
-			}
-			else { 
-				System.out.print("Airline \t Flight Number \t Origin \t Destination \t Duration \t Plane"); 
+			System.out.print("Airline \t Flight Number \t Origin \t Destination \t Duration \t Plane"); 
+			System.out.println();
+			for(int i = 0; i < flights.size(); i++) { 
+				for(int j = 0; j < flights.get(i).size(); j++) { 
+					System.out.print(flights.get(i).get(j));
+					System.out.print("\t");  
+				}
 				System.out.println();
-				for(int i = 0; i < k; i++) { 
-					for(int j = 0; j < flights.get(i).size(); j++) { 
-						System.out.print(flights.get(i).get(j));
-						//System.out.print("\t");  
-					}
-					System.out.println();
-				} 
 			}
 		} catch(Exception e) { 
 			System.err.println(e.getMessage()); 
@@ -1090,12 +1886,9 @@ public class AirBooking{
 				}
 				String date = year + "-" + month +"-" + day;
 			 
-			 String query1=  "Select * From Flight F Where F.flightNum = '";
-			 query1 += input;
-			 query1 += "';";
-			 List<List<String>> str = esql.executeQueryAndReturnResult(query1);
+			 ReferenceData.Flight str = esql.getReferenceData().flight(input);
 			 
-			 while(str.size() == 0)
+			 while(str == null)
 			 {
 				 System.out.print("\tSorry you did not enter a valid flight number. Type \"Exit\" if you would like the exit or type the flight number again. ");
 				 input= in.readLine();
@@ -1103,27 +1896,15 @@ public class AirBooking{
 				 {
 					 return;
 				 }
-				 query1=  "Select * From Flight F Where F.flightNum = '";
-				 query1 += input;
-				 query1 += "';";
-				 str = esql.executeQueryAndReturnResult(query1);
+				 str = esql.getReferenceData().flight(input);
 			 }
 			 
-			 String flightNum = str.get(0).get(1);
-			 flightNum.replaceAll("\\s+","");
-			 String origin = str.get(0).get(2);
-			 origin.replaceAll("\\s+","");
-			 String destination = str.get(0).get(3);
-			 int numSeats = Integer.parseInt(str.get(0).get(5));
+			 String flightNum = str.flightNum;
+			 String origin = str.origin;
+			 String destination = str.destination;
+			 int numSeats = str.seats;
 			 
-			 String query=  "Select * From Booking B Where B.flightNum = '";
-			 query += input;
-			 query += "' AND B.departure = '";
-			 query += date;
-			 query += "';";
-			 
-			 List<List<String>> rcList = esql.executeQueryAndReturnResult(query);
-			 int rowcount = rcList.size();
+			 int rowcount = esql.getRepository().countBookedSeats(flightNum, toSqlDate(date));
 			 
 			 int seatsAvailable = numSeats - rowcount;
 			 System.out.println("\tFor FlightNum: "+flightNum+", the origin is: " + origin +", the destination is: "+ destination +", the number of booked seats is: "+ rowcount
@@ -1133,4 +1914,398 @@ public class AirBooking{
 		  }
 	}
 	
+	public static void SearchFlightsWithAvailability(AirBooking esql){//11
+		//List flights between origin and destination with airline, duration and seats left on a date (one query)
+		try{
+			System.out.print("\tEnter origin: ");
+			String origin = in.readLine();
+			System.out.print("\tEnter destination: ");
+			String destination = in.readLine();
+			
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+			format.setLenient(false);
+			java.sql.Date departure = null;
+			while(departure == null)
+			{
+				System.out.print("\tEnter the departure date (yyyy-mm-dd) or Exit to return to main menu: ");
+				String date = in.readLine();
+				if(date.equals("Exit"))
+				{
+					return;
+				}
+				try{
+					departure = new java.sql.Date(format.parse(date).getTime());
+				}catch(java.text.ParseException e){
+					System.out.println("\tPlease enter a valid date.");
+				}
+			}
+			
+			System.out.print("\tSort by duration (enter 1) or by seats available (enter 2)? ");
+			boolean byAvailability = in.readLine().equals("2");
+			
+			List<List<String>> flights = esql.searchFlights(origin, destination, departure, byAvailability);
+			if(flights.size() == 0)
+			{
+				System.out.println("\tThere are no flights from "+ origin +" to "+ destination +".");
+				return;
+			}
+			System.out.println("Flight Number \t Airline \t Plane \t Duration \t Seats \t Booked \t Available");
+			for(int i = 0; i < flights.size(); i++) {
+				for(int j = 0; j < flights.get(i).size(); j++) {
+					System.out.print(flights.get(i).get(j));
+					System.out.print("\t");
+				}
+				System.out.println();
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	public static void SearchReviews(AirBooking esql){//12
+		//Search review comments by keywords, flight and score range, 10 results per page
+		try{
+			System.out.print("\tEnter keywords: ");
+			String keywords = in.readLine();
+			System.out.print("\tEnter a flight number (leave blank for all flights): ");
+			String flightNum = in.readLine();
+			if(flightNum.length() == 0)
+			{
+				flightNum = null;
+			}
+			System.out.print("\tEnter the lowest score (0-5): ");
+			int minScore = Integer.parseInt(in.readLine());
+			System.out.print("\tEnter the highest score (0-5): ");
+			int maxScore = Integer.parseInt(in.readLine());
+			
+			boolean recent = false;
+			if(esql.getRecentReviewIndex() != null)
+			{
+				System.out.print("\tSearch only the " + esql.getRecentReviewIndex().size() + " most recent reviews, in memory? (Yes or No) ");
+				recent = in.readLine().equals("Yes");
+			}
+			
+			ReviewSearch.Cursor cursor = null;
+			while(true)
+			{
+				List<ReviewSearch.Hit> hits = recent
+					? esql.getRecentReviewIndex().search(keywords, flightNum, minScore, maxScore, cursor, 10)
+					: ReviewSearch.search(esql._connection, keywords, flightNum, minScore, maxScore, cursor, 10);
+				if(hits.size() == 0)
+				{
+					System.out.println(cursor == null ? "\tNo reviews found." : "\tNo more reviews.");
+					return;
+				}
+				System.out.println("rID \t Flight Number \t Score \t Rank \t Comment");
+				for(ReviewSearch.Hit h : hits)
+				{
+					System.out.println(h.rID + "\t" + h.flightNum + "\t" + h.score + "\t" + String.format("%.4f", h.rank) + "\t" + h.comment);
+				}
+				if(hits.size() < 10)
+				{
+					return;
+				}
+				System.out.print("\tShow the next page? (Yes or No) ");
+				if(!in.readLine().equals("Yes"))
+				{
+					return;
+				}
+				cursor = hits.get(hits.size() - 1).next();
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	public static void ViewItinerary(AirBooking esql){//13
+		//List a passenger's bookings, newest departure first, 10 per page
+		try{
+			System.out.print("\tEnter your full name: ");
+			String name = in.readLine();
+			System.out.print("\tEnter your passport number: ");
+			String pass = in.readLine();
+			
+			List<List<String>> q_result = esql.executePreparedQueryAndReturnResult(PASSENGER_LOGIN_SQL, name, pass);
+			if(q_result.size() == 0)
+			{
+				System.out.println("\tYou did not enter a valid fullname or passport#.");
+				return;
+			}
+			int pId = Integer.parseInt(q_result.get(0).get(0));
+			
+			System.out.println("Booking Ref \t Departure \t Flight Number \t Origin \t Destination \t Duration \t Airline \t Your Score");
+			System.out.print("\tShow the whole history at once? (Yes or No) ");
+			if(in.readLine().equals("Yes"))
+			{
+				long count = Itinerary.stream(esql._connection, pId, 500, AirBooking::printItineraryEntry);
+				System.out.println("\t" + count + " booking(s).");
+				return;
+			}
+			
+			Itinerary.Cursor cursor = null;
+			while(true)
+			{
+				List<Itinerary.Entry> entries = Itinerary.page(esql._connection, pId, cursor, 10);
+				if(entries.size() == 0)
+				{
+					System.out.println(cursor == null ? "\tNo bookings found." : "\tNo more bookings.");
+					return;
+				}
+				for(Itinerary.Entry e : entries)
+				{
+					printItineraryEntry(e);
+				}
+				if(entries.size() < 10)
+				{
+					return;
+				}
+				System.out.print("\tShow the next page? (Yes or No) ");
+				if(!in.readLine().equals("Yes"))
+				{
+					return;
+				}
+				cursor = entries.get(entries.size() - 1).next();
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	public static void LoadFactorAnalytics(AirBooking esql){//14
+		//Load factor per airline, month, route and flight over a window of departure dates
+		try{
+			System.out.print("\tEnter the first departure date, yyyy-mm-dd (leave blank for no limit): ");
+			String input = in.readLine().trim();
+			java.sql.Date from = input.length() == 0 ? null : toSqlDate(input);
+			System.out.print("\tEnter the date after the last departure, yyyy-mm-dd (leave blank for no limit): ");
+			input = in.readLine().trim();
+			java.sql.Date to = input.length() == 0 ? null : toSqlDate(input);
+			System.out.print("\tEnter k, the number of most and least utilized routes and flights: ");
+			int k = Integer.parseInt(in.readLine().trim());
+			System.out.print("\tEnter a CSV file to write the report to (leave blank to print it): ");
+			String file = in.readLine().trim();
+			
+			//stream from a pooled connection, the interactive one stays free
+			LoadFactorReport.Result result;
+			Connection c = esql.getPool().borrow();
+			try{
+				result = LoadFactorReport.compute(c, esql.getReferenceData(), from, to, Runtime.getRuntime().availableProcessors());
+			}finally{
+				esql.getPool().release(c);
+			}
+			if(result.unknown > 0)
+			{
+				System.out.println("\t" + result.unknown + " booking(s) of unknown flights were skipped.");
+			}
+			if(file.length() == 0)
+			{
+				LoadFactorReport.write(result, k, new LoadFactorReport.TextWriter(new java.io.PrintWriter(System.out)));
+			}
+			else
+			{
+				LoadFactorReport.write(result, k, new LoadFactorReport.CsvWriter(new java.io.PrintWriter(file, "UTF-8")));
+				System.out.println("\tReport of " + result.bookings + " bookings written to " + file + ".");
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	public static void RegisterPassengersFromFile(AirBooking esql){//15
+		//Register a partner's passenger list: passNum,fullName,mm/dd/yyyy,country per line
+		try{
+			System.out.print("\tEnter the passenger list file: ");
+			String file = in.readLine().trim();
+			System.out.print("\tEnter a file to write the rejected records to (leave blank to print them): ");
+			String rejectFile = in.readLine().trim();
+			
+			PassengerImport.Result result;
+			BufferedReader list = new BufferedReader(new InputStreamReader(new java.io.FileInputStream(file), "UTF-8"));
+			Connection c = esql.getPool().borrow();
+			try{
+				result = PassengerImport.run(c, esql.getKeys(), esql.getPassportFilter(), list, 1000);
+			}finally{
+				esql.getPool().release(c);
+				list.close();
+			}
+			
+			System.out.println(String.format("\t%d record(s) read, %d registered, %d rejected in %.1f ms (%d passport(s) looked up, %d already registered).",
+				result.read, result.inserted, result.rejects.size(), result.elapsedNanos / 1e6, result.lookedUp, result.registered));
+			if(result.rejects.size() == 0)
+			{
+				return;
+			}
+			java.io.PrintWriter out = rejectFile.length() == 0 ? new java.io.PrintWriter(System.out) : new java.io.PrintWriter(rejectFile, "UTF-8");
+			for(PassengerImport.Reject r : result.rejects)
+			{
+				out.println(r);
+			}
+			if(rejectFile.length() == 0)
+			{
+				out.flush();
+			}
+			else
+			{
+				out.close();
+				System.out.println("\tRejected records written to " + rejectFile + ".");
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	public static void CancelBooking(AirBooking esql){//17
+		//Cancel a booking; the first passenger waiting for the departure gets the seat in the same transaction
+		try{
+			System.out.print("\tEnter the booking reference: ");
+			String bookRef = in.readLine().trim();
+			Waitlist.Cancellation result = Waitlist.cancel(esql._connection, esql.getKeys(), bookRef, esql.getWaitlistStats());
+			if(result == null)
+			{
+				System.out.println("\tThere is no booking with that reference.");
+				return;
+			}
+			esql.getBookingIndex().remove(result.flightNum, result.departure, result.pID);
+			esql.invalidateQueryCache("Booking");
+			System.out.println("\tBooking " + bookRef + " on flight " + result.flightNum + " departing " + result.departure + " was cancelled.");
+			if(result.promotedPID != null)
+			{
+				esql.getBookingIndex().add(result.flightNum, result.departure, result.promotedPID);
+				System.out.println("\tThe seat went to passenger " + result.promotedPID + " from the waitlist, booking reference " + result.promotedBookRef + ".");
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	public static void DailyReport(AirBooking esql){//16
+		//Totals, top lists and load factors of one departure date, all sections read in parallel from one snapshot
+		try{
+			System.out.print("\tEnter the departure date, yyyy-mm-dd: ");
+			java.sql.Date day = toSqlDate(in.readLine().trim());
+			java.sql.Date next = java.sql.Date.valueOf(day.toLocalDate().plusDays(1));
+			System.out.print("\tEnter k, the length of the top lists: ");
+			int k = Integer.parseInt(in.readLine().trim());
+			System.out.print("\tEnter a CSV file to write the report to (leave blank to print it): ");
+			String file = in.readLine().trim();
+			
+			List<List<String>> totals, popular, rated;
+			LoadFactorReport.Result loads;
+			SnapshotReport report = SnapshotReport.open(esql.getPool());
+			try{
+				Future<List<List<String>>> t = report.submit("totals", c -> executePreparedQueryAndReturnResult(c, DAILY_TOTALS_SQL, day));
+				Future<List<List<String>>> p = report.submit("popular destinations", c -> mostPopularDestinations(c, k));
+				Future<List<List<String>>> r = report.submit("highest rated routes", c -> highestRatedRoutes(c, k));
+				//seats come from Flight as of the snapshot too, not from the live reference data
+				Future<LoadFactorReport.Result> l = report.submit("load factors", c -> LoadFactorReport.compute(c,
+					new ReferenceData(ReferenceData.loadAirlines(c), ReferenceData.loadFlights(c), ReferenceData.loadCities(c)),
+					day, next, Runtime.getRuntime().availableProcessors()));
+				totals = SnapshotReport.get(t);
+				popular = SnapshotReport.get(p);
+				rated = SnapshotReport.get(r);
+				loads = SnapshotReport.get(l);
+			}finally{
+				report.close();
+			}
+			
+			LoadFactorReport.ReportWriter out = file.length() == 0
+				? new LoadFactorReport.TextWriter(new java.io.PrintWriter(System.out))
+				: new LoadFactorReport.CsvWriter(new java.io.PrintWriter(file, "UTF-8"));
+			List<String> row = totals.get(0);
+			out.section("Daily report for " + day + " (snapshot " + report.snapshotId() + ")", "Passengers", "Bookings", "Ratings", "Departing That Day");
+			out.row(row.get(0), row.get(1), row.get(2), row.get(3));
+			out.section("Most popular destinations", "Destination", "Flights");
+			for (List<String> d : popular) out.row(d.get(0).trim(), d.get(1));
+			out.section("Highest rated routes", "Origin", "Destination", "Average Score", "Flight Number");
+			for (List<String> d : rated) out.row(d.get(0).trim(), d.get(1).trim(), d.get(2), d.get(3).trim());
+			//closes the writer
+			LoadFactorReport.write(loads, k, out);
+			
+			StringBuilder timings = new StringBuilder();
+			for (Map.Entry<String, Double> e : report.sectionMillis().entrySet()){
+				timings.append(String.format("%s %.1f ms, ", e.getKey(), e.getValue()));
+			}
+			System.out.println(String.format("\tSections: %swhole report %.1f ms.", timings, report.elapsedMillis()));
+		}catch(Exception e){
+			System.err.println (e.getMessage());
+		}
+	}
+	
+	/**
+	 * Prints records under a header of column labels, one tab-separated line
+	 * per record; the header is left out when there are no records.
+	 * 
+	 * @return the number of records
+	 */
+	private static int printRecords(List<List<String>> records, String... columns){
+		if (records.size() > 0){
+			for (String column : columns)
+				System.out.print(column + "\t");
+			System.out.println();
+		}
+		for (List<String> record : records){
+			for (String value : record)
+				System.out.print (value + "\t");
+			System.out.println ();
+		}
+		return records.size();
+	}
+	
+	private static void printFlight(ReferenceData.Flight f){
+		printRecords(java.util.Collections.singletonList(java.util.Arrays.asList(String.valueOf(f.airId), f.flightNum, f.origin, f.destination, f.plane, String.valueOf(f.seats), String.valueOf(f.duration))),
+			"airid", "flightnum", "origin", "destination", "plane", "seats", "duration");
+	}
+	
+	/**
+	 * @return the city as spelled in Flight when the typed name matches one ignoring case, otherwise the typed name
+	 */
+	private static String resolveCity(AirBooking esql, String typed){
+		String city = esql.getReferenceData().cityIndex().find(typed);
+		return city == null ? typed : city;
+	}
+	
+	/**
+	 * Prints the cities the user may have meant when the typed name is not a known city.
+	 */
+	private static void printCitySuggestions(AirBooking esql, String typed){
+		CityIndex cities = esql.getReferenceData().cityIndex();
+		if(cities.find(typed) != null)
+		{
+			return;
+		}
+		List<String> suggestions = cities.suggest(typed, 5);
+		if(suggestions.size() > 0)
+		{
+			System.out.println("\t" + typed + " is not a known city. Did you mean: " + String.join(", ", suggestions) + "?");
+		}
+	}
+	
+	/**
+	 * Offers a passenger who found the departure full a place on its waitlist.
+	 */
+	private static void offerWaitlist(AirBooking esql, int pID, ReferenceData.Flight flight, java.sql.Date departure) throws Exception {
+		System.out.print("\tWould you like to join the waitlist for this departure? (Yes or No) ");
+		if(!in.readLine().equals("Yes"))
+		{
+			return;
+		}
+		try
+		{
+			int position = Waitlist.join(esql._connection, pID, flight.flightNum, departure);
+			System.out.println("\tYou are number " + position + " on the waitlist. You will be booked as soon as a seat is freed.");
+		}
+		catch(SQLException e)
+		{
+			if(!isUniqueViolation(e))
+			{
+				throw e;
+			}
+			System.out.println("\tYou are already on the waitlist for this departure.");
+		}
+	}
+	
+	private static void printItineraryEntry(Itinerary.Entry e){
+		System.out.println(e.bookRef + "\t" + e.departure + "\t" + e.flightNum + "\t" + e.origin + "\t" + e.destination + "\t" + e.duration + "\t" + e.airline + "\t" + (e.score < 0 ? "-" : String.valueOf(e.score)));
+	}
+	
 }
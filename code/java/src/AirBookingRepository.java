@@ -0,0 +1,120 @@
+/*
+ * Storage interface of the booking logic
+ * =============================
+ *
+ * The data access behind the menu operations, independent of where the
+ * data lives. PostgresRepository runs it against the database and
+ * InMemoryRepository against concurrent in-process structures.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface groups the reads and writes of passengers, airlines,
+ * flights, bookings and ratings. Implementations enforce the constraints of
+ * create.sql and report a violation with the SQLException, and SQLState, the
+ * database would raise:
+ *
+ *   23505  unique violation, e.g. a passport number registered twice
+ *   23503  foreign key violation, e.g. a booking of an unknown flight
+ *   23514  check violation, e.g. a score outside 0 to 5
+ *
+ * Listing methods return records of strings in the column order of the
+ * corresponding AirBooking query, so callers can print them the same way.
+ * Every method may be called from many threads at once.
+ *
+ */
+
+public interface AirBookingRepository extends AutoCloseable{
+	/** @return every airline keyed by airId */
+	Map<Integer, ReferenceData.Airline> airlines() throws SQLException;
+
+	/** @return every flight keyed by flightNum */
+	Map<String, ReferenceData.Flight> flights() throws SQLException;
+
+	/**
+	 * Inserts the flight, or updates it when the flight number exists.
+	 */
+	void saveFlight(ReferenceData.Flight flight) throws SQLException;
+
+	/**
+	 * Inserts a new flight; a flight number that exists is a unique violation.
+	 */
+	void addFlight(ReferenceData.Flight flight) throws SQLException;
+
+	/**
+	 * Registers a passenger.
+	 *
+	 * @return the new pID
+	 */
+	int addPassenger(String passNum, String fullName, java.sql.Date bdate, String country) throws SQLException;
+
+	/**
+	 * @return the pID of the passenger with that name and passport, or null
+	 */
+	Integer login(String fullName, String passNum) throws SQLException;
+
+	/**
+	 * @return the pID of a passenger with that full name, or null
+	 */
+	Integer findPassenger(String fullName) throws SQLException;
+
+	/** @return the number of seats booked on the flight that day */
+	int countBookedSeats(String flightNum, java.sql.Date departure) throws SQLException;
+
+	/** @return true when the passenger booked the flight that day */
+	boolean hasBooking(String flightNum, java.sql.Date departure, int pID) throws SQLException;
+
+	/** @return true when the passenger booked the flight on any day */
+	boolean hasFlown(int pID, String flightNum) throws SQLException;
+
+	/**
+	 * Books a seat. The capacity and duplicate checks and the insert are one
+	 * atomic step, so concurrent bookings never exceed Flight.seats.
+	 *
+	 * @return the bookRef, or null when the flight is full or the passenger
+	 *         already booked it that day
+	 */
+	String book(int pID, String flightNum, java.sql.Date departure) throws SQLException;
+
+	/**
+	 * Stores a rating.
+	 *
+	 * @return the new rID
+	 */
+	int addRating(int pID, String flightNum, int score, String comment) throws SQLException;
+
+	/**
+	 * @return records of (flightNum, airline, plane, duration, seats, booked, available)
+	 */
+	List<List<String>> searchFlights(String origin, String destination, java.sql.Date departure, boolean byAvailability) throws SQLException;
+
+	/**
+	 * @return records of (flightNum, origin, destination, plane, duration)
+	 */
+	List<List<String>> listFlights(String origin, String destination) throws SQLException;
+
+	/**
+	 * @return records of (destination, number of flights), the k most served first
+	 */
+	List<List<String>> mostPopularDestinations(int k) throws SQLException;
+
+	/**
+	 * @return records of (origin, destination, average score, flightNum), the k best first
+	 */
+	List<List<String>> highestRatedRoutes(int k) throws SQLException;
+
+	/**
+	 * @return records of (airline, flightNum, origin, destination, duration, plane), the k shortest first
+	 */
+	List<List<String>> flightsByDuration(String origin, String destination, int k) throws SQLException;
+
+	/**
+	 * Releases the resources of the implementation.
+	 */
+	void close() throws SQLException;
+}
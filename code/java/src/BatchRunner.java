@@ -0,0 +1,603 @@
+/*
+ * Scripted batch mode
+ * =============================
+ *
+ * Runs a file of menu commands without prompts: writes are grouped into
+ * transactions and sent as JDBC batches, reads run concurrently on the
+ * connection pool, and every command gets one machine-readable result.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs a command file, one command per line with tab-separated
+ * fields. Empty lines and lines starting with # are skipped.
+ *
+ *   passenger  passNum  fullName  bdate (mm/dd/yyyy)  country      1
+ *   book       passNum  flightNum  departure (yyyy-m-d)             2
+ *   review     passNum  flightNum  score  [comment]                 3
+ *   route      airId  flightNum  origin  destination  plane  seats  duration   4
+ *   flights    origin  destination                                  5
+ *   popular    k                                                    6
+ *   rated      k                                                    7
+ *   shortest   origin  destination  k                               8
+ *   seats      flightNum  departure                                 9
+ *   search     origin  destination  departure  [availability]       11
+ *
+ * Consecutive writes (the first four) form one transaction of at most
+ * batchSize commands. Within it, a run of commands of the same kind is one
+ * JDBC batch, so a transaction of passengers then bookings costs two round
+ * trips. The capacity, duplicate and has-flown checks are part of the
+ * INSERT ... SELECT statements, and the departures booked are locked up
+ * front, in a fixed order, with the same advisory locks PostgresRepository
+ * takes. A command that would violate a constraint is caught before it is
+ * sent or inserts nothing, so one bad line does not abort its transaction;
+ * when a transaction fails anyway its commands are retried one by one to
+ * find the failing line.
+ * A route line inserts a new flight or changes an existing one, which keeps
+ * its airline: a line naming another airId fails. Route changes are not
+ * blocked by existing bookings: the future bookings a changed flight leaves
+ * without a seat, found as FlightChange does, are listed under its line for
+ * rebooking. After a transaction with route lines the reference snapshot is
+ * reloaded, so the lines after it know the new flights and cities; seats
+ * reads the capacity from Flight, not from the snapshot.
+ *
+ * Consecutive reads run concurrently, one pooled connection each, after the
+ * writes before them are committed and before the writes after them start.
+ *
+ * Every command prints, in file order, one tab-separated line
+ *
+ *   <line> OK <command> [result]       bookRef, pID, rID or row count
+ *   <line> ROW <field> ...             each row of a read, and each future
+ *                                      booking a route change leaves without
+ *                                      a seat: flightNum, departure, bookRef,
+ *                                      pID, fullName, reason
+ *   <line> ERROR <command> <SQLState or -> <message>
+ *
+ */
+
+public class BatchRunner{
+	static final String INSERT_PASSENGER_SQL = "INSERT INTO Passenger (pID, passNum, fullName, bdate, country) VALUES (?, ?, ?, ?, ?) ON CONFLICT (passNum) DO NOTHING;";
+	//inserts nothing when the passenger is unknown, the flight full or the passenger booked that day
+	static final String INSERT_BOOKING_SQL = "INSERT INTO Booking (bookRef, departure, flightNum, pID) "
+		+ "SELECT ?, ?, F.flightNum, P.pID FROM Flight F, Passenger P WHERE F.flightNum = ? AND P.passNum = ? "
+		+ "AND (SELECT COUNT(*) FROM Booking B WHERE B.flightNum = F.flightNum AND B.departure = ?) < F.seats "
+		+ "AND NOT EXISTS (SELECT 1 FROM Booking B WHERE B.flightNum = F.flightNum AND B.departure = ? AND B.pID = P.pID) "
+		+ "FOR KEY SHARE OF F;";
+	//inserts nothing when the passenger is unknown or never booked the flight
+	static final String INSERT_RATING_SQL = "INSERT INTO Ratings (rID, pID, flightNum, score, comment) "
+		+ "SELECT ?, P.pID, ?, ?, ? FROM Passenger P WHERE P.passNum = ? "
+		+ "AND EXISTS (SELECT 1 FROM Booking B WHERE B.pID = P.pID AND B.flightNum = ?);";
+	static final String UPDATE_FLIGHT_SQL = "UPDATE Flight SET origin = ?, destination = ?, plane = ?, seats = ?, duration = ? WHERE flightNum = ?;";
+	static final String SEATS_SQL = "SELECT trim(F.flightNum), F.seats, COUNT(B.bookRef), F.seats - COUNT(B.bookRef) FROM Flight F "
+		+ "LEFT JOIN Booking B ON B.flightNum = F.flightNum AND B.departure = ? WHERE F.flightNum = ? GROUP BY F.flightNum, F.seats;";
+	static final String LOCK_DEPARTURES_SQL = "SELECT pg_advisory_xact_lock(hashtext(k)) FROM unnest(?::text[]) AS k;";
+
+	//the field count of each command, optional fields included
+	private static final Map<String, int[]> ARITY = new HashMap<String, int[]>();
+	private static final Set<String> WRITES = new HashSet<String>(Arrays.asList("passenger", "book", "review", "route"));
+	static{
+		ARITY.put("passenger", new int[]{4, 4});
+		ARITY.put("book", new int[]{3, 3});
+		ARITY.put("review", new int[]{3, 4});
+		ARITY.put("route", new int[]{7, 7});
+		ARITY.put("flights", new int[]{2, 2});
+		ARITY.put("popular", new int[]{1, 1});
+		ARITY.put("rated", new int[]{1, 1});
+		ARITY.put("shortest", new int[]{3, 3});
+		ARITY.put("seats", new int[]{2, 2});
+		ARITY.put("search", new int[]{3, 4});
+	}
+
+	/** One line of the command file and its outcome. */
+	private static final class Command{
+		final int line;
+		final String name;
+		final String[] args;
+		//parsed arguments of a write, set by prepare
+		Object[] params;
+		String result;
+		List<List<String>> rows;
+		String sqlState, error;
+
+		Command(int line, String name, String[] args){
+			this.line = line;
+			this.name = name;
+			this.args = args;
+		}
+
+		boolean isWrite(){
+			return WRITES.contains(this.name);
+		}
+
+		boolean failed(){
+			return this.error != null;
+		}
+
+		void fail(String sqlState, String message){
+			this.sqlState = sqlState;
+			this.error = message;
+		}
+	}
+
+	/** The counts of one run. */
+	public static final class Summary{
+		public int commands, failed, transactions, retried;
+		public long elapsedNanos;
+
+		public String toString(){
+			double seconds = this.elapsedNanos / 1e9;
+			return String.format("%d commands, %d failed, %d transactions (%d retried line by line), %.1f ms, %.0f commands/s",
+				this.commands, this.failed, this.transactions, this.retried, this.elapsedNanos / 1e6, seconds == 0 ? 0 : this.commands / seconds);
+		}
+	}
+
+	private final AirBooking _esql;
+	private final ConnectionPool _pool;
+	private final ExecutorService _readers;
+	private final PrintStream _out;
+	private final int _batchSize;
+	private final Summary _summary = new Summary();
+	private final List<Command> _errors = new ArrayList<Command>();
+	//flights named by route lines of the pending write group, which the reference snapshot does not know yet
+	private final Set<String> _routes = new HashSet<String>();
+
+	private BatchRunner(AirBooking esql, PrintStream out, int batchSize){
+		this._esql = esql;
+		this._pool = esql.getPool();
+		this._readers = Executors.newFixedThreadPool(this._pool.size());
+		this._out = out;
+		this._batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Runs every command of the file.
+	 *
+	 * @param esql an instance started with preload, whose pool and keys are used
+	 * @param in the command file
+	 * @param out receives the results, one line per command and row
+	 * @param err receives the error report and the summary
+	 * @param batchSize the largest number of writes per transaction
+	 * @return the counts of the run
+	 * @throws java.io.IOException when the command file cannot be read
+	 * @throws java.sql.SQLException when a connection fails
+	 */
+	public static Summary run(AirBooking esql, BufferedReader in, PrintStream out, PrintStream err, int batchSize) throws IOException, SQLException {
+		BatchRunner runner = new BatchRunner(esql, out, batchSize);
+		try{
+			runner.execute(in);
+		}finally{
+			runner._readers.shutdown();
+			out.flush();
+		}
+		for (Command c : runner._errors){
+			err.println("line " + c.line + ": " + c.name + ": " + c.error);
+		}
+		err.println("Batch: " + runner._summary);
+		return runner._summary;
+	}
+
+	private void execute(BufferedReader in) throws IOException, SQLException {
+		long start = System.nanoTime();
+		List<Command> group = new ArrayList<Command>();
+		boolean writes = false;
+		String text;
+		int lineNum = 0;
+		while ((text = in.readLine()) != null){
+			lineNum++;
+			if (text.trim().length() == 0 || text.startsWith("#")) continue;
+			Command c = parse(lineNum, text);
+			if (!group.isEmpty() && (c.isWrite() != writes || group.size() == this._batchSize)){
+				flush(group, writes);
+				group.clear();
+			}
+			//validated against the snapshot as it is after the writes before it
+			if (!c.failed() && c.isWrite()) prepare(c);
+			writes = c.isWrite();
+			group.add(c);
+		}
+		if (!group.isEmpty()) flush(group, writes);
+		this._summary.elapsedNanos = System.nanoTime() - start;
+	}
+
+	private Command parse(int lineNum, String text){
+		String[] fields = text.split("\t", -1);
+		String name = fields[0].trim().toLowerCase(java.util.Locale.ROOT);
+		Command c = new Command(lineNum, name, Arrays.copyOfRange(fields, 1, fields.length));
+		int[] arity = ARITY.get(name);
+		if (arity == null){
+			c.fail(null, "unknown command");
+		}
+		else if (c.args.length < arity[0] || c.args.length > arity[1]){
+			c.fail(null, "expected " + (arity[0] == arity[1] ? "" + arity[0] : arity[0] + " to " + arity[1]) + " fields after the command, found " + c.args.length);
+		}
+		for (int i = 0; i < c.args.length; i++) c.args[i] = c.args[i].trim();
+		return c;
+	}
+
+	//validates a write and converts its arguments, so that only statements that cannot fail are batched
+	private void prepare(Command c){
+		String[] a = c.args;
+		try{
+			switch (c.name){
+				case "passenger":
+					check(a[0], "passport number", 10);
+					check(a[1], "full name", 24);
+					check(a[3], "country", 24);
+					SimpleDateFormat format = new SimpleDateFormat("M/d/yyyy");
+					format.setLenient(false);
+					c.params = new Object[]{a[0], a[1], new java.sql.Date(format.parse(a[2]).getTime()), a[3]};
+					break;
+				case "book":
+					check(a[0], "passport number", 10);
+					c.params = new Object[]{a[0], knownFlight(a[1]), AirBooking.toSqlDate(a[2])};
+					break;
+				case "review":
+					check(a[0], "passport number", 10);
+					int score = Integer.parseInt(a[2]);
+					if (score < 0 || score > 5) throw new IllegalArgumentException("score must be between 0 and 5");
+					c.params = new Object[]{a[0], knownFlight(a[1]), score, a.length > 3 ? a[3] : null};
+					break;
+				case "route":
+					int airId = Integer.parseInt(a[0]);
+					if (this._esql.getReferenceData().airline(airId) == null) throw new IllegalArgumentException("unknown airline " + airId);
+					check(a[1], "flight number", 8);
+					check(a[2], "origin", 16);
+					check(a[3], "destination", 16);
+					check(a[4], "plane", 16);
+					int seats = Integer.parseInt(a[5]), duration = Integer.parseInt(a[6]);
+					if (seats <= 0 || seats >= 500) throw new IllegalArgumentException("seats must be between 1 and 499");
+					if (duration <= 0 || duration >= 24) throw new IllegalArgumentException("duration must be between 1 and 23");
+					c.params = new Object[]{airId, a[1], a[2], a[3], a[4], seats, duration};
+					this._routes.add(a[1]);
+					break;
+			}
+		}catch(NumberFormatException e){
+			c.fail(null, "not a number: " + e.getMessage());
+		}catch(IllegalArgumentException | ParseException e){
+			c.fail(null, e.getMessage());
+		}
+	}
+
+	private static void check(String value, String what, int maxLength){
+		if (value.length() == 0 || value.length() > maxLength) throw new IllegalArgumentException(what + " must have 1 to " + maxLength + " characters");
+	}
+
+	private String knownFlight(String flightNum){
+		ReferenceData.Flight f = this._esql.getReferenceData().flight(flightNum);
+		if (f != null) return f.flightNum;
+		if (this._routes.contains(flightNum)) return flightNum;
+		throw new IllegalArgumentException("unknown flight " + flightNum);
+	}
+
+	private void flush(List<Command> group, boolean writes) throws SQLException {
+		if (writes) executeWrites(group);
+		else executeReads(group);
+		for (Command c : group) print(c);
+		if (!this._routes.isEmpty()){
+			//batch mode runs no invalidation listener
+			this._esql.reloadFlights();
+			this._routes.clear();
+		}
+	}
+
+	private void executeWrites(List<Command> group) throws SQLException {
+		List<Command> valid = new ArrayList<Command>();
+		for (Command c : group){
+			if (!c.failed()) valid.add(c);
+		}
+		if (valid.isEmpty()) return;
+		Connection c = this._pool.borrow();
+		try{
+			c.setAutoCommit(false);
+			try{
+				applyWrites(c, valid);
+				c.commit();
+				this._summary.transactions++;
+			}catch(SQLException e){
+				//a statement failed and aborted the transaction; find the line by running them one by one
+				c.rollback();
+				this._summary.retried++;
+				for (Command cmd : valid){
+					cmd.result = null;
+					cmd.rows = null;
+					cmd.fail(null, null);
+					try{
+						applyWrites(c, java.util.Collections.singletonList(cmd));
+						c.commit();
+						this._summary.transactions++;
+					}catch(SQLException e2){
+						c.rollback();
+						cmd.fail(e2.getSQLState(), e2.getMessage());
+					}
+				}
+			}
+		}finally{
+			//release rolls back whatever is left and restores auto-commit
+			this._pool.release(c);
+		}
+	}
+
+	//runs the writes in order, one JDBC batch per run of the same command
+	private void applyWrites(Connection c, List<Command> writes) throws SQLException {
+		KeyAllocator keys = this._esql.getKeys();
+		TreeSet<String> departures = new TreeSet<String>();
+		for (Command cmd : writes){
+			if (cmd.name.equals("book")) departures.add(AirBooking.departureLockKey((String) cmd.params[1], (java.sql.Date) cmd.params[2]));
+		}
+		if (!departures.isEmpty()){
+			//sorted, so two batches locking overlapping departures cannot deadlock
+			Array array = c.createArrayOf("text", departures.toArray());
+			PreparedStatement lock = c.prepareStatement(LOCK_DEPARTURES_SQL);
+			try{
+				lock.setArray(1, array);
+				lock.executeQuery().close();
+			}finally{
+				lock.close();
+			}
+		}
+		//changed flights are locked after the departures, the order bookings take them in
+		Set<String> flightNums = new TreeSet<String>();
+		for (Command cmd : writes){
+			if (cmd.name.equals("route")) flightNums.add(((String) cmd.params[1]).trim());
+		}
+		Map<String, String[]> before = flightNums.isEmpty() ? null : FlightChange.lock(c, flightNums);
+		//the airline of every flight that exists at that point of the transaction
+		Map<String, Integer> airIds = new HashMap<String, Integer>();
+		if (before != null){
+			for (Map.Entry<String, String[]> e : before.entrySet()) airIds.put(e.getKey(), Integer.valueOf(e.getValue()[2].trim()));
+		}
+
+		int from = 0;
+		while (from < writes.size()){
+			String name = writes.get(from).name;
+			int to = from;
+			while (to < writes.size() && writes.get(to).name.equals(name)) to++;
+			List<Command> run = writes.subList(from, to);
+			if (name.equals("route")){
+				applyRoutes(c, run, airIds);
+				from = to;
+				continue;
+			}
+			PreparedStatement stmt = c.prepareStatement(sqlOf(name));
+			try{
+				for (Command cmd : run){
+					Object[] p = cmd.params;
+					switch (name){
+						case "passenger":
+							int pID = keys.nextPassengerId();
+							cmd.result = String.valueOf(pID);
+							stmt.setInt(1, pID);
+							stmt.setString(2, (String) p[0]);
+							stmt.setString(3, (String) p[1]);
+							stmt.setDate(4, (java.sql.Date) p[2]);
+							stmt.setString(5, (String) p[3]);
+							break;
+						case "book":
+							String bookRef = keys.nextBookRef();
+							cmd.result = bookRef;
+							stmt.setString(1, bookRef);
+							stmt.setDate(2, (java.sql.Date) p[2]);
+							stmt.setString(3, (String) p[1]);
+							stmt.setString(4, (String) p[0]);
+							stmt.setDate(5, (java.sql.Date) p[2]);
+							stmt.setDate(6, (java.sql.Date) p[2]);
+							break;
+						case "review":
+							int rID = keys.nextRatingId();
+							cmd.result = String.valueOf(rID);
+							stmt.setInt(1, rID);
+							stmt.setString(2, (String) p[1]);
+							stmt.setInt(3, (Integer) p[2]);
+							stmt.setString(4, (String) p[3]);
+							stmt.setString(5, (String) p[0]);
+							stmt.setString(6, (String) p[1]);
+							break;
+					}
+					stmt.addBatch();
+				}
+				int[] counts = stmt.executeBatch();
+				for (int i = 0; i < counts.length; i++){
+					if (counts[i] == 0) run.get(i).fail(null, noRowReason(name));
+				}
+			}finally{
+				stmt.close();
+			}
+			from = to;
+		}
+		if (before != null){
+			Map<String, Command> routes = new LinkedHashMap<String, Command>();
+			for (Command cmd : writes){
+				if (cmd.name.equals("route") && !cmd.failed()) routes.put(((String) cmd.params[1]).trim(), cmd);
+			}
+			reportAffected(c, routes, before);
+		}
+	}
+
+	//inserts the new flights, then updates the existing ones, so a flight both created and changed in the run is inserted first
+	private static void applyRoutes(Connection c, List<Command> run, Map<String, Integer> airIds) throws SQLException {
+		List<Command> inserts = new ArrayList<Command>(), updates = new ArrayList<Command>();
+		for (Command cmd : run){
+			Object[] p = cmd.params;
+			String flightNum = ((String) p[1]).trim();
+			Integer airId = airIds.get(flightNum);
+			if (airId == null){
+				airIds.put(flightNum, (Integer) p[0]);
+				inserts.add(cmd);
+			}
+			else if (airId.equals(p[0])){
+				updates.add(cmd);
+			}
+			else{
+				cmd.fail(null, "flight " + flightNum + " belongs to airline " + airId + ", which cannot be changed");
+				continue;
+			}
+			cmd.result = flightNum;
+		}
+		if (!inserts.isEmpty()){
+			PreparedStatement insert = c.prepareStatement(PostgresRepository.ADD_FLIGHT_SQL);
+			try{
+				for (Command cmd : inserts){
+					for (int i = 0; i < cmd.params.length; i++) insert.setObject(i + 1, cmd.params[i]);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}finally{
+				insert.close();
+			}
+		}
+		if (!updates.isEmpty()){
+			PreparedStatement update = c.prepareStatement(UPDATE_FLIGHT_SQL);
+			try{
+				for (Command cmd : updates){
+					Object[] p = cmd.params;
+					for (int i = 2; i < p.length; i++) update.setObject(i - 1, p[i]);
+					update.setObject(p.length - 1, p[1]);
+					update.addBatch();
+				}
+				update.executeBatch();
+			}finally{
+				update.close();
+			}
+		}
+	}
+
+	//lists the future bookings the route changes leave without a seat, under the last change of each flight
+	private static void reportAffected(Connection c, Map<String, Command> routes, Map<String, String[]> before) throws SQLException {
+		List<FlightChange.Route> changes = new ArrayList<FlightChange.Route>();
+		for (Command cmd : routes.values()){
+			Object[] p = cmd.params;
+			changes.add(new FlightChange.Route((String) p[1], (String) p[2], (String) p[3], (String) p[4], (Integer) p[5], (Integer) p[6]));
+		}
+		if (changes.isEmpty()) return;
+		for (FlightChange.Affected a : FlightChange.affected(c, changes, before)){
+			Command cmd = routes.get(a.flightNum);
+			if (cmd.rows == null) cmd.rows = new ArrayList<List<String>>();
+			cmd.rows.add(a.fields());
+		}
+	}
+
+	private static String sqlOf(String name){
+		switch (name){
+			case "passenger": return INSERT_PASSENGER_SQL;
+			case "book": return INSERT_BOOKING_SQL;
+			default: return INSERT_RATING_SQL;
+		}
+	}
+
+	private static String noRowReason(String name){
+		switch (name){
+			case "passenger": return "passport number already registered";
+			case "book": return "unknown passport number, flight full or already booked that day";
+			default: return "unknown passport number or the passenger did not book this flight";
+		}
+	}
+
+	private void executeReads(List<Command> group) throws SQLException {
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for (Command cmd : group){
+			if (cmd.failed()) continue;
+			running.add(this._readers.submit(() -> {
+				try{
+					Connection c = this._pool.borrow();
+					try{
+						cmd.rows = read(c, cmd);
+					}finally{
+						this._pool.release(c);
+					}
+				}catch(SQLException e){
+					cmd.fail(e.getSQLState(), e.getMessage());
+				}catch(IllegalArgumentException | ParseException e){
+					cmd.fail(null, e.getMessage());
+				}
+			}));
+		}
+		for (Future<?> f : running){
+			try{
+				f.get();
+			}catch(ExecutionException e){
+				throw new SQLException(e.getCause());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the reads");
+			}
+		}
+	}
+
+	private List<List<String>> read(Connection c, Command cmd) throws SQLException, ParseException {
+		String[] a = cmd.args;
+		switch (cmd.name){
+			case "flights":
+				return AirBooking.listFlights(c, city(a[0]), city(a[1]));
+			case "popular":
+				return AirBooking.mostPopularDestinations(c, Integer.parseInt(a[0]));
+			case "rated":
+				return AirBooking.highestRatedRoutes(c, Integer.parseInt(a[0]));
+			case "shortest":
+				return AirBooking.flightsByDuration(c, city(a[0]), city(a[1]), Integer.parseInt(a[2]));
+			case "seats":
+				//the capacity as committed, which a route line earlier in the file may have changed
+				List<List<String>> rows = AirBooking.executePreparedQueryAndReturnResult(c, SEATS_SQL, AirBooking.toSqlDate(a[1]), a[0]);
+				if (rows.isEmpty()) throw new IllegalArgumentException("unknown flight " + a[0]);
+				return rows;
+			default:
+				boolean byAvailability = a.length > 3 && a[3].equalsIgnoreCase("availability");
+				return AirBooking.searchFlights(c, city(a[0]), city(a[1]), AirBooking.toSqlDate(a[2]), byAvailability);
+		}
+	}
+
+	//the city as spelled in Flight when known, so the equality in the queries matches
+	private String city(String typed){
+		String city = this._esql.getReferenceData().cityIndex().find(typed);
+		return city == null ? typed : city;
+	}
+
+	private void print(Command c){
+		this._summary.commands++;
+		if (c.failed()){
+			this._summary.failed++;
+			this._errors.add(c);
+			this._out.println(c.line + "\tERROR\t" + c.name + "\t" + (c.sqlState == null ? "-" : c.sqlState) + "\t" + clean(c.error));
+			return;
+		}
+		if (c.rows == null){
+			this._out.println(c.line + "\tOK\t" + c.name + "\t" + c.result.trim());
+			return;
+		}
+		this._out.println(c.line + "\tOK\t" + c.name + "\t" + (c.result != null ? c.result.trim() : String.valueOf(c.rows.size())));
+		StringBuilder row = new StringBuilder();
+		for (List<String> r : c.rows){
+			row.setLength(0);
+			row.append(c.line).append("\tROW");
+			for (String field : r) row.append('\t').append(field == null ? "" : clean(field.trim()));
+			this._out.println(row);
+		}
+	}
+
+	private static String clean(String s){
+		return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
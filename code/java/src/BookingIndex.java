@@ -0,0 +1,409 @@
+/*
+ * In-memory membership index over Booking
+ * =============================
+ *
+ * Answers "has this passenger booked this flight on this date" and "has this
+ * passenger ever booked this flight" without a database round trip. The
+ * booked pIDs of every (flightNum, departure) are kept in a compressed
+ * bitmap, and every flight keeps the union of its dates.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class indexes the rows of Booking by flight and departure date. It is
+ * loaded once at startup, streamed through a cursor so the result set is
+ * never held in memory, and then kept current by BookFlight and by the
+ * Booking change events of the invalidation listener.
+ *
+ * The bitmaps follow the Roaring layout: a pID is split into its high and
+ * low 16 bits, and the low halves sharing a high half are stored in one
+ * container. A container holding up to 4096 values is a sorted char array,
+ * 2 bytes per booking; a denser one is a fixed 8 KB bitset. Lookups are a
+ * hash probe, a binary search over the few high halves in use and a search
+ * or bit test inside one container.
+ *
+ */
+
+public class BookingIndex{
+	//one 2^16 wide slice of the pID space
+	private abstract static class Container{
+		abstract boolean contains(char low);
+		//returns the container holding the result, which may be a new one
+		abstract Container add(char low);
+		abstract Container remove(char low);
+		abstract int cardinality();
+		abstract long bytes();
+	}
+
+	private static final int ARRAY_MAX = 4096;
+
+	private static final class ArrayContainer extends Container{
+		char[] values = new char[4];
+		int size;
+
+		boolean contains(char low){
+			return search(low) >= 0;
+		}
+
+		private int search(char low){
+			int lo = 0, hi = this.size - 1;
+			while (lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				char v = this.values[mid];
+				if (v < low) lo = mid + 1;
+				else if (v > low) hi = mid - 1;
+				else return mid;
+			}
+			return -(lo + 1);
+		}
+
+		Container add(char low){
+			int i = search(low);
+			if (i >= 0) return this;
+			if (this.size == ARRAY_MAX){
+				BitmapContainer bitmap = new BitmapContainer();
+				for (int j = 0; j < this.size; j++) bitmap.add(this.values[j]);
+				return bitmap.add(low);
+			}
+			i = -i - 1;
+			if (this.size == this.values.length){
+				char[] grown = new char[Math.min(ARRAY_MAX, this.values.length * 2)];
+				System.arraycopy(this.values, 0, grown, 0, this.size);
+				this.values = grown;
+			}
+			System.arraycopy(this.values, i, this.values, i + 1, this.size - i);
+			this.values[i] = low;
+			this.size++;
+			return this;
+		}
+
+		Container remove(char low){
+			int i = search(low);
+			if (i < 0) return this;
+			System.arraycopy(this.values, i + 1, this.values, i, this.size - i - 1);
+			this.size--;
+			return this;
+		}
+
+		int cardinality(){
+			return this.size;
+		}
+
+		long bytes(){
+			return 24 + 16 + 2L * this.values.length;
+		}
+	}
+
+	private static final class BitmapContainer extends Container{
+		final long[] words = new long[1 << 10];
+		int cardinality;
+
+		boolean contains(char low){
+			return (this.words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		Container add(char low){
+			long bit = 1L << low;
+			if ((this.words[low >>> 6] & bit) == 0){
+				this.words[low >>> 6] |= bit;
+				this.cardinality++;
+			}
+			return this;
+		}
+
+		Container remove(char low){
+			long bit = 1L << low;
+			if ((this.words[low >>> 6] & bit) == 0) return this;
+			this.words[low >>> 6] &= ~bit;
+			this.cardinality--;
+			if (this.cardinality > ARRAY_MAX) return this;
+			//sparse again, back to the compact form
+			ArrayContainer array = new ArrayContainer();
+			array.values = new char[ARRAY_MAX];
+			for (int w = 0; w < this.words.length; w++){
+				long word = this.words[w];
+				while (word != 0){
+					array.values[array.size++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return array;
+		}
+
+		int cardinality(){
+			return this.cardinality;
+		}
+
+		long bytes(){
+			return 24 + 16 + 8L * this.words.length;
+		}
+	}
+
+	/**
+	 * A compressed set of pIDs.
+	 */
+	static final class PidBitmap{
+		private char[] highs = new char[1];
+		private Container[] containers = new Container[1];
+		private int size;
+
+		private int search(char high){
+			int lo = 0, hi = this.size - 1;
+			while (lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				char v = this.highs[mid];
+				if (v < high) lo = mid + 1;
+				else if (v > high) hi = mid - 1;
+				else return mid;
+			}
+			return -(lo + 1);
+		}
+
+		boolean contains(int pID){
+			int i = search((char) (pID >>> 16));
+			return i >= 0 && this.containers[i].contains((char) pID);
+		}
+
+		/** @return true when the pID was not in the set yet */
+		boolean add(int pID){
+			char high = (char) (pID >>> 16);
+			int i = search(high);
+			if (i < 0){
+				i = -i - 1;
+				if (this.size == this.highs.length){
+					int grown = this.highs.length * 2;
+					this.highs = java.util.Arrays.copyOf(this.highs, grown);
+					this.containers = java.util.Arrays.copyOf(this.containers, grown);
+				}
+				System.arraycopy(this.highs, i, this.highs, i + 1, this.size - i);
+				System.arraycopy(this.containers, i, this.containers, i + 1, this.size - i);
+				this.highs[i] = high;
+				this.containers[i] = new ArrayContainer();
+				this.size++;
+			}
+			Container c = this.containers[i];
+			int before = c.cardinality();
+			this.containers[i] = c.add((char) pID);
+			return this.containers[i].cardinality() != before;
+		}
+
+		/** @return true when the pID was in the set */
+		boolean remove(int pID){
+			int i = search((char) (pID >>> 16));
+			if (i < 0) return false;
+			Container c = this.containers[i];
+			int before = c.cardinality();
+			c = c.remove((char) pID);
+			if (c.cardinality() == before) return false;
+			if (c.cardinality() == 0){
+				System.arraycopy(this.highs, i + 1, this.highs, i, this.size - i - 1);
+				System.arraycopy(this.containers, i + 1, this.containers, i, this.size - i - 1);
+				this.size--;
+				this.containers[this.size] = null;
+			}
+			else this.containers[i] = c;
+			return true;
+		}
+
+		boolean isEmpty(){
+			return this.size == 0;
+		}
+
+		/** @return whether the container of the pID is a bitset rather than an array */
+		boolean isDense(int pID){
+			int i = search((char) (pID >>> 16));
+			return i >= 0 && this.containers[i] instanceof BitmapContainer;
+		}
+
+		long bytes(){
+			long bytes = 24 + 16 + 2L * this.highs.length + 16 + 4L * this.containers.length;
+			for (int i = 0; i < this.size; i++) bytes += this.containers[i].bytes();
+			return bytes;
+		}
+	}
+
+	//the bitmaps of one flight
+	private static final class FlightBookings{
+		final PidBitmap union = new PidBitmap();
+		final Map<Integer, PidBitmap> byDate = new HashMap<Integer, PidBitmap>();
+	}
+
+	static final String LOAD_SQL = "SELECT flightNum, departure, pID FROM Booking;";
+
+	private Map<String, FlightBookings> _flights = new HashMap<String, FlightBookings>();
+	private long _bookings;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Replaces the contents of the index with the rows of Booking. Lookups
+	 * keep seeing the previous contents until the load completes.
+	 *
+	 * @param c the connection to read from; its auto-commit is switched off
+	 *          while the cursor is open
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void load(Connection c, int fetchSize) throws SQLException {
+		Map<String, FlightBookings> flights = new HashMap<String, FlightBookings>();
+		long bookings = 0;
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		PreparedStatement stmt = c.prepareStatement(LOAD_SQL);
+		try{
+			stmt.setFetchSize(fetchSize);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				if (add(flights, rs.getString(1).trim(), day(rs.getDate(2)), rs.getInt(3))) bookings++;
+			}
+		}finally{
+			stmt.close();
+			c.rollback();
+			c.setAutoCommit(autoCommit);
+		}
+		this._lock.writeLock().lock();
+		try{
+			this._flights = flights;
+			this._bookings = bookings;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	private static int day(java.sql.Date departure){
+		return (int) departure.toLocalDate().toEpochDay();
+	}
+
+	private static boolean add(Map<String, FlightBookings> flights, String flightNum, int day, int pID){
+		FlightBookings f = flights.get(flightNum);
+		if (f == null){
+			f = new FlightBookings();
+			flights.put(flightNum, f);
+		}
+		PidBitmap date = f.byDate.get(day);
+		if (date == null){
+			date = new PidBitmap();
+			f.byDate.put(day, date);
+		}
+		if (!date.add(pID)) return false;
+		f.union.add(pID);
+		return true;
+	}
+
+	/**
+	 * Records a booking, e.g. right after BookFlight inserted it.
+	 */
+	public void add(String flightNum, java.sql.Date departure, int pID){
+		this._lock.writeLock().lock();
+		try{
+			if (add(this._flights, flightNum.trim(), day(departure), pID)) this._bookings++;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets a booking, e.g. after a cancellation.
+	 */
+	public void remove(String flightNum, java.sql.Date departure, int pID){
+		this._lock.writeLock().lock();
+		try{
+			String key = flightNum.trim();
+			FlightBookings f = this._flights.get(key);
+			if (f == null) return;
+			int day = day(departure);
+			PidBitmap date = f.byDate.get(day);
+			if (date == null || !date.remove(pID)) return;
+			this._bookings--;
+			if (date.isEmpty()) f.byDate.remove(day);
+			//the passenger keeps the flight in the union while another date is booked
+			for (PidBitmap other : f.byDate.values()){
+				if (other.contains(pID)) return;
+			}
+			f.union.remove(pID);
+			if (f.byDate.isEmpty()) this._flights.remove(key);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true when the passenger booked the flight on that date
+	 */
+	public boolean contains(String flightNum, java.sql.Date departure, int pID){
+		this._lock.readLock().lock();
+		try{
+			FlightBookings f = this._flights.get(flightNum.trim());
+			if (f == null) return false;
+			PidBitmap date = f.byDate.get(day(departure));
+			return date != null && date.contains(pID);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true when the passenger booked the flight on any date
+	 */
+	public boolean hasFlown(int pID, String flightNum){
+		this._lock.readLock().lock();
+		try{
+			FlightBookings f = this._flights.get(flightNum.trim());
+			return f != null && f.union.contains(pID);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/** @return the number of bookings indexed */
+	public long size(){
+		this._lock.readLock().lock();
+		try{
+			return this._bookings;
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Estimates the heap retained by the index: the containers, the bitmap
+	 * headers and the hash map entries, with the usual 64-bit JVM object
+	 * sizes and compressed references.
+	 *
+	 * @return the estimated size in bytes
+	 */
+	public long estimatedBytes(){
+		this._lock.readLock().lock();
+		try{
+			long bytes = 48;
+			for (Map.Entry<String, FlightBookings> e : this._flights.entrySet()){
+				//map entry, key string and the per-flight holder
+				bytes += 32 + 56 + 64;
+				FlightBookings f = e.getValue();
+				bytes += f.union.bytes();
+				for (PidBitmap date : f.byDate.values()) bytes += 32 + 16 + date.bytes();
+			}
+			return bytes;
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a one-line summary of the size and memory footprint
+	 */
+	public String stats(){
+		long bookings = size();
+		long bytes = estimatedBytes();
+		double perMillion = bookings == 0 ? 0 : bytes * 1e6 / bookings;
+		return String.format("%d bookings, %.1f KB, %.1f MB per million bookings", bookings, bytes / 1024.0, perMillion / (1024 * 1024));
+	}
+}
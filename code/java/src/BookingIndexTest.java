@@ -0,0 +1,91 @@
+/*
+ * BookingIndex tests
+ * =============================
+ *
+ * Checks the bitmap containers of BookingIndex around the 4096 value switch
+ * between the array and the bitset form.
+ *
+ */
+
+
+/** Tests the PidBitmap containers and the per-flight union of BookingIndex. */
+
+public class BookingIndexTest{
+	//pIDs sharing one container, spread over its 2^16 low values
+	private static final int BASE = 3 << 16;
+
+	private BookingIndexTest(){
+	}
+
+	private static int pid(int i){
+		return BASE + i * 13;
+	}
+
+	private static void arrayToBitmap(){
+		BookingIndex.PidBitmap set = new BookingIndex.PidBitmap();
+		for (int i = 4095; i >= 0; i--) Checks.check(set.add(pid(i)), "add " + i);
+		Checks.check(!set.isDense(BASE), "4096 values stay an array");
+		Checks.check(!set.add(pid(17)), "adding a present value reports no change");
+		Checks.check(!set.isDense(BASE), "a duplicate at 4096 does not convert");
+		Checks.check(set.add(pid(4096)), "add the 4097th value");
+		Checks.check(set.isDense(BASE), "4097 values are a bitset");
+		for (int i = 0; i <= 4096; i++) Checks.check(set.contains(pid(i)), "bitset keeps " + i);
+		Checks.check(!set.contains(pid(4096) + 1), "bitset has no extra value");
+		Checks.check(!set.contains(pid(0) - 1), "bitset has no value below the first");
+	}
+
+	private static void bitmapToArray(){
+		BookingIndex.PidBitmap set = new BookingIndex.PidBitmap();
+		for (int i = 0; i <= 4096; i++) set.add(pid(i));
+		Checks.check(!set.remove(pid(5) + 1), "removing an absent value reports no change");
+		Checks.check(set.isDense(BASE), "still a bitset");
+		Checks.check(set.remove(pid(2000)), "remove down to 4096");
+		Checks.check(!set.isDense(BASE), "4096 values are an array again");
+		Checks.check(!set.contains(pid(2000)), "removed value is gone");
+		//the binary search only finds values when the array came back sorted
+		for (int i = 0; i <= 4096; i++){
+			if (i != 2000) Checks.check(set.contains(pid(i)), "array keeps " + i);
+		}
+		Checks.check(set.add(pid(2000)), "add back the 4097th value");
+		Checks.check(set.isDense(BASE), "and convert again");
+		for (int i = 0; i <= 4096; i++) Checks.check(set.remove(pid(i)), "remove " + i);
+		Checks.check(set.isEmpty(), "empty once every value is removed");
+		Checks.check(!set.contains(pid(0)), "nothing left");
+	}
+
+	private static void containerBoundaries(){
+		BookingIndex.PidBitmap set = new BookingIndex.PidBitmap();
+		int[] pIDs = {0, 65535, 65536, 131071, 7 << 16, Integer.MAX_VALUE};
+		for (int p : pIDs) Checks.check(set.add(p), "add " + p);
+		for (int p : pIDs) Checks.check(set.contains(p), "contains " + p);
+		Checks.check(!set.contains(1) && !set.contains(65537), "other values are absent");
+		Checks.check(set.remove(65535), "remove the last low value of the first container");
+		Checks.check(set.contains(0) && set.contains(65536), "neighbouring containers are kept");
+		Checks.check(!set.contains(65535), "removed value is gone");
+	}
+
+	private static void index(){
+		BookingIndex index = new BookingIndex();
+		java.sql.Date june1 = java.sql.Date.valueOf("2017-06-01"), june2 = java.sql.Date.valueOf("2017-06-02");
+		for (int i = 0; i <= 4096; i++) index.add("AA123", june1, pid(i));
+		index.add("AA123   ", june2, pid(0));
+		index.add("AA123", june1, pid(0));
+		Checks.check(index.size() == 4098, "duplicates are not counted");
+		Checks.check(index.contains("AA123", june1, pid(4096)), "contains on the dense date");
+		Checks.check(!index.contains("AA123", june2, pid(1)), "dates are separate");
+		Checks.check(index.hasFlown(pid(1), "AA123"), "union holds the flight");
+		index.remove("AA123", june1, pid(0));
+		Checks.check(index.hasFlown(pid(0), "AA123"), "another date keeps the passenger in the union");
+		index.remove("AA123", june2, pid(0));
+		Checks.check(!index.hasFlown(pid(0), "AA123"), "union drops the passenger with the last date");
+		Checks.check(index.size() == 4096, "removals are counted");
+	}
+
+	public static void main(String[] args){
+		arrayToBitmap();
+		bitmapToArray();
+		containerBoundaries();
+		index();
+		Checks.passed(BookingIndexTest.class);
+	}
+}
@@ -0,0 +1,701 @@
+/*
+ * HTTP/JSON interface to the menu operations
+ * =============================
+ *
+ * Serves the AirBooking operations to many clients at once over HTTP, next
+ * to the interactive menu, with the JDK's built-in server and no further
+ * dependencies.
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is an embedded HTTP server exposing the menu operations as JSON
+ * endpoints:
+ *
+ *   POST /passengers            1  {passNum, fullName, bdate (mm/dd/yyyy), country}
+ *   POST /bookings              2  {fullName, passNum, flightNum, departure (yyyy-m-d)}
+ *   POST /ratings               3  {fullName, passNum, flightNum, score, comment}
+ *   PUT  /flights/{flightNum}   4  {airId, origin, destination, plane, seats, duration} ?force=true
+ *   GET  /flights               5  ?origin=&destination=
+ *   GET  /destinations          6  ?k=
+ *   GET  /routes                7  ?k=
+ *   GET  /flights/shortest      8  ?origin=&destination=&k=
+ *   GET  /seats                 9  ?flightNum=&departure=
+ *   GET  /search                11 ?origin=&destination=&departure=&sort=duration|availability
+ *   GET  /metrics                  per endpoint counts and latency percentiles
+ *
+ * Every request runs on its own thread: a virtual thread when the JVM has
+ * them (Java 21 and later), otherwise one of a fixed set of platform threads.
+ * At most maxInFlight requests are admitted; the rest are answered 503 on
+ * the accepting thread without queueing. The server has its own connection
+ * pool, whose connections carry a statement_timeout, and a request waits at
+ * most the same time for a connection, so a slow database or an exhausted
+ * pool turns into 504 and 503 answers instead of a growing backlog.
+ *
+ * Writes go through PostgresRepository, so concurrent bookings of the last
+ * seat are serialized in the database. A new flight is inserted; an
+ * existing one is changed through FlightChange, which answers 409 with the
+ * passengers that would lose their seat unless force is set, and otherwise
+ * lists the passengers to rebook with the change. Reviews go to the write-behind
+ * pipeline of the AirBooking instance and are answered 202. Reads of
+ * flights, airlines and cities use its reference snapshot, which the
+ * invalidation listener keeps current.
+ *
+ */
+
+public class BookingServer{
+	//a request admitted beyond maxInFlight runs inline on the accepting thread with this set
+	private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<Boolean>();
+	private static final int MAX_BODY_BYTES = 64 * 1024;
+
+	/** An answer to a request. */
+	private static final class Response{
+		final int status;
+		final String body;
+
+		Response(int status, String body){
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/** A request that cannot be served, answered with its status. */
+	private static final class HttpError extends Exception{
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		HttpError(int status, String message){
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private interface Endpoint{
+		Response call(HttpExchange exchange) throws Exception;
+	}
+
+	/** Counters and latencies of one endpoint. */
+	private static final class EndpointStats{
+		private final LoadGenerator.Histogram _latency = new LoadGenerator.Histogram();
+		private long _ok, _clientErrors, _serverErrors, _rejected, _timeouts;
+
+		synchronized void record(int status, long nanos){
+			this._latency.record(nanos);
+			if (status == 503) this._rejected++;
+			else if (status == 504) this._timeouts++;
+			else if (status >= 500) this._serverErrors++;
+			else if (status >= 400) this._clientErrors++;
+			else this._ok++;
+		}
+
+		synchronized String toJson(){
+			return String.format(java.util.Locale.ROOT, "{\"count\":%d,\"ok\":%d,\"clientErrors\":%d,\"serverErrors\":%d,\"rejected\":%d,\"timeouts\":%d,"
+				+ "\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p95Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+				this._latency.count(), this._ok, this._clientErrors, this._serverErrors, this._rejected, this._timeouts,
+				this._latency.meanMillis(), this._latency.percentileMillis(50), this._latency.percentileMillis(95),
+				this._latency.percentileMillis(99), this._latency.maxMillis());
+		}
+	}
+
+	private final AirBooking _esql;
+	private final ConnectionPool _pool;
+	private final PostgresRepository _repository;
+	private final long _timeoutMillis;
+	private final int _maxInFlight;
+	private final Semaphore _inFlight;
+	private final ExecutorService _workers;
+	private final HttpServer _server;
+	private final Map<String, Endpoint> _routes = new HashMap<String, Endpoint>();
+	private final ConcurrentHashMap<String, EndpointStats> _stats = new ConcurrentHashMap<String, EndpointStats>();
+
+	/**
+	 * Binds the port and starts serving.
+	 *
+	 * @param esql the instance whose reference data, booking index and review
+	 *        pipeline the server shares
+	 * @param pool the connections of the server; they are given a
+	 *        statement_timeout and closed by stop
+	 * @param port the port to listen on, 0 for any free port
+	 * @param maxInFlight the number of requests admitted at once
+	 * @param timeoutMillis the statement timeout and the longest wait for a connection
+	 * @param platformThreads the worker threads when virtual threads are not available
+	 * @throws java.sql.SQLException when the statement timeout cannot be set
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public BookingServer(AirBooking esql, ConnectionPool pool, int port, int maxInFlight, long timeoutMillis, int platformThreads) throws SQLException, IOException {
+		this._esql = esql;
+		this._pool = pool;
+		this._timeoutMillis = timeoutMillis;
+		this._maxInFlight = maxInFlight;
+		this._inFlight = new Semaphore(maxInFlight);
+		setStatementTimeout(pool, timeoutMillis);
+		this._repository = new PostgresRepository(pool, esql.getKeys(), timeoutMillis);
+
+		this._routes.put("POST /passengers", this::addPassenger);
+		this._routes.put("POST /bookings", this::bookFlight);
+		this._routes.put("POST /ratings", this::rateFlight);
+		this._routes.put("PUT /flights/{}", this::saveFlight);
+		this._routes.put("GET /flights", this::listFlights);
+		this._routes.put("GET /destinations", this::popularDestinations);
+		this._routes.put("GET /routes", this::highestRatedRoutes);
+		this._routes.put("GET /flights/shortest", this::flightsByDuration);
+		this._routes.put("GET /seats", this::availableSeats);
+		this._routes.put("GET /search", this::searchFlights);
+		this._routes.put("GET /metrics", exchange -> new Response(200, metrics()));
+
+		this._workers = newWorkers(platformThreads);
+		this._server = HttpServer.create(new InetSocketAddress(port), maxInFlight);
+		this._server.createContext("/", this::handle);
+		this._server.setExecutor(new Executor(){
+			public void execute(Runnable exchange){ admit(exchange); }
+		});
+		this._server.start();
+	}
+
+	/**
+	 * @return a virtual thread per task executor when the JVM provides one,
+	 *         otherwise a fixed pool of platform threads
+	 */
+	private static ExecutorService newWorkers(int platformThreads){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException e){
+			return Executors.newFixedThreadPool(platformThreads);
+		}
+	}
+
+	private static void setStatementTimeout(ConnectionPool pool, long timeoutMillis) throws SQLException {
+		ConnectionPool.Initializer init = c -> {
+			Statement stmt = c.createStatement();
+			try{
+				stmt.execute("SET statement_timeout = " + timeoutMillis + ";");
+			}finally{
+				stmt.close();
+			}
+		};
+		//connections reopened after a database restart get it too
+		pool.setInitializer(init);
+		List<Connection> all = new ArrayList<Connection>();
+		try{
+			for (int i = 0; i < pool.size(); ++i) all.add(pool.borrow());
+			for (Connection c : all) init.init(c);
+		}finally{
+			for (Connection c : all) pool.release(c);
+		}
+	}
+
+	private void admit(Runnable exchange){
+		if (this._inFlight.tryAcquire()){
+			try{
+				this._workers.execute(() -> {
+					try{
+						exchange.run();
+					}finally{
+						this._inFlight.release();
+					}
+				});
+				return;
+			}catch(RejectedExecutionException e){
+				//stopping
+				this._inFlight.release();
+			}
+		}
+		REJECTED.set(Boolean.TRUE);
+		try{
+			exchange.run();
+		}finally{
+			REJECTED.remove();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		String path = exchange.getRequestURI().getPath();
+		String name = exchange.getRequestMethod() + " " + path;
+		Endpoint endpoint = this._routes.get(name);
+		int slash = path.lastIndexOf('/');
+		if (endpoint == null && slash > 0){
+			name = exchange.getRequestMethod() + " " + path.substring(0, slash) + "/{}";
+			endpoint = this._routes.get(name);
+		}
+		Response response;
+		if (endpoint == null){
+			name = "unknown";
+			response = error(404, "No such endpoint: " + exchange.getRequestMethod() + " " + path);
+		}
+		else if (REJECTED.get() != null){
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			response = error(503, "Too many requests in flight");
+		}
+		else{
+			response = call(endpoint, exchange);
+		}
+		try{
+			byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(response.status, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}finally{
+			exchange.close();
+			stats(name).record(response.status, System.nanoTime() - start);
+		}
+	}
+
+	private static Response call(Endpoint endpoint, HttpExchange exchange){
+		try{
+			return endpoint.call(exchange);
+		}catch(HttpError e){
+			return error(e.status, e.getMessage());
+		}catch(IllegalArgumentException | ParseException e){
+			return error(400, e.getMessage());
+		}catch(SQLException e){
+			String state = e.getSQLState() == null ? "" : e.getSQLState();
+			switch (state){
+				case "23505": return error(409, e.getMessage());
+				case "23503": return error(404, e.getMessage());
+				case "23514": case "22001": case "22007": case "22008": return error(400, e.getMessage());
+				case "57014": return error(504, "Statement timed out");
+				case "57P03": return error(503, e.getMessage());
+				default: return error(500, e.getMessage());
+			}
+		}catch(Exception e){
+			return error(500, String.valueOf(e.getMessage()));
+		}
+	}
+
+	private EndpointStats stats(String name){
+		EndpointStats s = this._stats.get(name);
+		if (s == null){
+			EndpointStats created = new EndpointStats();
+			s = this._stats.putIfAbsent(name, created);
+			if (s == null) s = created;
+		}
+		return s;
+	}
+
+	/**
+	 * @return the counters and latency percentiles of every endpoint, as JSON
+	 */
+	public String metrics(){
+		StringBuilder json = new StringBuilder();
+		json.append("{\"inFlight\":").append(this._maxInFlight - this._inFlight.availablePermits())
+			.append(",\"maxInFlight\":").append(this._maxInFlight)
+			.append(",\"connections\":").append(this._pool.size())
+			.append(",\"timeoutMs\":").append(this._timeoutMillis)
+			.append(",\"endpoints\":{");
+		boolean first = true;
+		for (Map.Entry<String, EndpointStats> e : new TreeMap<String, EndpointStats>(this._stats).entrySet()){
+			if (!first) json.append(',');
+			first = false;
+			json.append(quote(e.getKey())).append(':').append(e.getValue().toJson());
+		}
+		return json.append("}}").toString();
+	}
+
+	/** @return the port the server listens on */
+	public int port(){
+		return this._server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to delaySeconds for those in flight
+	 * and closes the connection pool.
+	 */
+	public void stop(int delaySeconds){
+		this._server.stop(delaySeconds);
+		this._workers.shutdown();
+		try{
+			this._workers.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		this._pool.close();
+	}
+
+	//1
+	private Response addPassenger(HttpExchange exchange) throws Exception {
+		Map<String, String> body = body(exchange);
+		String passNum = required(body, "passNum", 10);
+		String fullName = required(body, "fullName", 24);
+		String country = required(body, "country", 24);
+		SimpleDateFormat format = new SimpleDateFormat("M/d/yyyy");
+		format.setLenient(false);
+		java.sql.Date bdate = new java.sql.Date(format.parse(required(body, "bdate", 10)).getTime());
+		int pID = this._repository.addPassenger(passNum, fullName, bdate, country);
+		return new Response(201, "{\"pID\":" + pID + "}");
+	}
+
+	//2
+	private Response bookFlight(HttpExchange exchange) throws Exception {
+		Map<String, String> body = body(exchange);
+		int pID = passenger(body);
+		ReferenceData.Flight flight = flight(required(body, "flightNum", 8));
+		java.sql.Date departure = AirBooking.toSqlDate(required(body, "departure", 10));
+		BookingIndex bookings = this._esql.getBookingIndex();
+		if (bookings.contains(flight.flightNum, departure, pID)) throw new HttpError(409, "The passenger already booked this flight that day");
+		String bookRef = this._repository.book(pID, flight.flightNum, departure);
+		if (bookRef == null) throw new HttpError(409, "The flight is full or the passenger already booked it that day");
+		bookings.add(flight.flightNum, departure, pID);
+		return new Response(201, "{\"bookRef\":" + quote(bookRef) + ",\"flightNum\":" + quote(flight.flightNum) + ",\"departure\":" + quote(departure.toString()) + "}");
+	}
+
+	//3
+	private Response rateFlight(HttpExchange exchange) throws Exception {
+		Map<String, String> body = body(exchange);
+		int pID = passenger(body);
+		ReferenceData.Flight flight = flight(required(body, "flightNum", 8));
+		int score = Integer.parseInt(required(body, "score", 1));
+		if (score < 0 || score > 5) throw new IllegalArgumentException("score must be between 0 and 5");
+		String comment = body.get("comment");
+		ReviewIngestor reviews = this._esql.getReviewIngestor();
+		if (reviews == null){
+			if (!this._repository.hasFlown(pID, flight.flightNum)) throw new HttpError(403, "The passenger did not book this flight");
+			int rID = this._repository.addRating(pID, flight.flightNum, score, comment);
+			return new Response(201, "{\"rID\":" + rID + "}");
+		}
+		Connection c = borrow();
+		try{
+			if (!reviews.hasFlown(c, pID, flight.flightNum)) throw new HttpError(403, "The passenger did not book this flight");
+		}finally{
+			this._pool.release(c);
+		}
+		long seq = reviews.submit(pID, flight.flightNum, score, comment);
+		return new Response(202, "{\"seq\":" + seq + "}");
+	}
+
+	//4
+	private Response saveFlight(HttpExchange exchange) throws Exception {
+		String path = exchange.getRequestURI().getPath();
+		String flightNum = path.substring(path.lastIndexOf('/') + 1).trim();
+		if (flightNum.length() == 0 || flightNum.length() > 8) throw new IllegalArgumentException("flightNum must have 1 to 8 characters");
+		Map<String, String> body = body(exchange);
+		int airId = Integer.parseInt(required(body, "airId", 10));
+		if (this._esql.getReferenceData().airline(airId) == null) throw new HttpError(404, "Unknown airline " + airId);
+		int seats = Integer.parseInt(required(body, "seats", 10));
+		int duration = Integer.parseInt(required(body, "duration", 10));
+		if (seats <= 0 || seats >= 500) throw new IllegalArgumentException("seats must be between 1 and 499");
+		if (duration <= 0 || duration >= 24) throw new IllegalArgumentException("duration must be between 1 and 23");
+		ReferenceData.Flight flight = new ReferenceData.Flight(airId, flightNum, required(body, "origin", 16),
+			required(body, "destination", 16), required(body, "plane", 16), seats, duration);
+		//the reference snapshot follows through the invalidation listener
+		ReferenceData.Flight current = this._esql.getReferenceData().flight(flightNum);
+		if (current == null){
+			try{
+				this._repository.addFlight(flight);
+				return new Response(200, "{\"flightNum\":" + quote(flightNum) + ",\"passengers\":[]}");
+			}catch(SQLException e){
+				//created by another client since the snapshot was taken: change it instead
+				if (!"23505".equals(e.getSQLState())) throw e;
+			}
+		}
+		else if (current.airId != airId){
+			throw new HttpError(409, "Flight " + flightNum + " belongs to airline " + current.airId + ", which cannot be changed");
+		}
+		//bookings on the future departures are checked in the same transaction as the update
+		List<FlightChange.Route> change = Collections.singletonList(new FlightChange.Route(flightNum, flight.origin, flight.destination, flight.plane, seats, duration));
+		boolean force = "true".equals(query(exchange).get("force"));
+		FlightChange.Result result;
+		Connection c = borrow();
+		try{
+			result = FlightChange.apply(c, change, force);
+		}finally{
+			this._pool.release(c);
+		}
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (FlightChange.Affected a : result.passengers) rows.add(a.fields());
+		String passengers = records(rows, "flightNum", "departure", "bookRef", "#pID", "fullName", "reason");
+		if (!result.applied){
+			return new Response(409, "{\"error\":" + quote("With " + seats + " seats, " + result.overbookedDepartures
+				+ " future departure(s) would have more bookings than seats; repeat with ?force=true to change the flight anyway")
+				+ ",\"passengers\":" + passengers + "}");
+		}
+		this._esql.invalidateQueryCache("Flight");
+		return new Response(200, "{\"flightNum\":" + quote(flightNum) + ",\"passengers\":" + passengers + "}");
+	}
+
+	//5
+	private Response listFlights(HttpExchange exchange) throws Exception {
+		Map<String, String> query = query(exchange);
+		return new Response(200, records(this._repository.listFlights(city(query, "origin"), city(query, "destination")),
+			"flightNum", "origin", "destination", "plane", "#duration"));
+	}
+
+	//6
+	private Response popularDestinations(HttpExchange exchange) throws Exception {
+		return new Response(200, records(this._repository.mostPopularDestinations(limit(query(exchange))),
+			"destination", "#flights"));
+	}
+
+	//7
+	private Response highestRatedRoutes(HttpExchange exchange) throws Exception {
+		return new Response(200, records(this._repository.highestRatedRoutes(limit(query(exchange))),
+			"origin", "destination", "#averageScore", "flightNum"));
+	}
+
+	//8
+	private Response flightsByDuration(HttpExchange exchange) throws Exception {
+		Map<String, String> query = query(exchange);
+		return new Response(200, records(this._repository.flightsByDuration(city(query, "origin"), city(query, "destination"), limit(query)),
+			"airline", "flightNum", "origin", "destination", "#duration", "plane"));
+	}
+
+	//9
+	private Response availableSeats(HttpExchange exchange) throws Exception {
+		Map<String, String> query = query(exchange);
+		ReferenceData.Flight flight = flight(required(query, "flightNum", 8));
+		java.sql.Date departure = AirBooking.toSqlDate(required(query, "departure", 10));
+		int booked = this._repository.countBookedSeats(flight.flightNum, departure);
+		return new Response(200, "{\"flightNum\":" + quote(flight.flightNum) + ",\"departure\":" + quote(departure.toString())
+			+ ",\"seats\":" + flight.seats + ",\"booked\":" + booked + ",\"available\":" + (flight.seats - booked) + "}");
+	}
+
+	//11
+	private Response searchFlights(HttpExchange exchange) throws Exception {
+		Map<String, String> query = query(exchange);
+		java.sql.Date departure = AirBooking.toSqlDate(required(query, "departure", 10));
+		boolean byAvailability = "availability".equals(query.get("sort"));
+		return new Response(200, records(this._repository.searchFlights(city(query, "origin"), city(query, "destination"), departure, byAvailability),
+			"flightNum", "airline", "plane", "#duration", "#seats", "#booked", "#available"));
+	}
+
+	private Connection borrow() throws SQLException {
+		Connection c = this._pool.borrow(this._timeoutMillis, TimeUnit.MILLISECONDS);
+		if (c == null) throw new SQLException("No pooled connection within " + this._timeoutMillis + " ms", "57P03");
+		return c;
+	}
+
+	//found by name and passport number like the menu's login; a bare pID would let anyone act for any passenger
+	private int passenger(Map<String, String> body) throws SQLException, HttpError {
+		if (body.containsKey("pID")) throw new IllegalArgumentException("pID is not accepted, identify the passenger with fullName and passNum");
+		Integer pID = this._repository.login(required(body, "fullName", 24), required(body, "passNum", 10));
+		if (pID == null) throw new HttpError(404, "No passenger with that name and passport number");
+		return pID;
+	}
+
+	private ReferenceData.Flight flight(String flightNum) throws HttpError {
+		ReferenceData.Flight flight = this._esql.getReferenceData().flight(flightNum);
+		if (flight == null) throw new HttpError(404, "Unknown flight " + flightNum);
+		return flight;
+	}
+
+	//a city as spelled in Flight; an unknown one is answered with suggestions
+	private String city(Map<String, String> query, String name) throws HttpError {
+		String typed = required(query, name, 16);
+		CityIndex cities = this._esql.getReferenceData().cityIndex();
+		String city = cities.find(typed);
+		if (city != null) return city;
+		StringBuilder message = new StringBuilder("Unknown " + name + " " + typed);
+		List<String> suggestions = cities.suggest(typed, 5);
+		if (!suggestions.isEmpty()) message.append(", did you mean ").append(String.join(", ", suggestions)).append('?');
+		throw new HttpError(404, message.toString());
+	}
+
+	private static int limit(Map<String, String> query){
+		String k = query.get("k");
+		return k == null ? 10 : Math.min(1000, Integer.parseInt(k));
+	}
+
+	private static String required(Map<String, String> values, String name, int maxLength){
+		String value = values.get(name);
+		if (value == null || value.trim().length() == 0) throw new IllegalArgumentException(name + " is required");
+		value = value.trim();
+		if (value.length() > maxLength) throw new IllegalArgumentException(name + " must have at most " + maxLength + " characters");
+		return value;
+	}
+
+	private static Response error(int status, String message){
+		return new Response(status, "{\"error\":" + quote(message) + "}");
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) throws UnsupportedEncodingException {
+		Map<String, String> values = new HashMap<String, String>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw == null) return values;
+		for (String pair : raw.split("&")){
+			if (pair.length() == 0) continue;
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			values.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return values;
+	}
+
+	private static Map<String, String> body(HttpExchange exchange) throws IOException, HttpError {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = exchange.getRequestBody();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0){
+			bytes.write(buffer, 0, n);
+			if (bytes.size() > MAX_BODY_BYTES) throw new HttpError(413, "Request body larger than " + MAX_BODY_BYTES + " bytes");
+		}
+		return parseObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Parses a JSON object whose values are strings, numbers, booleans or
+	 * null. Numbers and booleans are kept as their text, null as null.
+	 *
+	 * @throws java.lang.IllegalArgumentException when the text is not such an object
+	 */
+	static Map<String, String> parseObject(String json){
+		Map<String, String> values = new HashMap<String, String>();
+		int[] pos = {skipSpace(json, 0)};
+		expect(json, pos, '{');
+		if (peek(json, pos) == '}'){
+			pos[0]++;
+		}
+		else{
+			while (true){
+				String key = parseString(json, pos);
+				expect(json, pos, ':');
+				char c = peek(json, pos);
+				String value;
+				if (c == '"'){
+					value = parseString(json, pos);
+				}
+				else{
+					int start = pos[0];
+					while (pos[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(pos[0])) < 0) pos[0]++;
+					value = json.substring(start, pos[0]);
+					if (value.equals("null")) value = null;
+					else if (!value.equals("true") && !value.equals("false") && !value.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")){
+						throw new IllegalArgumentException("Unsupported JSON value for " + key);
+					}
+				}
+				values.put(key, value);
+				if (peek(json, pos) == ','){
+					pos[0]++;
+					continue;
+				}
+				expect(json, pos, '}');
+				break;
+			}
+		}
+		if (skipSpace(json, pos[0]) != json.length()) throw new IllegalArgumentException("Unexpected text after the JSON object");
+		return values;
+	}
+
+	private static int skipSpace(String json, int i){
+		while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+		return i;
+	}
+
+	private static char peek(String json, int[] pos){
+		pos[0] = skipSpace(json, pos[0]);
+		if (pos[0] >= json.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+		return json.charAt(pos[0]);
+	}
+
+	private static void expect(String json, int[] pos, char c){
+		if (peek(json, pos) != c) throw new IllegalArgumentException("Expected '" + c + "' at offset " + pos[0] + " of the JSON body");
+		pos[0]++;
+	}
+
+	private static String parseString(String json, int[] pos){
+		expect(json, pos, '"');
+		StringBuilder s = new StringBuilder();
+		while (true){
+			if (pos[0] >= json.length()) throw new IllegalArgumentException("Unterminated JSON string");
+			char c = json.charAt(pos[0]++);
+			if (c == '"') return s.toString();
+			if (c != '\\'){
+				s.append(c);
+				continue;
+			}
+			if (pos[0] >= json.length()) throw new IllegalArgumentException("Unterminated JSON string");
+			char e = json.charAt(pos[0]++);
+			switch (e){
+				case 'n': s.append('\n'); break;
+				case 't': s.append('\t'); break;
+				case 'r': s.append('\r'); break;
+				case 'b': s.append('\b'); break;
+				case 'f': s.append('\f'); break;
+				case 'u':
+					if (pos[0] + 4 > json.length()) throw new IllegalArgumentException("Bad JSON escape");
+					s.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+					pos[0] += 4;
+					break;
+				default: s.append(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the string as a JSON string literal
+	 */
+	static String quote(String s){
+		if (s == null) return "null";
+		StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			switch (c){
+				case '"': json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+					else json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+	/**
+	 * Writes query records as a JSON array of objects. A field name starting
+	 * with # is numeric and written without quotes; the padding of char
+	 * columns is trimmed.
+	 */
+	static String records(List<List<String>> rows, String... fields){
+		StringBuilder json = new StringBuilder("[");
+		for (int r = 0; r < rows.size(); r++){
+			if (r > 0) json.append(',');
+			json.append('{');
+			List<String> row = rows.get(r);
+			for (int i = 0; i < fields.length && i < row.size(); i++){
+				if (i > 0) json.append(',');
+				boolean numeric = fields[i].startsWith("#");
+				String value = row.get(i) == null ? null : row.get(i).trim();
+				json.append(quote(numeric ? fields[i].substring(1) : fields[i])).append(':');
+				json.append(numeric && value != null ? value : quote(value));
+			}
+			json.append('}');
+		}
+		return json.append(']').toString();
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Command line test support
+ * =============================
+ *
+ * The checks shared by the *Test classes, which run without a database.
+ *
+ */
+
+
+
+/**
+ * This class counts the checks of a command line test. The first failed
+ * check throws an AssertionError, so the test exits with a non-zero status;
+ * passed prints the count once main has run them all.
+ *
+ */
+
+final class Checks{
+	private static int _count = 0;
+
+	private Checks(){
+	}
+
+	static void check(boolean ok, String what){
+		_count++;
+		if (!ok) throw new AssertionError(what);
+	}
+
+	static void passed(Class<?> test){
+		System.out.println(test.getSimpleName() + ": " + _count + " checks passed");
+	}
+}
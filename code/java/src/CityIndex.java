@@ -0,0 +1,151 @@
+/*
+ * City name lookup and suggestions
+ * =============================
+ *
+ * Resolves typed city names against the distinct Flight origins and
+ * destinations and suggests the intended city when a name is misspelled or
+ * only partly typed.
+ *
+ */
+
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This class keeps the city names in one array sorted by their lower-case
+ * form. An exact or prefix lookup is a binary search; a fuzzy lookup scans
+ * the names of similar length and computes a Levenshtein distance cut off
+ * at the allowed maximum. With a few thousand cities both take
+ * microseconds. The index is immutable and rebuilt with every
+ * ReferenceData snapshot, so it follows route changes.
+ *
+ */
+
+public final class CityIndex{
+	private final String[] _names;
+	private final String[] _keys;
+
+	/**
+	 * @param cities the distinct city names
+	 */
+	public CityIndex(String[] cities){
+		String[] names = cities.clone();
+		Arrays.sort(names, String.CASE_INSENSITIVE_ORDER);
+		this._names = names;
+		this._keys = new String[names.length];
+		for (int i = 0; i < names.length; i++) this._keys[i] = key(names[i]);
+	}
+
+	private static String key(String city){
+		return city.trim().toLowerCase(Locale.ROOT);
+	}
+
+	//first position whose key is not below the given one
+	private int lowerBound(String key){
+		int lo = 0, hi = this._keys.length;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (this._keys[mid].compareTo(key) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the city as spelled in Flight, ignoring case, or null when unknown
+	 */
+	public String find(String typed){
+		String key = key(typed);
+		int i = lowerBound(key);
+		return i < this._keys.length && this._keys[i].equals(key) ? this._names[i] : null;
+	}
+
+	/**
+	 * @return up to limit cities starting with the prefix, ignoring case, in order
+	 */
+	public List<String> withPrefix(String prefix, int limit){
+		String key = key(prefix);
+		List<String> result = new ArrayList<String>();
+		for (int i = lowerBound(key); i < this._keys.length && result.size() < limit && this._keys[i].startsWith(key); i++){
+			result.add(this._names[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * @return up to limit cities within maxDistance edits of the typed name,
+	 *         ignoring case, closest first
+	 */
+	public List<String> similar(String typed, int maxDistance, int limit){
+		String key = key(typed);
+		List<List<String>> byDistance = new ArrayList<List<String>>();
+		for (int d = 0; d <= maxDistance; d++) byDistance.add(new ArrayList<String>());
+		for (int i = 0; i < this._keys.length; i++){
+			if (Math.abs(this._keys[i].length() - key.length()) > maxDistance) continue;
+			int d = distance(key, this._keys[i], maxDistance);
+			if (d <= maxDistance) byDistance.get(d).add(this._names[i]);
+		}
+		List<String> result = new ArrayList<String>();
+		for (List<String> names : byDistance){
+			for (String name : names){
+				if (result.size() == limit) return result;
+				result.add(name);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Suggests the cities the user may have meant: those starting with the
+	 * typed text first, then those at most two edits away.
+	 *
+	 * @return up to limit distinct city names
+	 */
+	public List<String> suggest(String typed, int limit){
+		List<String> result = withPrefix(typed, limit);
+		if (key(typed).length() == 0) return result;
+		for (String name : similar(typed, 2, limit)){
+			if (result.size() == limit) break;
+			if (!result.contains(name)) result.add(name);
+		}
+		return result;
+	}
+
+	/** @return the number of cities */
+	public int size(){
+		return this._names.length;
+	}
+
+	/**
+	 * Levenshtein distance restricted to the diagonal band of width max.
+	 *
+	 * @return the distance, or max + 1 when it exceeds max
+	 */
+	static int distance(String a, String b, int max){
+		int n = a.length(), m = b.length();
+		if (Math.abs(n - m) > max) return max + 1;
+		int[] prev = new int[m + 1], cur = new int[m + 1];
+		for (int j = 0; j <= m; j++) prev[j] = j;
+		for (int i = 1; i <= n; i++){
+			int from = Math.max(1, i - max), to = Math.min(m, i + max);
+			cur[0] = i;
+			if (from > 1) cur[from - 1] = max + 1;
+			int best = cur[0];
+			for (int j = from; j <= to; j++){
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(prev[j - 1] + cost, Math.min(prev[j] + 1, cur[j - 1] + 1));
+				cur[j] = d;
+				if (d < best) best = d;
+			}
+			if (to < m) cur[to + 1] = max + 1;
+			if (best > max) return max + 1;
+			int[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+		return Math.min(prev[m], max + 1);
+	}
+}
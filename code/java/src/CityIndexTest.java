@@ -0,0 +1,107 @@
+/*
+ * CityIndex tests
+ * =============================
+ *
+ * Checks the banded Levenshtein distance of CityIndex against the full
+ * dynamic program, and the lookups built on it.
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Tests CityIndex.distance against the full dynamic program, and the lookups. */
+
+public class CityIndexTest{
+
+	private CityIndexTest(){
+	}
+
+	//the textbook O(nm) distance
+	private static int levenshtein(String a, String b){
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+		for (int i = 0; i <= a.length(); i++) d[i][0] = i;
+		for (int j = 0; j <= b.length(); j++) d[0][j] = j;
+		for (int i = 1; i <= a.length(); i++){
+			for (int j = 1; j <= b.length(); j++){
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				d[i][j] = Math.min(d[i - 1][j - 1] + cost, Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1));
+			}
+		}
+		return d[a.length()][b.length()];
+	}
+
+	private static void same(String a, String b, int max){
+		int expected = Math.min(levenshtein(a, b), max + 1);
+		int d = CityIndex.distance(a, b, max);
+		Checks.check(d == expected, "distance(\"" + a + "\", \"" + b + "\", " + max + ") = " + d + ", expected " + expected);
+	}
+
+	private static void edges(){
+		String[][] pairs = {
+			{"", ""}, {"", "a"}, {"ab", ""}, {"abc", "abc"}, {"abc", "abd"}, {"abc", "acb"},
+			{"kitten", "sitting"}, {"boston", "austin"}, {"paris", "parish"}, {"dallas", "dalas"},
+			//the cheapest path leaves the band: only the sentinels keep it from being used
+			{"aaaab", "baaaa"}, {"abcdef", "fabcde"}, {"xabcdefgh", "abcdefghx"},
+			//length difference right at and just past the band
+			{"abc", "abcde"}, {"abc", "abcdef"}, {"a", "bbbb"},
+		};
+		for (String[] p : pairs){
+			for (int max = 0; max <= 4; max++){
+				same(p[0], p[1], max);
+				same(p[1], p[0], max);
+			}
+		}
+		Checks.check(CityIndex.distance("abc", "abcdef", 2) == 3, "length difference past max returns max + 1");
+		Checks.check(CityIndex.distance("abcdef", "fabcde", 1) == 2, "a rotation costs two edits");
+	}
+
+	private static void random(){
+		Random random = new Random(42);
+		for (int k = 0; k < 20000; k++){
+			String a = word(random), b = random.nextBoolean() ? word(random) : mutate(a, random);
+			same(a, b, random.nextInt(5));
+		}
+	}
+
+	//a short word over a small alphabet, so that near misses are common
+	private static String word(Random random){
+		char[] w = new char[random.nextInt(9)];
+		for (int i = 0; i < w.length; i++) w[i] = (char) ('a' + random.nextInt(3));
+		return new String(w);
+	}
+
+	private static String mutate(String s, Random random){
+		StringBuilder b = new StringBuilder(s);
+		for (int edits = random.nextInt(4); edits > 0; edits--){
+			int op = random.nextInt(3);
+			char c = (char) ('a' + random.nextInt(3));
+			if (op == 0 || b.length() == 0) b.insert(random.nextInt(b.length() + 1), c);
+			else if (op == 1) b.deleteCharAt(random.nextInt(b.length()));
+			else b.setCharAt(random.nextInt(b.length()), c);
+		}
+		return b.toString();
+	}
+
+	private static void lookups(){
+		CityIndex index = new CityIndex(new String[]{"Boston", "Austin", "Dallas", "Denver", "Detroit", "Paris", "Parish"});
+		Checks.check(index.size() == 7, "size");
+		Checks.check("Dallas".equals(index.find(" dallas ")), "find ignores case and padding");
+		Checks.check(index.find("Dalla") == null, "find is exact");
+		Checks.check(index.withPrefix("de", 10).equals(Arrays.asList("Denver", "Detroit")), "prefix in order: " + index.withPrefix("de", 10));
+		Checks.check(index.withPrefix("de", 1).equals(Arrays.asList("Denver")), "prefix limit");
+		Checks.check(index.similar("Pariss", 1, 10).equals(Arrays.asList("Paris", "Parish")), "similar within one edit: " + index.similar("Pariss", 1, 10));
+		Checks.check(index.similar("Bostn", 0, 10).isEmpty(), "nothing at distance 0");
+		Checks.check(index.similar("Parix", 2, 10).get(0).equals("Paris"), "closest first: " + index.similar("Parix", 2, 10));
+		Checks.check(index.suggest("Dal", 3).equals(Arrays.asList("Dallas")), "suggest: " + index.suggest("Dal", 3));
+		Checks.check(index.suggest("Detriot", 3).equals(Arrays.asList("Detroit")), "suggest a transposition: " + index.suggest("Detriot", 3));
+	}
+
+	public static void main(String[] args){
+		edges();
+		random();
+		lookups();
+		Checks.passed(CityIndexTest.class);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Fixed-size JDBC connection pool
+ * =============================
+ *
+ * Connections are opened in parallel up front and handed out to worker
+ * threads with borrow/release.
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a fixed number of physical connections to the database.
+ * A connection must be given back with release once the caller is done, and
+ * is returned in autocommit mode.
+ *
+ * Broken connections are replaced, so the pool recovers from a database
+ * restart: release marks a connection that is closed or cannot be reset,
+ * and borrow checks a connection with isValid when it has been idle for
+ * more than VALIDATE_IDLE_MILLIS, or was broken, before handing it out.
+ * When the replacement cannot be opened the slot stays in the pool and
+ * borrow throws. Session settings are given to replacements through
+ * setInitializer.
+ *
+ */
+
+public class ConnectionPool{
+	//connections idle for longer are checked before they are handed out
+	static final long VALIDATE_IDLE_MILLIS = 10000;
+	static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+	private final String _url, _user, _passwd;
+	private final List<Connection> _all;
+	private final ArrayBlockingQueue<Connection> _idle;
+	//when each idle connection was released; 0 marks one to check
+	private final Map<Connection, Long> _idleSince = new ConcurrentHashMap<Connection, Long>();
+	private volatile Initializer _initializer = null;
+
+	/**
+	 * Session setup run on every connection the pool opens to replace a
+	 * broken one.
+	 */
+	public interface Initializer{
+		void init(Connection c) throws SQLException;
+	}
+
+	/**
+	 * Opens size connections, concurrently on the given executor.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param size the number of connections
+	 * @param executor runs the connection attempts
+	 * @throws java.sql.SQLException when a connection cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int size, ExecutorService executor) throws SQLException {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		List<Future<Connection>> opening = new ArrayList<Future<Connection>>();
+		for (int i = 0; i < size; ++i){
+			opening.add(executor.submit(() -> DriverManager.getConnection(url, user, passwd)));
+		}
+		this._all = new ArrayList<Connection>();
+		this._idle = new ArrayBlockingQueue<Connection>(size);
+		SQLException failure = null;
+		for (Future<Connection> f : opening){
+			try{
+				Connection c = f.get();
+				this._all.add(c);
+				this._idleSince.put(c, System.currentTimeMillis());
+				this._idle.add(c);
+			}catch(ExecutionException e){
+				failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				failure = new SQLException("Interrupted while opening connections");
+			}
+		}
+		if (failure != null){
+			close();
+			throw failure;
+		}
+	}
+
+	/**
+	 * Takes an idle connection, waiting until one is released.
+	 *
+	 * @return a connection in autocommit mode
+	 * @throws java.sql.SQLException when interrupted while waiting
+	 */
+	public Connection borrow() throws SQLException {
+		Connection c;
+		try{
+			c = this._idle.take();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+		return checked(c);
+	}
+
+	/**
+	 * Takes an idle connection, waiting at most the given time.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit the unit of timeout
+	 * @return a connection in autocommit mode, or null on timeout
+	 * @throws java.sql.SQLException when interrupted while waiting
+	 */
+	public Connection borrow(long timeout, TimeUnit unit) throws SQLException {
+		Connection c;
+		try{
+			c = this._idle.poll(timeout, unit);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+		return c == null ? null : checked(c);
+	}
+
+	/**
+	 * Validates a connection taken from the idle queue and replaces it when
+	 * it is broken.
+	 */
+	private Connection checked(Connection c) throws SQLException {
+		Long since = this._idleSince.remove(c);
+		boolean check = since == null || System.currentTimeMillis() - since > VALIDATE_IDLE_MILLIS;
+		try{
+			if (!c.isClosed() && (!check || c.isValid(VALIDATE_TIMEOUT_SECONDS))) return c;
+		}catch(SQLException e){
+			// replaced below.
+		}
+		try{
+			c.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		Connection fresh = null;
+		try{
+			fresh = DriverManager.getConnection(this._url, this._user, this._passwd);
+			Initializer init = this._initializer;
+			if (init != null) init.init(fresh);
+		}catch(SQLException e){
+			if (fresh != null){
+				try{
+					fresh.close();
+				}catch(SQLException ce){
+					// ignored.
+				}
+			}
+			//keeps the slot; the next borrow tries again
+			this._idleSince.put(c, 0L);
+			this._idle.offer(c);
+			throw e;
+		}
+		synchronized (this._all){
+			this._all.set(this._all.indexOf(c), fresh);
+		}
+		return fresh;
+	}
+
+	/**
+	 * Gives a borrowed connection back. An open transaction is rolled back.
+	 *
+	 * @param c the connection obtained from borrow
+	 */
+	public void release(Connection c) {
+		if (c == null) return;
+		long since = System.currentTimeMillis();
+		try{
+			if (!c.getAutoCommit()){
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			if (c.isClosed()) since = 0;
+		}catch(SQLException e){
+			//most likely broken; the next borrow checks it and replaces it
+			since = 0;
+		}
+		this._idleSince.put(c, since);
+		this._idle.offer(c);
+	}
+
+	/**
+	 * Sets the session setup of replacement connections. The connections
+	 * already open are the caller's to set up.
+	 *
+	 * @param init the setup, or null for none
+	 */
+	public void setInitializer(Initializer init) {
+		this._initializer = init;
+	}
+
+	/**
+	 * @return the number of connections in the pool
+	 */
+	public int size() {
+		return this._all.size();
+	}
+
+	/**
+	 * Closes every connection of the pool.
+	 */
+	public void close() {
+		List<Connection> all;
+		synchronized (this._all){
+			all = new ArrayList<Connection>(this._all);
+		}
+		for (Connection c : all){
+			try{
+				c.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+		this._idle.clear();
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Flight change reconciliation
+ * =============================
+ *
+ * Applies route and capacity changes to existing flights and, in the same
+ * transaction, finds the future bookings they break: departures left with
+ * more bookings than seats and passengers whose flight now goes elsewhere.
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * This class updates any number of flights at once. The flight rows are
+ * locked FOR UPDATE, in flightNum order, before they change. Every booking
+ * path reads the capacity it checks against with AirBooking.lockFlightSeats,
+ * a FOR KEY SHARE lock on the same row. The FOR UPDATE lock therefore waits
+ * for the bookings that already checked the old capacity, whose rows the
+ * check below sees, and bookings that start later wait for the commit and
+ * count against the new capacity.
+ *
+ * The check is one set-based query over all changed flights: it counts the
+ * bookings of every future departure from the (flightNum, departure) index
+ * and only reads the booking rows of the departures that are overbooked or
+ * rerouted. A departure keeps its seats for the loaded bookings, then for
+ * those issued from bookRef_seq by number; the rest are listed for
+ * rebooking. That is not booking order: every instance hands out bookRefs
+ * from its own KeyAllocator block, so a later booking on one instance can
+ * carry a lower number than an earlier one on another. Booking has no time
+ * column to order by; the bookRef order is an arbitrary tie-break, chosen
+ * because it is stable, so a blocked change and its forced retry list the
+ * same passengers. When a route changes, every booking on its future
+ * departures is listed.
+ *
+ * More seats need nothing here: the waitlist promoters book the waiting
+ * passengers of departures that have a free seat.
+ *
+ */
+
+public class FlightChange{
+	static final String LOCK_SQL = "SELECT trim(flightNum), origin, destination, airId FROM Flight WHERE flightNum = ANY(?::char(8)[]) ORDER BY flightNum FOR UPDATE;";
+	static final String UPDATE_SQL = "UPDATE Flight F SET origin = U.origin, destination = U.destination, plane = U.plane, seats = U.seats, duration = U.duration "
+		+ "FROM unnest(?::char(8)[], ?::char(16)[], ?::char(16)[], ?::char(16)[], ?::int[], ?::int[]) AS U(flightNum, origin, destination, plane, seats, duration) "
+		+ "WHERE F.flightNum = U.flightNum;";
+	//seats go to loaded references first, then to sequence numbers by value: deterministic, not booking order across instances
+	static final String AFFECTED_SQL = "WITH C AS (SELECT * FROM unnest(?::char(8)[], ?::int[], ?::boolean[]) AS U(flightNum, seats, rerouted)), "
+		+ "D AS (SELECT B.flightNum, B.departure, C.seats, C.rerouted, COUNT(*) AS booked FROM C JOIN Booking B ON B.flightNum = C.flightNum AND B.departure >= CURRENT_DATE "
+		+ "GROUP BY B.flightNum, B.departure, C.seats, C.rerouted HAVING C.rerouted OR COUNT(*) > C.seats) "
+		+ "SELECT trim(D.flightNum), D.departure, D.seats, D.booked, D.rerouted, trim(X.bookRef), X.pID, trim(P.fullName) FROM D CROSS JOIN LATERAL ("
+		+ "SELECT B.bookRef, B.pID, ROW_NUMBER() OVER (ORDER BY rtrim(B.bookRef) ~ '^[0-9]+$', length(rtrim(B.bookRef)), B.bookRef) AS seat "
+		+ "FROM Booking B WHERE B.flightNum = D.flightNum AND B.departure = D.departure) X "
+		+ "JOIN Passenger P ON P.pID = X.pID "
+		+ "WHERE D.rerouted OR X.seat > D.seats "
+		+ "ORDER BY D.flightNum, D.departure, X.seat;";
+
+	/**
+	 * The new values of a flight.
+	 */
+	public static final class Route{
+		public final String flightNum, origin, destination, plane;
+		public final int seats, duration;
+
+		public Route(String flightNum, String origin, String destination, String plane, int seats, int duration){
+			this.flightNum = flightNum.trim();
+			this.origin = origin;
+			this.destination = destination;
+			this.plane = plane;
+			this.seats = seats;
+			this.duration = duration;
+		}
+	}
+
+	/**
+	 * A future booking a change leaves without a seat on its flight.
+	 */
+	public static final class Affected{
+		public final String flightNum;
+		public final java.sql.Date departure;
+		public final int seats, booked;
+		//the route changed, as opposed to too few seats
+		public final boolean rerouted;
+		public final String bookRef;
+		public final int pID;
+		public final String fullName;
+
+		Affected(List<String> r){
+			this.flightNum = r.get(0);
+			this.departure = java.sql.Date.valueOf(r.get(1));
+			this.seats = Integer.parseInt(r.get(2));
+			this.booked = Integer.parseInt(r.get(3));
+			this.rerouted = r.get(4).equals("t");
+			this.bookRef = r.get(5);
+			this.pID = Integer.parseInt(r.get(6));
+			this.fullName = r.get(7);
+		}
+
+		/** @return whether the departure has more bookings than seats */
+		public boolean overbooked(){
+			return this.booked > this.seats;
+		}
+
+		/** @return the tab-separated fields: flightNum, departure, bookRef, pID, fullName, reason */
+		public List<String> fields(){
+			List<String> fields = new ArrayList<String>();
+			fields.add(this.flightNum);
+			fields.add(this.departure.toString());
+			fields.add(this.bookRef);
+			fields.add(String.valueOf(this.pID));
+			fields.add(this.fullName);
+			fields.add(this.rerouted ? "rerouted" : "overbooked " + this.booked + "/" + this.seats);
+			return fields;
+		}
+	}
+
+	/**
+	 * The outcome of apply.
+	 */
+	public static final class Result{
+		public final boolean applied;
+		public final List<Affected> passengers;
+		//future departures with more bookings than seats
+		public final int overbookedDepartures;
+
+		Result(boolean applied, List<Affected> passengers){
+			this.applied = applied;
+			this.passengers = passengers;
+			Set<String> departures = new HashSet<String>();
+			for (Affected a : passengers){
+				if (a.overbooked()) departures.add(a.flightNum + "|" + a.departure);
+			}
+			this.overbookedDepartures = departures.size();
+		}
+	}
+
+	private FlightChange(){
+	}
+
+	/**
+	 * Updates flights and lists the future bookings the update breaks, in one
+	 * transaction.
+	 *
+	 * @param c the connection to run the statements on
+	 * @param routes the new values, one per existing flight
+	 * @param allowOverbooking commit even when a departure ends up with more bookings than seats
+	 * @return whether the update was committed, and the bookings to rebook
+	 * @throws java.sql.SQLException when a flight does not exist or a statement fails; nothing is changed then
+	 */
+	public static Result apply(Connection c, List<Route> routes, boolean allowOverbooking) throws SQLException {
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		try{
+			//the last change of a flight wins
+			Map<String, Route> latest = new LinkedHashMap<String, Route>();
+			for (Route r : routes) latest.put(r.flightNum, r);
+			Map<String, String[]> before = lock(c, latest.keySet());
+			for (String flightNum : latest.keySet()){
+				if (!before.containsKey(flightNum)) throw new SQLException("Flight " + flightNum + " does not exist", "23503");
+			}
+			List<Route> changes = new ArrayList<Route>(latest.values());
+			update(c, changes);
+			List<Affected> affected = affected(c, changes, before);
+			Result blocked = new Result(false, affected);
+			if (!allowOverbooking && blocked.overbookedDepartures > 0) return blocked;
+			c.commit();
+			return new Result(true, affected);
+		}finally{
+			//rolls back a blocked or failed change; nothing is left after the commit
+			c.rollback();
+			c.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Locks flight rows against bookings until the transaction ends.
+	 *
+	 * @param c the connection, in a transaction
+	 * @param flightNums the flights to lock; unknown ones are skipped
+	 * @return the current (origin, destination, airId) of the locked flights, by trimmed flightNum
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Map<String, String[]> lock(Connection c, Collection<String> flightNums) throws SQLException {
+		Map<String, String[]> routes = new HashMap<String, String[]>();
+		PreparedStatement stmt = c.prepareStatement(LOCK_SQL);
+		try{
+			stmt.setArray(1, c.createArrayOf("text", flightNums.toArray()));
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) routes.put(rs.getString(1), new String[]{rs.getString(2), rs.getString(3), rs.getString(4)});
+		}finally{
+			stmt.close();
+		}
+		return routes;
+	}
+
+	private static void update(Connection c, List<Route> routes) throws SQLException {
+		int n = routes.size();
+		String[] flightNums = new String[n], origins = new String[n], destinations = new String[n], planes = new String[n];
+		Integer[] seats = new Integer[n], durations = new Integer[n];
+		for (int i = 0; i < n; i++){
+			Route r = routes.get(i);
+			flightNums[i] = r.flightNum;
+			origins[i] = r.origin;
+			destinations[i] = r.destination;
+			planes[i] = r.plane;
+			seats[i] = r.seats;
+			durations[i] = r.duration;
+		}
+		PreparedStatement stmt = c.prepareStatement(UPDATE_SQL);
+		try{
+			stmt.setArray(1, c.createArrayOf("text", flightNums));
+			stmt.setArray(2, c.createArrayOf("text", origins));
+			stmt.setArray(3, c.createArrayOf("text", destinations));
+			stmt.setArray(4, c.createArrayOf("text", planes));
+			stmt.setArray(5, c.createArrayOf("int4", seats));
+			stmt.setArray(6, c.createArrayOf("int4", durations));
+			stmt.executeUpdate();
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Lists the future bookings that changed flights leave without a seat.
+	 *
+	 * @param c the connection, in the transaction that changed the flights
+	 * @param routes the new values of the flights, at most one per flight
+	 * @param before the routes of the flights before the change, from lock; flights missing from it are new
+	 * @return the bookings to rebook, by flight, departure and bookRef order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static List<Affected> affected(Connection c, List<Route> routes, Map<String, String[]> before) throws SQLException {
+		int n = routes.size();
+		String[] flightNums = new String[n];
+		Integer[] seats = new Integer[n];
+		Boolean[] rerouted = new Boolean[n];
+		for (int i = 0; i < n; i++){
+			Route r = routes.get(i);
+			String[] old = before.get(r.flightNum);
+			flightNums[i] = r.flightNum;
+			seats[i] = r.seats;
+			rerouted[i] = old != null && (!old[0].trim().equals(r.origin.trim()) || !old[1].trim().equals(r.destination.trim()));
+		}
+		Array flights = c.createArrayOf("text", flightNums);
+		List<Affected> affected = new ArrayList<Affected>();
+		for (List<String> r : AirBooking.executePreparedQueryAndReturnResult(c, AFFECTED_SQL, flights, c.createArrayOf("int4", seats), c.createArrayOf("bool", rerouted))){
+			affected.add(new Affected(r));
+		}
+		return affected;
+	}
+}
@@ -0,0 +1,501 @@
+/*
+ * In-memory implementation of the storage interface
+ * =============================
+ *
+ * Holds the whole database in concurrent in-process structures. It gives an
+ * upper bound for the throughput of the booking logic, free of network and
+ * database costs, and runs it without a live Postgres.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * This class implements AirBookingRepository in memory, with the constraints
+ * of create.sql: the unique passport number, the unique (departure,
+ * flightNum, pID) booking, the seat capacity, the foreign keys, the score,
+ * seats and duration domains and the CHAR column lengths.
+ *
+ * Passengers, ratings and departures live in lock-striped maps keyed by a
+ * primitive long, so no key is boxed. A departure is keyed by the flight's
+ * dense id and the epoch day, and its booked pIDs are kept in a compressed
+ * bitmap. Booking locks only that departure, so bookings of different
+ * flights or days never contend, while two bookings of the same last seat
+ * are serialized.
+ *
+ */
+
+public class InMemoryRepository implements AirBookingRepository{
+	//open addressing map from a long key, guarded by its stripe
+	private static final class LongMap<V>{
+		private static final long EMPTY = Long.MIN_VALUE;
+		long[] keys = new long[16];
+		Object[] values = new Object[16];
+		int size;
+
+		LongMap(){
+			Arrays.fill(this.keys, EMPTY);
+		}
+
+		private int slot(long key){
+			int mask = this.keys.length - 1;
+			long h = key * 0x9E3779B97F4A7C15L;
+			int i = (int) ((h ^ (h >>> 32)) & mask);
+			while (this.keys[i] != EMPTY && this.keys[i] != key) i = (i + 1) & mask;
+			return i;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(long key){
+			int i = slot(key);
+			return this.keys[i] == EMPTY ? null : (V) this.values[i];
+		}
+
+		void put(long key, V value){
+			int i = slot(key);
+			if (this.keys[i] == EMPTY){
+				this.keys[i] = key;
+				this.size++;
+			}
+			this.values[i] = value;
+			if (this.size * 2 > this.keys.length) grow();
+		}
+
+		private void grow(){
+			long[] keys = this.keys;
+			Object[] values = this.values;
+			this.keys = new long[keys.length * 2];
+			this.values = new Object[keys.length * 2];
+			Arrays.fill(this.keys, EMPTY);
+			for (int i = 0; i < keys.length; i++){
+				if (keys[i] == EMPTY) continue;
+				int j = slot(keys[i]);
+				this.keys[j] = keys[i];
+				this.values[j] = values[i];
+			}
+		}
+	}
+
+	//a long keyed map split into independently locked stripes
+	private static final class StripedLongMap<V>{
+		private static final int STRIPES = 64;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private final LongMap<V>[] _stripes = new LongMap[STRIPES];
+
+		StripedLongMap(){
+			for (int i = 0; i < STRIPES; i++) this._stripes[i] = new LongMap<V>();
+		}
+
+		private LongMap<V> stripe(long key){
+			return this._stripes[(int) ((key ^ (key >>> 32)) * 0x9E3779B9) >>> 26];
+		}
+
+		V get(long key){
+			LongMap<V> s = stripe(key);
+			synchronized (s){
+				return s.get(key);
+			}
+		}
+
+		void put(long key, V value){
+			LongMap<V> s = stripe(key);
+			synchronized (s){
+				s.put(key, value);
+			}
+		}
+
+		V computeIfAbsent(long key, LongFunction<V> create){
+			LongMap<V> s = stripe(key);
+			synchronized (s){
+				V v = s.get(key);
+				if (v == null){
+					v = create.apply(key);
+					s.put(key, v);
+				}
+				return v;
+			}
+		}
+	}
+
+	private static final class Passenger{
+		final int pID;
+		final String passNum, fullName, country;
+		final java.sql.Date bdate;
+
+		Passenger(int pID, String passNum, String fullName, java.sql.Date bdate, String country){
+			this.pID = pID;
+			this.passNum = passNum;
+			this.fullName = fullName;
+			this.bdate = bdate;
+			this.country = country;
+		}
+	}
+
+	private static final class Rating{
+		final int rID, pID, score;
+		final String flightNum, comment;
+
+		Rating(int rID, int pID, String flightNum, int score, String comment){
+			this.rID = rID;
+			this.pID = pID;
+			this.flightNum = flightNum;
+			this.score = score;
+			this.comment = comment;
+		}
+	}
+
+	//a flight, the passengers who ever booked it and its rating totals; guarded by itself
+	private static final class FlightState{
+		final int id;
+		volatile ReferenceData.Flight row;
+		final BookingIndex.PidBitmap flown = new BookingIndex.PidBitmap();
+		long scoreSum;
+		int ratings;
+
+		FlightState(int id, ReferenceData.Flight row){
+			this.id = id;
+			this.row = row;
+		}
+	}
+
+	//the bookings of one flight on one day; guarded by itself
+	private static final class Departure{
+		final BookingIndex.PidBitmap pids = new BookingIndex.PidBitmap();
+		int booked;
+	}
+
+	private final Map<Integer, ReferenceData.Airline> _airlines = new ConcurrentHashMap<Integer, ReferenceData.Airline>();
+	private final Map<String, FlightState> _flights = new ConcurrentHashMap<String, FlightState>();
+	private final AtomicInteger _flightIds = new AtomicInteger();
+	private final StripedLongMap<Passenger> _passengers = new StripedLongMap<Passenger>();
+	private final Map<String, Integer> _passports = new ConcurrentHashMap<String, Integer>();
+	private final Map<String, Integer> _names = new ConcurrentHashMap<String, Integer>();
+	private final StripedLongMap<Departure> _departures = new StripedLongMap<Departure>();
+	private final StripedLongMap<Rating> _ratings = new StripedLongMap<Rating>();
+	private final AtomicInteger _nextPassenger = new AtomicInteger();
+	private final AtomicInteger _nextRating = new AtomicInteger();
+	private final AtomicLong _nextBookRef = new AtomicLong(10000);
+
+	/**
+	 * Creates an empty store.
+	 */
+	public InMemoryRepository(){
+	}
+
+	/**
+	 * Copies every table from the database, so a run against this store sees
+	 * the same data as one against PostgresRepository.
+	 *
+	 * @param c the connection to read from; its auto-commit is switched off
+	 *          while the cursors are open
+	 * @return the populated store
+	 * @throws java.sql.SQLException when failed to read a table
+	 */
+	public static InMemoryRepository load(Connection c) throws SQLException {
+		InMemoryRepository store = new InMemoryRepository();
+		for (ReferenceData.Airline a : ReferenceData.loadAirlines(c).values()) store.saveAirline(a);
+		for (ReferenceData.Flight f : ReferenceData.loadFlights(c).values()) store.saveFlight(f);
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		try{
+			ResultSet rs = stream(c, "SELECT pID, passNum, fullName, bdate, country FROM Passenger;");
+			while (rs.next()){
+				store.putPassenger(new Passenger(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getDate(4), rs.getString(5).trim()));
+			}
+			rs.getStatement().close();
+			rs = stream(c, "SELECT flightNum, departure, pID, bookRef FROM Booking;");
+			while (rs.next()){
+				FlightState f = store._flights.get(rs.getString(1).trim());
+				if (f == null) continue;
+				Departure d = store._departures.computeIfAbsent(departureKey(f, rs.getDate(2)), k -> new Departure());
+				if (d.pids.add(rs.getInt(3))) d.booked++;
+				f.flown.add(rs.getInt(3));
+				String bookRef = rs.getString(4).trim();
+				if (bookRef.matches("[0-9]{1,18}")) store._nextBookRef.accumulateAndGet(Long.parseLong(bookRef) + 1, Math::max);
+			}
+			rs.getStatement().close();
+			rs = stream(c, "SELECT rID, pID, flightNum, score, comment FROM Ratings;");
+			while (rs.next()){
+				Rating r = new Rating(rs.getInt(1), rs.getInt(2), rs.getString(3).trim(), rs.getInt(4), rs.getString(5));
+				store.putRating(r);
+			}
+			rs.getStatement().close();
+		}finally{
+			c.rollback();
+			c.setAutoCommit(autoCommit);
+		}
+		return store;
+	}
+
+	private static ResultSet stream(Connection c, String query) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement(query);
+		stmt.setFetchSize(10000);
+		return stmt.executeQuery();
+	}
+
+	private void putPassenger(Passenger p){
+		this._passengers.put(p.pID, p);
+		this._passports.put(p.passNum, p.pID);
+		this._names.putIfAbsent(p.fullName, p.pID);
+		this._nextPassenger.accumulateAndGet(p.pID + 1, Math::max);
+	}
+
+	private void putRating(Rating r){
+		this._ratings.put(r.rID, r);
+		FlightState f = this._flights.get(r.flightNum);
+		if (f != null){
+			synchronized (f){
+				f.scoreSum += r.score;
+				f.ratings++;
+			}
+		}
+		this._nextRating.accumulateAndGet(r.rID + 1, Math::max);
+	}
+
+	private static long departureKey(FlightState f, java.sql.Date departure){
+		return ((long) f.id << 32) | (departure.toLocalDate().toEpochDay() & 0xFFFFFFFFL);
+	}
+
+	private static void checkLength(String column, String value, int max) throws SQLException {
+		if (value.length() > max) throw new SQLException("value too long for type character(" + max + ") in " + column, "22001");
+	}
+
+	private FlightState flight(String flightNum) throws SQLException {
+		FlightState f = this._flights.get(flightNum.trim());
+		if (f == null) throw new SQLException("Flight " + flightNum + " does not exist", "23503");
+		return f;
+	}
+
+	private void checkPassenger(int pID) throws SQLException {
+		if (this._passengers.get(pID) == null) throw new SQLException("Passenger " + pID + " does not exist", "23503");
+	}
+
+	/**
+	 * Inserts or replaces an airline; the interface has no airline writes
+	 * since the menu never changes them.
+	 */
+	public void saveAirline(ReferenceData.Airline airline){
+		this._airlines.put(airline.airId, airline);
+	}
+
+	public Map<Integer, ReferenceData.Airline> airlines(){
+		return Collections.unmodifiableMap(new HashMap<Integer, ReferenceData.Airline>(this._airlines));
+	}
+
+	public Map<String, ReferenceData.Flight> flights(){
+		Map<String, ReferenceData.Flight> flights = new HashMap<String, ReferenceData.Flight>();
+		for (FlightState f : this._flights.values()) flights.put(f.row.flightNum, f.row);
+		return flights;
+	}
+
+	public void saveFlight(ReferenceData.Flight flight) throws SQLException {
+		checkFlight(flight);
+		FlightState f = this._flights.computeIfAbsent(flight.flightNum, n -> new FlightState(this._flightIds.getAndIncrement(), flight));
+		f.row = flight;
+	}
+
+	public void addFlight(ReferenceData.Flight flight) throws SQLException {
+		checkFlight(flight);
+		if (this._flights.putIfAbsent(flight.flightNum, new FlightState(this._flightIds.getAndIncrement(), flight)) != null){
+			throw new SQLException("duplicate key value violates unique constraint on flightNum: " + flight.flightNum, "23505");
+		}
+	}
+
+	private void checkFlight(ReferenceData.Flight flight) throws SQLException {
+		if (!this._airlines.containsKey(flight.airId)) throw new SQLException("Airline " + flight.airId + " does not exist", "23503");
+		if (flight.seats <= 0 || flight.seats >= 500) throw new SQLException("seats must be between 1 and 499", "23514");
+		if (flight.duration <= 0 || flight.duration >= 24) throw new SQLException("duration must be between 1 and 23", "23514");
+		checkLength("flightNum", flight.flightNum, 8);
+		checkLength("origin", flight.origin, 16);
+		checkLength("destination", flight.destination, 16);
+		checkLength("plane", flight.plane, 16);
+	}
+
+	public int addPassenger(String passNum, String fullName, java.sql.Date bdate, String country) throws SQLException {
+		passNum = passNum.trim();
+		fullName = fullName.trim();
+		country = country.trim();
+		checkLength("passNum", passNum, 10);
+		checkLength("fullName", fullName, 24);
+		checkLength("country", country, 24);
+		int pID = this._nextPassenger.getAndIncrement();
+		if (this._passports.putIfAbsent(passNum, pID) != null){
+			throw new SQLException("duplicate key value violates unique constraint on passNum: " + passNum, "23505");
+		}
+		this._passengers.put(pID, new Passenger(pID, passNum, fullName, bdate, country));
+		this._names.putIfAbsent(fullName, pID);
+		return pID;
+	}
+
+	public Integer login(String fullName, String passNum){
+		Integer pID = this._passports.get(passNum.trim());
+		if (pID == null) return null;
+		Passenger p = this._passengers.get(pID);
+		return p != null && p.fullName.equals(fullName.trim()) ? pID : null;
+	}
+
+	public Integer findPassenger(String fullName){
+		return this._names.get(fullName.trim());
+	}
+
+	public int countBookedSeats(String flightNum, java.sql.Date departure){
+		FlightState f = this._flights.get(flightNum.trim());
+		if (f == null) return 0;
+		Departure d = this._departures.get(departureKey(f, departure));
+		if (d == null) return 0;
+		synchronized (d){
+			return d.booked;
+		}
+	}
+
+	public boolean hasBooking(String flightNum, java.sql.Date departure, int pID){
+		FlightState f = this._flights.get(flightNum.trim());
+		if (f == null) return false;
+		Departure d = this._departures.get(departureKey(f, departure));
+		if (d == null) return false;
+		synchronized (d){
+			return d.pids.contains(pID);
+		}
+	}
+
+	public boolean hasFlown(int pID, String flightNum){
+		FlightState f = this._flights.get(flightNum.trim());
+		if (f == null) return false;
+		synchronized (f){
+			return f.flown.contains(pID);
+		}
+	}
+
+	public String book(int pID, String flightNum, java.sql.Date departure) throws SQLException {
+		FlightState f = flight(flightNum);
+		checkPassenger(pID);
+		Departure d = this._departures.computeIfAbsent(departureKey(f, departure), k -> new Departure());
+		synchronized (d){
+			if (d.booked >= f.row.seats || d.pids.contains(pID)) return null;
+			d.pids.add(pID);
+			d.booked++;
+		}
+		synchronized (f){
+			f.flown.add(pID);
+		}
+		return String.valueOf(this._nextBookRef.getAndIncrement());
+	}
+
+	public int addRating(int pID, String flightNum, int score, String comment) throws SQLException {
+		FlightState f = flight(flightNum);
+		checkPassenger(pID);
+		if (score < 0 || score > 5) throw new SQLException("score must be between 0 and 5", "23514");
+		Rating r = new Rating(this._nextRating.getAndIncrement(), pID, f.row.flightNum, score, comment);
+		putRating(r);
+		return r.rID;
+	}
+
+	public List<List<String>> searchFlights(String origin, String destination, java.sql.Date departure, boolean byAvailability){
+		List<int[]> found = new ArrayList<int[]>();
+		List<ReferenceData.Flight> rows = new ArrayList<ReferenceData.Flight>();
+		for (FlightState f : this._flights.values()){
+			ReferenceData.Flight row = f.row;
+			if (!row.origin.equals(origin.trim()) || !row.destination.equals(destination.trim())) continue;
+			int booked = countBookedSeats(row.flightNum, departure);
+			found.add(new int[]{rows.size(), row.duration, row.seats - booked, booked});
+			rows.add(row);
+		}
+		Comparator<int[]> byDuration = Comparator.comparingInt(a -> a[1]);
+		Comparator<int[]> byAvailable = Comparator.comparingInt((int[] a) -> a[2]).reversed();
+		found.sort(byAvailability ? byAvailable.thenComparing(byDuration) : byDuration.thenComparing(byAvailable));
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (int[] a : found){
+			ReferenceData.Flight row = rows.get(a[0]);
+			result.add(record(row.flightNum, airlineName(row.airId), row.plane, row.duration, row.seats, a[3], a[2]));
+		}
+		return result;
+	}
+
+	public List<List<String>> listFlights(String origin, String destination){
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (FlightState f : this._flights.values()){
+			ReferenceData.Flight row = f.row;
+			if (row.origin.equals(origin.trim()) && row.destination.equals(destination.trim())){
+				result.add(record(row.flightNum, row.origin, row.destination, row.plane, row.duration));
+			}
+		}
+		return result;
+	}
+
+	public List<List<String>> mostPopularDestinations(int k){
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (FlightState f : this._flights.values()) counts.merge(f.row.destination, 1, Integer::sum);
+		List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+		entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Map.Entry<String, Integer> e : entries){
+			if (result.size() >= k) break;
+			result.add(record(e.getKey(), e.getValue()));
+		}
+		return result;
+	}
+
+	public List<List<String>> highestRatedRoutes(int k){
+		List<Object[]> rated = new ArrayList<Object[]>();
+		for (FlightState f : this._flights.values()){
+			synchronized (f){
+				if (f.ratings > 0) rated.add(new Object[]{f.row, (double) f.scoreSum / f.ratings});
+			}
+		}
+		rated.sort((a, b) -> Double.compare((Double) b[1], (Double) a[1]));
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Object[] r : rated){
+			if (result.size() >= k) break;
+			ReferenceData.Flight row = (ReferenceData.Flight) r[0];
+			result.add(record(row.origin, row.destination, r[1], row.flightNum));
+		}
+		return result;
+	}
+
+	public List<List<String>> flightsByDuration(String origin, String destination, int k){
+		List<ReferenceData.Flight> rows = new ArrayList<ReferenceData.Flight>();
+		for (FlightState f : this._flights.values()){
+			ReferenceData.Flight row = f.row;
+			if (row.origin.equals(origin.trim()) && row.destination.equals(destination.trim())) rows.add(row);
+		}
+		rows.sort(Comparator.comparingInt(f -> f.duration));
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (ReferenceData.Flight row : rows){
+			if (result.size() >= k) break;
+			result.add(record(airlineName(row.airId), row.flightNum, row.origin, row.destination, row.duration, row.plane));
+		}
+		return result;
+	}
+
+	private String airlineName(int airId){
+		ReferenceData.Airline a = this._airlines.get(airId);
+		return a == null ? "" : a.name;
+	}
+
+	private static List<String> record(Object... values){
+		List<String> record = new ArrayList<String>(values.length);
+		for (Object v : values) record.add(String.valueOf(v));
+		return record;
+	}
+
+	/**
+	 * Nothing to release.
+	 */
+	public void close(){
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * InMemoryRepository tests
+ * =============================
+ *
+ * Checks that InMemoryRepository enforces the constraints of create.sql the
+ * menu relies on: the seat capacity, the unique (departure, flightNum, pID)
+ * booking and the score range.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests the create.sql constraints InMemoryRepository enforces. */
+
+public class InMemoryRepositoryTest{
+	private static final java.sql.Date JUNE1 = java.sql.Date.valueOf("2017-06-01");
+	private static final java.sql.Date JUNE2 = java.sql.Date.valueOf("2017-06-02");
+
+	private InMemoryRepositoryTest(){
+	}
+
+	private interface Call{
+		void run() throws SQLException;
+	}
+
+	//the call must fail with the SQLState the database would raise
+	private static void fails(String sqlState, Call call, String what){
+		try{
+			call.run();
+		}catch(SQLException e){
+			Checks.check(sqlState.equals(e.getSQLState()), what + ": SQLState " + e.getSQLState() + ", expected " + sqlState);
+			return;
+		}
+		Checks.check(false, what + ": no error, expected SQLState " + sqlState);
+	}
+
+	private static InMemoryRepository store(int seats) throws SQLException {
+		InMemoryRepository store = new InMemoryRepository();
+		store.saveAirline(new ReferenceData.Airline(1, "Test Air", 1990, "USA", "Boston"));
+		store.addFlight(new ReferenceData.Flight(1, "TA100", "Boston", "Austin", "A320", seats, 4));
+		return store;
+	}
+
+	private static void capacity() throws SQLException {
+		InMemoryRepository store = store(3);
+		for (int i = 0; i < 3; i++){
+			int pID = store.addPassenger("P" + i, "Passenger " + i, JUNE1, "USA");
+			Checks.check(store.book(pID, "TA100", JUNE1) != null, "seat " + (i + 1) + " of 3");
+		}
+		int late = store.addPassenger("P3", "Passenger 3", JUNE1, "USA");
+		Checks.check(store.book(late, "TA100", JUNE1) == null, "no fourth seat");
+		Checks.check(store.countBookedSeats("TA100", JUNE1) == 3, "three seats booked");
+		Checks.check(store.book(late, "TA100", JUNE2) != null, "another day has its own seats");
+		fails("23503", () -> store.book(late, "TA999", JUNE1), "unknown flight");
+		fails("23503", () -> store.book(12345, "TA100", JUNE2), "unknown passenger");
+		fails("23514", () -> store.saveFlight(new ReferenceData.Flight(1, "TA101", "Boston", "Austin", "A320", 0, 4)), "no seats");
+		fails("23514", () -> store.saveFlight(new ReferenceData.Flight(1, "TA101", "Boston", "Austin", "A320", 500, 4)), "too many seats");
+	}
+
+	private static void concurrentLastSeats() throws Exception {
+		final int seats = 50, threads = 16, perThread = 20;
+		final InMemoryRepository store = store(seats);
+		final int[][] pIDs = new int[threads][perThread];
+		for (int t = 0; t < threads; t++){
+			for (int i = 0; i < perThread; i++) pIDs[t][i] = store.addPassenger("C" + t + "-" + i, "Client " + t + " " + i, JUNE1, "USA");
+		}
+		final Set<String> bookRefs = ConcurrentHashMap.newKeySet();
+		final AtomicInteger booked = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++){
+			final int[] mine = pIDs[t];
+			workers[t] = new Thread(() -> {
+				try{
+					start.await();
+					for (int pID : mine){
+						String bookRef = store.book(pID, "TA100", JUNE1);
+						if (bookRef != null){
+							booked.incrementAndGet();
+							bookRefs.add(bookRef);
+						}
+					}
+				}catch(Exception e){
+					throw new RuntimeException(e);
+				}
+			});
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread w : workers) w.join();
+		Checks.check(booked.get() == seats, "exactly the seats are booked under contention: " + booked.get());
+		Checks.check(bookRefs.size() == seats, "every booking has its own bookRef");
+		Checks.check(store.countBookedSeats("TA100", JUNE1) == seats, "the count matches");
+	}
+
+	private static void uniqueBooking() throws SQLException {
+		InMemoryRepository store = store(10);
+		int pID = store.addPassenger("U1", "Una Lee", JUNE1, "USA");
+		Checks.check(!store.hasBooking("TA100", JUNE1, pID), "no booking yet");
+		Checks.check(!store.hasFlown(pID, "TA100"), "not flown yet");
+		Checks.check(store.book(pID, "TA100", JUNE1) != null, "first booking");
+		Checks.check(store.book(pID, "TA100", JUNE1) == null, "(departure, flightNum, pID) is unique");
+		Checks.check(store.book(pID, "TA100   ", JUNE1) == null, "also with a padded flight number");
+		Checks.check(store.countBookedSeats("TA100", JUNE1) == 1, "the duplicate takes no seat");
+		Checks.check(store.hasBooking("TA100", JUNE1, pID) && !store.hasBooking("TA100", JUNE2, pID), "booked on that day only");
+		Checks.check(store.book(pID, "TA100", JUNE2) != null, "the same flight another day");
+		Checks.check(store.hasFlown(pID, "TA100"), "flown");
+		fails("23505", () -> store.addPassenger("U1", "Someone Else", JUNE1, "USA"), "passport numbers are unique");
+		fails("23505", () -> store.addFlight(new ReferenceData.Flight(1, "TA100", "Boston", "Dallas", "A320", 10, 4)), "flight numbers are unique");
+		Checks.check(store.login("Una Lee", "U1 ") == pID && store.login("Una", "U1") == null, "login needs the name and the passport");
+	}
+
+	private static void scoreRange() throws SQLException {
+		InMemoryRepository store = store(10);
+		int pID = store.addPassenger("S1", "Sam Rae", JUNE1, "USA");
+		fails("23514", () -> store.addRating(pID, "TA100", -1, "bad"), "score below 0");
+		fails("23514", () -> store.addRating(pID, "TA100", 6, "too good"), "score above 5");
+		Checks.check(store.addRating(pID, "TA100", 0, "worst") != store.addRating(pID, "TA100", 5, "best"), "0 and 5 are allowed");
+		fails("23503", () -> store.addRating(pID, "TA999", 3, ""), "rating of an unknown flight");
+		fails("23503", () -> store.addRating(999, "TA100", 3, ""), "rating by an unknown passenger");
+		Checks.check(store.highestRatedRoutes(1).get(0).get(3).equals("TA100"), "the ratings count towards the route");
+	}
+
+	public static void main(String[] args) throws Exception {
+		capacity();
+		concurrentLastSeats();
+		uniqueBooking();
+		scoreRange();
+		Checks.passed(InMemoryRepositoryTest.class);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * LISTEN/NOTIFY driven cache invalidation
+ * =============================
+ *
+ * The notify_* triggers of create.sql publish one compact event per changed
+ * row on the airbooking_changes channel. This thread receives them and lets
+ * the registered caches invalidate or update the affected entries.
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class owns a dedicated connection that LISTENs on airbooking_changes.
+ * A payload has the form table|op|key..., where op is I, U or D:
+ *
+ *   Airline|U|airId
+ *   Flight|U|flightNum
+ *   Passenger|U|pID|fullName
+ *   Booking|I|flightNum|departure|pID
+ *   Ratings|I|rID
+ *
+ * A Booking update is sent as D of the old row followed by I of the new one.
+ *
+ * Notifications sent while the connection is down are lost, so after every
+ * reconnect the handlers are asked for a full resync instead. A caller that
+ * loads its caches after listen needs no resync on the first connection:
+ * every change committed since then is still delivered.
+ *
+ */
+
+public class InvalidationListener{
+	public static final String CHANNEL = "airbooking_changes";
+
+	/**
+	 * A cache that follows the changes made by other instances.
+	 */
+	public interface Handler{
+		/**
+		 * Called on the listener thread for every change event.
+		 *
+		 * @param c the listener's connection, for targeted reloads
+		 * @param table the changed table, as spelled in create.sql
+		 * @param op I, U or D
+		 * @param key the key fields of the changed row
+		 * @throws java.sql.SQLException when a reload fails; a full resync follows
+		 */
+		void onChange(Connection c, String table, char op, String[] key) throws SQLException;
+
+		/**
+		 * Called on the listener thread when events may have been missed.
+		 *
+		 * @param c the listener's connection
+		 * @throws java.sql.SQLException when the reload fails; it is retried
+		 */
+		void onResync(Connection c) throws SQLException;
+	}
+
+	private final String _url, _user, _passwd;
+	private final long _pollMillis;
+	private final List<Handler> _handlers = new CopyOnWriteArrayList<Handler>();
+	private final Thread _thread;
+	private volatile boolean _running = true;
+	private Connection _connection = null;
+
+	private final AtomicLong _events = new AtomicLong();
+	private final AtomicLong _resyncs = new AtomicLong();
+
+	/**
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param pollMillis how often to check for notifications
+	 */
+	public InvalidationListener(String url, String user, String passwd, long pollMillis){
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._pollMillis = pollMillis;
+		this._thread = new Thread(this::run, "cache-invalidation");
+		this._thread.setDaemon(true);
+	}
+
+	/**
+	 * Registers a cache. Handlers should be added before start.
+	 */
+	public void addHandler(Handler handler){
+		this._handlers.add(handler);
+	}
+
+	/**
+	 * Connects and LISTENs on the caller's thread. Call it before loading the
+	 * caches the handlers keep; the thread then starts on this connection
+	 * without a resync.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be set up
+	 */
+	public void listen() throws SQLException {
+		connect();
+	}
+
+	/**
+	 * Starts the listener thread. Without a prior listen it connects and
+	 * resyncs first.
+	 */
+	public void start(){
+		this._thread.start();
+	}
+
+	private void run(){
+		while (this._running){
+			try{
+				if (this._connection == null){
+					connect();
+					resync();
+				}
+				poll();
+				Thread.sleep(this._pollMillis);
+			}catch(InterruptedException e){
+				this._running = false;
+			}catch(SQLException | RuntimeException e){
+				//a handler that fails during a resync must not end the thread either
+				if (!this._running) break;
+				System.err.println("Cache invalidation listener failed, reconnecting and resyncing: " + e);
+				closeConnection();
+				try{
+					Thread.sleep(Math.max(this._pollMillis, 1000));
+				}catch(InterruptedException ie){
+					this._running = false;
+				}
+			}
+		}
+		closeConnection();
+	}
+
+	private void connect() throws SQLException {
+		this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+		Statement stmt = this._connection.createStatement();
+		stmt.execute("LISTEN " + CHANNEL + ";");
+		stmt.close();
+	}
+
+	private void resync() throws SQLException {
+		for (Handler h : this._handlers) h.onResync(this._connection);
+		this._resyncs.incrementAndGet();
+	}
+
+	/**
+	 * Fetches pending notifications. The driver only reads them off the socket
+	 * while a query runs, hence the empty round trip first.
+	 */
+	private void poll() throws SQLException {
+		Statement stmt = this._connection.createStatement();
+		stmt.execute("SELECT 1;");
+		stmt.close();
+		PGNotification[] notifications = this._connection.unwrap(PGConnection.class).getNotifications();
+		if (notifications == null) return;
+		for (PGNotification n : notifications){
+			String[] fields = n.getParameter().split("\\|", -1);
+			if (fields.length < 3 || fields[1].length() != 1) continue;
+			String[] key = new String[fields.length - 2];
+			System.arraycopy(fields, 2, key, 0, key.length);
+			this._events.incrementAndGet();
+			try{
+				for (Handler h : this._handlers) h.onChange(this._connection, fields[0], fields[1].charAt(0), key);
+			}catch(SQLException | RuntimeException e){
+				//a targeted update failed half way, or the payload was malformed; fall back to a full reload
+				System.err.println("Cache update for " + n.getParameter() + " failed, resyncing: " + e);
+				resync();
+			}
+		}
+	}
+
+	private void closeConnection(){
+		if (this._connection == null) return;
+		try{
+			this._connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		this._connection = null;
+	}
+
+	/**
+	 * Stops the listener thread and closes its connection.
+	 */
+	public void close(){
+		this._running = false;
+		this._thread.interrupt();
+		try{
+			this._thread.join(5000);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+		//the connection of a listen without start
+		if (!this._thread.isAlive()) closeConnection();
+	}
+
+	/** @return the number of change events received */
+	public long getEventCount() { return this._events.get(); }
+
+	/** @return the number of full resyncs performed */
+	public long getResyncCount() { return this._resyncs.get(); }
+}
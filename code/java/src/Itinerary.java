@@ -0,0 +1,149 @@
+/*
+ * Passenger itinerary history
+ * =============================
+ *
+ * Lists the bookings of one passenger, newest departure first, together with
+ * the flight, the airline and the passenger's own rating of the flight.
+ * Backed by the booking_pid_departure index (see create.sql).
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * This class reads itineraries either a page at a time or as a stream.
+ * Pages use a keyset cursor on (departure, bookRef): the next page starts
+ * strictly after the last booking of the previous one, so the index is
+ * entered at that point instead of skipping OFFSET rows. The stream walks
+ * the whole history through a server-side cursor, holding only one fetch
+ * of rows in memory however many bookings the passenger has.
+ *
+ */
+
+public final class Itinerary{
+	/** One booking of the itinerary. */
+	public static final class Entry{
+		public final String bookRef;
+		public final java.sql.Date departure;
+		public final String flightNum;
+		public final String origin;
+		public final String destination;
+		public final int duration;
+		public final String airline;
+		//the passenger's latest rating of the flight, score is -1 when not rated
+		public final int score;
+		public final String comment;
+
+		Entry(ResultSet rs) throws SQLException {
+			this.bookRef = rs.getString(1).trim();
+			this.departure = rs.getDate(2);
+			this.flightNum = rs.getString(3).trim();
+			this.origin = rs.getString(4).trim();
+			this.destination = rs.getString(5).trim();
+			this.duration = rs.getInt(6);
+			this.airline = rs.getString(7).trim();
+			int score = rs.getInt(8);
+			this.score = rs.wasNull() ? -1 : score;
+			this.comment = rs.getString(9);
+		}
+
+		/** @return the cursor of the page that follows this booking */
+		public Cursor next(){
+			return new Cursor(this.departure, this.bookRef);
+		}
+	}
+
+	/** Position after which the next page starts. */
+	public static final class Cursor{
+		public final java.sql.Date departure;
+		public final String bookRef;
+
+		public Cursor(java.sql.Date departure, String bookRef){
+			this.departure = departure;
+			this.bookRef = bookRef;
+		}
+	}
+
+	private static final String SELECT =
+		"SELECT B.bookRef, B.departure, F.flightNum, F.origin, F.destination, F.duration, A.name, R.score, R.comment "
+		+ "FROM Booking B JOIN Flight F ON F.flightNum = B.flightNum JOIN Airline A ON A.airId = F.airId "
+		+ "LEFT JOIN LATERAL (SELECT score, comment FROM Ratings WHERE pID = B.pID AND flightNum = B.flightNum ORDER BY rID DESC LIMIT 1) R ON true "
+		+ "WHERE B.pID = ? ";
+	private static final String ORDER = "ORDER BY B.departure DESC, B.bookRef DESC";
+	static final String FIRST_PAGE_SQL = SELECT + ORDER + " LIMIT ?;";
+	static final String NEXT_PAGE_SQL = SELECT + "AND (B.departure, B.bookRef) < (?, ?::char(10)) " + ORDER + " LIMIT ?;";
+	static final String ALL_SQL = SELECT + ORDER + ";";
+
+	private Itinerary(){
+	}
+
+	/**
+	 * Reads one page of a passenger's bookings.
+	 *
+	 * @param c the connection to run the query on
+	 * @param pID the passenger
+	 * @param after the cursor of the previous page, or null for the first page
+	 * @param limit the page size
+	 * @return the bookings of the page, newest departure first
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static List<Entry> page(Connection c, int pID, Cursor after, int limit) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement(after == null ? FIRST_PAGE_SQL : NEXT_PAGE_SQL);
+		try{
+			int p = 1;
+			stmt.setInt(p++, pID);
+			if (after != null){
+				stmt.setDate(p++, after.departure);
+				stmt.setString(p++, after.bookRef);
+			}
+			stmt.setInt(p, limit);
+			ResultSet rs = stmt.executeQuery();
+			List<Entry> entries = new ArrayList<Entry>();
+			while (rs.next()) entries.add(new Entry(rs));
+			return entries;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Passes every booking of a passenger to the consumer, newest departure
+	 * first. The driver only fetches through a cursor inside a transaction,
+	 * so auto-commit is switched off for the duration of the call.
+	 *
+	 * @param c the connection to run the query on
+	 * @param pID the passenger
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param consumer receives the bookings
+	 * @return the number of bookings streamed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static long stream(Connection c, int pID, int fetchSize, Consumer<Entry> consumer) throws SQLException {
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		PreparedStatement stmt = c.prepareStatement(ALL_SQL);
+		try{
+			stmt.setFetchSize(fetchSize);
+			stmt.setInt(1, pID);
+			ResultSet rs = stmt.executeQuery();
+			long count = 0;
+			while (rs.next()){
+				consumer.accept(new Entry(rs));
+				count++;
+			}
+			return count;
+		}finally{
+			stmt.close();
+			//read only, nothing to keep
+			c.rollback();
+			c.setAutoCommit(autoCommit);
+		}
+	}
+}
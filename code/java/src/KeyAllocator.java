@@ -0,0 +1,160 @@
+/*
+ * Client-side hi/lo key allocation
+ * =============================
+ *
+ * pID_seq, rID_seq and bookRef_seq advance in blocks (INCREMENT BY in
+ * create.sql). One nextval reserves a whole block of keys for this client,
+ * which then hands them out from memory.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out primary keys for Passenger, Ratings and Booking so
+ * inserts can carry their key instead of relying on the next_* triggers and
+ * a currval round trip. A call to nextval returning v reserves the keys
+ * v .. v + increment - 1; no other nextval caller can receive a value in
+ * that range, so instances sharing the database never collide.
+ *
+ * Handing out a key is a single atomic increment. Only the thread that
+ * finds the current block exhausted takes the lock and fetches a new one.
+ *
+ */
+
+public class KeyAllocator{
+	public static final String PASSENGER_SEQ = "pID_seq";
+	public static final String RATING_SEQ = "rID_seq";
+	public static final String BOOKING_SEQ = "bookRef_seq";
+
+	//a reserved range of keys; next may run past end once exhausted
+	private static final class Block{
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end){
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+
+	//per sequence allocation state
+	private final class Sequence{
+		final String name;
+		final String existingKeysQuery;
+		volatile Block block = new Block(0, 0);
+		long increment;
+		long floor;
+
+		Sequence(String name, String existingKeysQuery){
+			this.name = name;
+			this.existingKeysQuery = existingKeysQuery;
+		}
+
+		long next() throws SQLException {
+			while (true){
+				Block b = this.block;
+				long id = b.next.getAndIncrement();
+				if (id < b.end) return id;
+				refill(b);
+			}
+		}
+
+		private synchronized void refill(Block exhausted) throws SQLException {
+			//another thread may have refilled while this one waited for the lock
+			if (this.block != exhausted) return;
+			Connection c = _pool.borrow();
+			try{
+				if (this.increment == 0) init(c);
+				long start;
+				do{
+					start = nextval(c);
+				}while (start <= this.floor);
+				this.block = new Block(start, start + this.increment);
+			}finally{
+				_pool.release(c);
+			}
+		}
+
+		/**
+		 * Reads the block size of the sequence and the highest key already in
+		 * the table, so blocks overlapping the CSV-loaded keys are skipped.
+		 */
+		private void init(Connection c) throws SQLException {
+			Statement stmt = c.createStatement();
+			try{
+				ResultSet rs;
+				try{
+					rs = stmt.executeQuery("SELECT seqincrement FROM pg_sequence WHERE seqrelid = '" + this.name + "'::regclass;");
+				}catch(SQLException e){
+					//servers before 10 keep the increment in the sequence relation itself
+					rs = stmt.executeQuery("SELECT increment_by FROM " + this.name + ";");
+				}
+				this.increment = rs.next() ? rs.getLong(1) : 1;
+				rs = stmt.executeQuery(this.existingKeysQuery);
+				this.floor = rs.next() ? rs.getLong(1) : 0;
+			}finally{
+				stmt.close();
+			}
+			if (this.increment < 1) throw new SQLException(this.name + " must have a positive increment");
+		}
+
+		private long nextval(Connection c) throws SQLException {
+			PreparedStatement stmt = c.prepareStatement("SELECT nextval(?::regclass);");
+			try{
+				stmt.setString(1, this.name);
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				return rs.getLong(1);
+			}finally{
+				stmt.close();
+			}
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final Map<String, Sequence> _sequences = new HashMap<String, Sequence>();
+
+	/**
+	 * @param pool the connections used to reserve new blocks
+	 */
+	public KeyAllocator(ConnectionPool pool){
+		this._pool = pool;
+		this._sequences.put(PASSENGER_SEQ, new Sequence(PASSENGER_SEQ, "SELECT COALESCE(MAX(pID), -1) FROM Passenger;"));
+		this._sequences.put(RATING_SEQ, new Sequence(RATING_SEQ, "SELECT COALESCE(MAX(rID), -1) FROM Ratings;"));
+		//bookRefs loaded from CSV are alphanumeric and cannot clash with numeric keys
+		this._sequences.put(BOOKING_SEQ, new Sequence(BOOKING_SEQ, "SELECT COALESCE(MAX(bookRef::bigint), -1) FROM Booking WHERE bookRef ~ '^[0-9]+$';"));
+	}
+
+	/**
+	 * @return a new, unused pID
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int nextPassengerId() throws SQLException {
+		return Math.toIntExact(this._sequences.get(PASSENGER_SEQ).next());
+	}
+
+	/**
+	 * @return a new, unused rID
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int nextRatingId() throws SQLException {
+		return Math.toIntExact(this._sequences.get(RATING_SEQ).next());
+	}
+
+	/**
+	 * @return a new, unused bookRef
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public String nextBookRef() throws SQLException {
+		return String.valueOf(this._sequences.get(BOOKING_SEQ).next());
+	}
+}
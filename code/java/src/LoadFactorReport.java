@@ -0,0 +1,436 @@
+/*
+ * Load factor analytics
+ * =============================
+ *
+ * Computes how full the flights are, per flight, route, airline and month,
+ * on the client: Booking is streamed out once and aggregated in parallel,
+ * so the database only pays for a sequential scan.
+ *
+ */
+
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+
+/**
+ * This class computes load factors, booked seats divided by offered seats.
+ * A flight is taken to operate on every date it has at least one booking,
+ * offering Flight.seats seats on each, so the load factor of a group is the
+ * sum of its bookings over the sum of the seats of its operated dates.
+ *
+ * Booking is read with COPY TO STDOUT, which streams rows in text form
+ * without a per-row protocol message. A reader thread cuts the stream into
+ * chunks at line boundaries and hands them to worker threads, which parse
+ * the rows and count bookings per (flight, date) in primitive long to int
+ * hash maps of their own. The partial maps are merged once the stream ends
+ * and rolled up using the reference snapshot. The reader hands chunks over
+ * with a timed offer and checks the workers whenever the queue stays full,
+ * so a failed worker cancels the COPY and fails the report instead of
+ * leaving the reader blocked.
+ *
+ */
+
+public class LoadFactorReport{
+	private static final int CHUNK_BYTES = 1 << 20;
+	//how long the reader waits on a full queue before it checks the workers
+	private static final long HANDOVER_POLL_MILLIS = 100;
+
+	/** Booked and offered seats of one group. */
+	public static final class Totals{
+		public long booked;
+		public long seats;
+		public int departures;
+
+		void add(int booked, int seats){
+			this.booked += booked;
+			this.seats += seats;
+			this.departures++;
+		}
+
+		/** @return booked over offered seats */
+		public double loadFactor(){
+			return this.seats == 0 ? 0 : (double) this.booked / this.seats;
+		}
+	}
+
+	/** The aggregates of one run. */
+	public static final class Result{
+		public final java.sql.Date from, to;
+		public final Map<String, Totals> byFlight = new TreeMap<String, Totals>();
+		public final Map<String, Totals> byRoute = new TreeMap<String, Totals>();
+		public final Map<String, Totals> byAirline = new TreeMap<String, Totals>();
+		public final Map<String, Totals> byMonth = new TreeMap<String, Totals>();
+		public long bookings;
+		//rows of flights missing from the reference snapshot
+		public long unknown;
+		public long elapsedNanos;
+
+		Result(java.sql.Date from, java.sql.Date to){
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * Receives the report, one section at a time.
+	 */
+	public interface ReportWriter{
+		void section(String title, String... columns) throws IOException;
+		void row(Object... values) throws IOException;
+		void close() throws IOException;
+	}
+
+	/**
+	 * Tab separated sections in the style of the menu listings.
+	 */
+	public static final class TextWriter implements ReportWriter{
+		private final PrintWriter _out;
+
+		public TextWriter(PrintWriter out){
+			this._out = out;
+		}
+
+		public void section(String title, String... columns){
+			this._out.println();
+			this._out.println(title);
+			this._out.println(String.join(" \t ", columns));
+		}
+
+		public void row(Object... values){
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < values.length; i++){
+				if (i > 0) line.append('\t');
+				line.append(values[i] instanceof Double ? String.format("%.3f", values[i]) : String.valueOf(values[i]));
+			}
+			this._out.println(line);
+		}
+
+		public void close(){
+			this._out.flush();
+		}
+	}
+
+	/**
+	 * Comma separated rows, each prefixed with its section name, for loading
+	 * into a spreadsheet.
+	 */
+	public static final class CsvWriter implements ReportWriter{
+		private final PrintWriter _out;
+		private String _section;
+
+		public CsvWriter(PrintWriter out){
+			this._out = out;
+		}
+
+		public void section(String title, String... columns){
+			this._section = title;
+			this._out.println("section," + String.join(",", columns));
+		}
+
+		public void row(Object... values){
+			StringBuilder line = new StringBuilder(quote(this._section));
+			for (Object v : values) line.append(',').append(quote(String.valueOf(v)));
+			this._out.println(line);
+		}
+
+		private static String quote(String s){
+			if (s.indexOf(',') < 0 && s.indexOf('"') < 0) return s;
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+
+		public void close(){
+			this._out.close();
+		}
+	}
+
+	//open addressing map from a long key to an int counter
+	private static final class LongIntMap{
+		private static final long EMPTY = Long.MIN_VALUE;
+		long[] keys;
+		int[] values;
+		int size;
+
+		LongIntMap(int capacity){
+			int n = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+			this.keys = new long[n];
+			this.values = new int[n];
+			java.util.Arrays.fill(this.keys, EMPTY);
+		}
+
+		void add(long key, int delta){
+			int mask = this.keys.length - 1;
+			int i = (int) (mix(key) & mask);
+			while (true){
+				long k = this.keys[i];
+				if (k == key){
+					this.values[i] += delta;
+					return;
+				}
+				if (k == EMPTY){
+					this.keys[i] = key;
+					this.values[i] = delta;
+					if (++this.size * 2 > this.keys.length) grow();
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		private void grow(){
+			long[] keys = this.keys;
+			int[] values = this.values;
+			this.keys = new long[keys.length * 2];
+			this.values = new int[keys.length * 2];
+			java.util.Arrays.fill(this.keys, EMPTY);
+			this.size = 0;
+			for (int i = 0; i < keys.length; i++){
+				if (keys[i] != EMPTY) add(keys[i], values[i]);
+			}
+		}
+
+		void addAll(LongIntMap other){
+			for (int i = 0; i < other.keys.length; i++){
+				if (other.keys[i] != EMPTY) add(other.keys[i], other.values[i]);
+			}
+		}
+
+		private static long mix(long key){
+			key *= 0x9E3779B97F4A7C15L;
+			return key ^ (key >>> 32);
+		}
+	}
+
+	private LoadFactorReport(){
+	}
+
+	/**
+	 * Aggregates the bookings departing in [from, to).
+	 *
+	 * @param c the connection to stream Booking from
+	 * @param reference supplies the seats, route and airline of every flight
+	 * @param from the first departure date included, or null for no lower bound
+	 * @param to the first departure date excluded, or null for no upper bound
+	 * @param threads the number of worker threads
+	 * @return the aggregates
+	 * @throws java.sql.SQLException when the stream cannot be opened
+	 * @throws java.io.IOException when the stream fails mid way
+	 * @throws java.lang.InterruptedException when interrupted while waiting for the workers
+	 */
+	public static Result compute(Connection c, ReferenceData reference, java.sql.Date from, java.sql.Date to, int threads) throws SQLException, IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<ReferenceData.Flight> flights = new ArrayList<ReferenceData.Flight>(reference.flights().values());
+		final Map<String, Integer> flightIds = new HashMap<String, Integer>();
+		for (int i = 0; i < flights.size(); i++) flightIds.put(flights.get(i).flightNum, i);
+
+		//the dates are generated by java.sql.Date, COPY takes no parameters
+		StringBuilder query = new StringBuilder("COPY (SELECT trim(flightNum), departure - DATE '1970-01-01' FROM Booking WHERE true");
+		if (from != null) query.append(" AND departure >= DATE '").append(from).append('\'');
+		if (to != null) query.append(" AND departure < DATE '").append(to).append('\'');
+		query.append(") TO STDOUT");
+
+		final byte[] end = new byte[0];
+		final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(threads * 2);
+		final long[] unknown = new long[threads];
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<LongIntMap>> partials = new ArrayList<Future<LongIntMap>>();
+		try{
+			for (int t = 0; t < threads; t++){
+				final int worker = t;
+				partials.add(workers.submit(() -> {
+					LongIntMap counts = new LongIntMap(1 << 16);
+					while (true){
+						byte[] chunk = chunks.take();
+						if (chunk == end){
+							chunks.put(end);
+							return counts;
+						}
+						unknown[worker] += parse(chunk, flightIds, counts);
+					}
+				}));
+			}
+			InputStream in = new PGCopyInputStream(c.unwrap(PGConnection.class), query.toString());
+			try{
+				byte[] buffer = new byte[CHUNK_BYTES];
+				int filled = 0;
+				boolean eof = false;
+				while (!eof){
+					int n = in.read(buffer, filled, buffer.length - filled);
+					if (n < 0) eof = true;
+					else filled += n;
+					if (filled < buffer.length && !eof) continue;
+					//hand over whole lines only; COPY ends every row, the last one included, with a newline
+					int cut = filled;
+					if (!eof){
+						while (cut > 0 && buffer[cut - 1] != '\n') cut--;
+						if (cut == 0) throw new IOException("COPY row longer than " + CHUNK_BYTES + " bytes");
+					}
+					if (cut > 0) handOver(chunks, java.util.Arrays.copyOf(buffer, cut), partials);
+					System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+					filled -= cut;
+				}
+			}finally{
+				//cancels the COPY when the reader stops early
+				in.close();
+			}
+			handOver(chunks, end, partials);
+
+			LongIntMap counts = null;
+			for (Future<LongIntMap> f : partials){
+				LongIntMap partial = result(f);
+				if (counts == null || partial.size > counts.size){
+					if (counts != null) partial.addAll(counts);
+					counts = partial;
+				}
+				else counts.addAll(partial);
+			}
+
+			Result result = rollUp(counts, flights, reference, from, to);
+			for (long u : unknown) result.unknown += u;
+			result.elapsedNanos = System.nanoTime() - start;
+			return result;
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queues a chunk for the workers, waiting while the queue is full. A
+	 * worker only returns after the end marker, which is queued last, so a
+	 * worker that is done while the reader still waits has failed.
+	 *
+	 * @throws java.io.IOException when a worker failed
+	 */
+	private static void handOver(BlockingQueue<byte[]> chunks, byte[] chunk, List<Future<LongIntMap>> workers) throws IOException, InterruptedException {
+		while (!chunks.offer(chunk, HANDOVER_POLL_MILLIS, TimeUnit.MILLISECONDS)){
+			for (Future<LongIntMap> f : workers){
+				if (f.isDone()) result(f);
+			}
+		}
+	}
+
+	private static LongIntMap result(Future<LongIntMap> worker) throws IOException, InterruptedException {
+		try{
+			return worker.get();
+		}catch(ExecutionException e){
+			throw new IOException("Load factor worker failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Parses lines of the form flightNum TAB epochDay and counts them.
+	 *
+	 * @return the number of rows of flights missing from the snapshot
+	 */
+	private static long parse(byte[] chunk, Map<String, Integer> flightIds, LongIntMap counts){
+		long unknown = 0;
+		int pos = 0;
+		while (pos < chunk.length){
+			int tab = pos;
+			while (chunk[tab] != '\t') tab++;
+			String flightNum = new String(chunk, pos, tab - pos, java.nio.charset.StandardCharsets.UTF_8);
+			int i = tab + 1;
+			boolean negative = chunk[i] == '-';
+			if (negative) i++;
+			int day = 0;
+			while (chunk[i] != '\n') day = day * 10 + (chunk[i++] - '0');
+			if (negative) day = -day;
+			pos = i + 1;
+			Integer id = flightIds.get(flightNum);
+			if (id == null){
+				unknown++;
+				continue;
+			}
+			counts.add(((long) id << 32) | (day & 0xFFFFFFFFL), 1);
+		}
+		return unknown;
+	}
+
+	private static Result rollUp(LongIntMap counts, List<ReferenceData.Flight> flights, ReferenceData reference, java.sql.Date from, java.sql.Date to){
+		Result result = new Result(from, to);
+		for (int i = 0; i < counts.keys.length; i++){
+			long key = counts.keys[i];
+			if (key == LongIntMap.EMPTY) continue;
+			int booked = counts.values[i];
+			ReferenceData.Flight f = flights.get((int) (key >>> 32));
+			LocalDate day = LocalDate.ofEpochDay((int) key);
+			ReferenceData.Airline airline = reference.airline(f.airId);
+			String month = String.format("%04d-%02d", day.getYear(), day.getMonthValue());
+			totals(result.byFlight, f.flightNum).add(booked, f.seats);
+			totals(result.byRoute, f.origin + " -> " + f.destination).add(booked, f.seats);
+			totals(result.byAirline, airline == null ? String.valueOf(f.airId) : airline.name).add(booked, f.seats);
+			totals(result.byMonth, month).add(booked, f.seats);
+			result.bookings += booked;
+		}
+		return result;
+	}
+
+	private static Totals totals(Map<String, Totals> groups, String key){
+		Totals t = groups.get(key);
+		if (t == null){
+			t = new Totals();
+			groups.put(key, t);
+		}
+		return t;
+	}
+
+	/**
+	 * Writes the report: the totals per airline and month, the k most and
+	 * least utilized routes and flights.
+	 *
+	 * @param result the aggregates to report
+	 * @param k the length of the top lists
+	 * @param out receives the report; it is closed at the end
+	 * @throws java.io.IOException when the writer fails
+	 */
+	public static void write(Result result, int k, ReportWriter out) throws IOException {
+		try{
+			out.section(String.format("Load factor of %d bookings departing %s to %s (%.1f ms)", result.bookings,
+				result.from == null ? "any date" : result.from.toString(), result.to == null ? "any date" : result.to.toString(),
+				result.elapsedNanos / 1e6), "Airline", "Departures", "Booked", "Seats", "Load Factor");
+			for (Map.Entry<String, Totals> e : result.byAirline.entrySet()) row(out, e);
+			out.section("By month", "Month", "Departures", "Booked", "Seats", "Load Factor");
+			for (Map.Entry<String, Totals> e : result.byMonth.entrySet()) row(out, e);
+			out.section("Most utilized routes", "Route", "Departures", "Booked", "Seats", "Load Factor");
+			for (Map.Entry<String, Totals> e : top(result.byRoute, k, true)) row(out, e);
+			out.section("Least utilized routes", "Route", "Departures", "Booked", "Seats", "Load Factor");
+			for (Map.Entry<String, Totals> e : top(result.byRoute, k, false)) row(out, e);
+			out.section("Most utilized flights", "Flight Number", "Departures", "Booked", "Seats", "Load Factor");
+			for (Map.Entry<String, Totals> e : top(result.byFlight, k, true)) row(out, e);
+			out.section("Least utilized flights", "Flight Number", "Departures", "Booked", "Seats", "Load Factor");
+			for (Map.Entry<String, Totals> e : top(result.byFlight, k, false)) row(out, e);
+		}finally{
+			out.close();
+		}
+	}
+
+	private static void row(ReportWriter out, Map.Entry<String, Totals> e) throws IOException {
+		Totals t = e.getValue();
+		out.row(e.getKey(), t.departures, t.booked, t.seats, t.loadFactor());
+	}
+
+	private static List<Map.Entry<String, Totals>> top(Map<String, Totals> groups, int k, boolean highest){
+		List<Map.Entry<String, Totals>> entries = new ArrayList<Map.Entry<String, Totals>>(groups.entrySet());
+		Comparator<Map.Entry<String, Totals>> byLoad = Comparator.comparingDouble(e -> e.getValue().loadFactor());
+		entries.sort(highest ? byLoad.reversed() : byLoad);
+		return entries.subList(0, Math.min(Math.max(k, 0), entries.size()));
+	}
+}
@@ -0,0 +1,587 @@
+/*
+ * Load generation and workload replay for the menu operations
+ * =============================
+ *
+ * Drives the same data access methods as the AirBooking menu from many
+ * concurrent clients and reports latency and throughput per operation.
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a command line load generator. Usage:
+ *
+ *   java LoadGenerator <dbname> <port> <user> [key=value ...]
+ *
+ *   clients=8        concurrent clients, each with its own connection
+ *   rate=0           total arrivals per second; 0 runs closed loop
+ *   arrival=poisson  poisson or uniform inter-arrival times (open loop)
+ *   duration=30      seconds of load, warm-up included
+ *   warmup=5         seconds at the start excluded from the report
+ *   mix=search=30,seats=25,book=15,review=10,addPassenger=5,listFlights=5,popular=3,rated=3,byDuration=4
+ *   zipf=1.0         skew of the flight and date choice (0 is uniform)
+ *   days=60          number of departure dates to spread bookings over
+ *   start=yyyy-mm-dd first departure date (today by default)
+ *   seed=42          seed of the generator
+ *   record=<file>    write every issued operation to a trace file
+ *   replay=<file>    issue the operations of a trace at their recorded times
+ *   engine=direct    direct: AirBooking methods on each client's connection
+ *                    postgres: PostgresRepository over the shared pool
+ *                    memory: InMemoryRepository loaded with a copy of the
+ *                    database, an upper bound free of database costs
+ *
+ * In open loop (rate &gt; 0 or replay) each operation has an intended start
+ * time and its latency is measured from that time, not from when a client
+ * got around to it, so queueing behind a slow operation is counted instead
+ * of hidden (coordinated omission).
+ *
+ */
+
+public class LoadGenerator{
+	static final String[] OPS = {"search", "seats", "book", "review", "addPassenger", "listFlights", "popular", "rated", "byDuration"};
+
+	//one operation with its arguments, as generated or read from a trace
+	static final class Op{
+		final long offsetNanos;
+		final int type;
+		final String[] args;
+
+		Op(long offsetNanos, int type, String... args){
+			this.offsetNanos = offsetNanos;
+			this.type = type;
+			this.args = args;
+		}
+
+		String toTraceLine(){
+			StringBuilder line = new StringBuilder();
+			line.append(this.offsetNanos / 1000).append('\t').append(OPS[this.type]);
+			for (String a : this.args) line.append('\t').append(a);
+			return line.toString();
+		}
+
+		static Op fromTraceLine(String line){
+			String[] fields = line.split("\t", -1);
+			int type = opIndex(fields[1]);
+			String[] args = new String[fields.length - 2];
+			System.arraycopy(fields, 2, args, 0, args.length);
+			return new Op(Long.parseLong(fields[0]) * 1000, type, args);
+		}
+	}
+
+	/**
+	 * Log-linear latency histogram in microseconds: exact below 128 us, then
+	 * 64 buckets per power of two, i.e. under 1.6% relative error.
+	 */
+	static final class Histogram{
+		private final long[] _counts = new long[64 * 40];
+		private long _total, _max, _sumMicros;
+
+		void record(long nanos){
+			long v = Math.max(0, nanos / 1000);
+			this._counts[index(v)]++;
+			this._total++;
+			this._sumMicros += v;
+			if (v > this._max) this._max = v;
+		}
+
+		void add(Histogram other){
+			for (int i = 0; i < this._counts.length; ++i) this._counts[i] += other._counts[i];
+			this._total += other._total;
+			this._sumMicros += other._sumMicros;
+			this._max = Math.max(this._max, other._max);
+		}
+
+		long count() { return this._total; }
+
+		double meanMillis() { return this._total == 0 ? 0 : this._sumMicros / 1000.0 / this._total; }
+
+		double maxMillis() { return this._max / 1000.0; }
+
+		double percentileMillis(double p){
+			if (this._total == 0) return 0;
+			long rank = (long) Math.ceil(p / 100.0 * this._total);
+			long seen = 0;
+			for (int i = 0; i < this._counts.length; ++i){
+				seen += this._counts[i];
+				if (seen >= rank) return Math.min(valueAt(i), this._max) / 1000.0;
+			}
+			return this._max / 1000.0;
+		}
+
+		private static int index(long v){
+			if (v < 128) return (int) v;
+			int shift = 63 - Long.numberOfLeadingZeros(v) - 6;
+			return Math.min(shift * 64 + (int) (v >>> shift), 64 * 40 - 1);
+		}
+
+		//upper bound of the values that fall into a bucket
+		private static long valueAt(int index){
+			if (index < 128) return index;
+			int shift = index / 64 - 1;
+			return ((long) (index - shift * 64 + 1) << shift) - 1;
+		}
+	}
+
+	/**
+	 * Samples ranks 0..n-1 with probability proportional to 1/(rank+1)^s.
+	 */
+	static final class Zipf{
+		private final double[] _cdf;
+
+		Zipf(int n, double s){
+			this._cdf = new double[Math.max(1, n)];
+			double sum = 0;
+			for (int i = 0; i < this._cdf.length; ++i){
+				sum += 1.0 / Math.pow(i + 1, s);
+				this._cdf[i] = sum;
+			}
+			for (int i = 0; i < this._cdf.length; ++i) this._cdf[i] /= sum;
+		}
+
+		int sample(Random r){
+			int i = java.util.Arrays.binarySearch(this._cdf, r.nextDouble());
+			return Math.min(i >= 0 ? i : -i - 1, this._cdf.length - 1);
+		}
+	}
+
+	//per client measurements, merged after the run
+	static final class Stats{
+		final Histogram[] latency = new Histogram[OPS.length];
+		final long[] refused = new long[OPS.length];
+		final long[] errors = new long[OPS.length];
+
+		Stats(){
+			for (int i = 0; i < OPS.length; ++i) this.latency[i] = new Histogram();
+		}
+
+		void add(Stats other){
+			for (int i = 0; i < OPS.length; ++i){
+				this.latency[i].add(other.latency[i]);
+				this.refused[i] += other.refused[i];
+				this.errors[i] += other.errors[i];
+			}
+		}
+	}
+
+	private final Map<String, String> _conf;
+	private final AirBooking _esql;
+	//the storage the operations run against, null for the direct path
+	private final AirBookingRepository _repository;
+	private final String _url, _user;
+	private final ReferenceData.Flight[] _flights;
+	private final int[] _passengers;
+	private final int[][] _flown;
+	private final double[] _mix;
+	private final Zipf _flightZipf, _dateZipf;
+	private final long _startDay;
+	private final long _warmupNanos, _durationNanos;
+	private BufferedWriter _trace = null;
+	private volatile long _t0;
+
+	LoadGenerator(Map<String, String> conf, AirBooking esql, String url, String user) throws SQLException {
+		this._conf = conf;
+		this._esql = esql;
+		this._url = url;
+		this._user = user;
+		Random seeded = new Random(Long.parseLong(conf("seed", "42")));
+
+		//flight popularity follows a random but reproducible ranking
+		List<ReferenceData.Flight> flights = new ArrayList<ReferenceData.Flight>(new java.util.TreeMap<String, ReferenceData.Flight>(esql.getReferenceData().flights()).values());
+		Collections.shuffle(flights, seeded);
+		this._flights = flights.toArray(new ReferenceData.Flight[flights.size()]);
+
+		List<Integer> passengers = new ArrayList<Integer>();
+		List<int[]> flown = new ArrayList<int[]>();
+		Map<String, Integer> flightIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < this._flights.length; ++i) flightIndex.put(this._flights[i].flightNum, i);
+		Connection c = esql.getPool().borrow();
+		try{
+			Statement stmt = c.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT pID FROM Passenger LIMIT 100000;");
+			while (rs.next()) passengers.add(rs.getInt(1));
+			rs = stmt.executeQuery("SELECT DISTINCT pID, flightNum FROM Booking LIMIT 100000;");
+			while (rs.next()){
+				Integer f = flightIndex.get(rs.getString(2).trim());
+				if (f != null) flown.add(new int[]{rs.getInt(1), f});
+			}
+			stmt.close();
+		}finally{
+			esql.getPool().release(c);
+		}
+		this._passengers = new int[passengers.size()];
+		for (int i = 0; i < this._passengers.length; ++i) this._passengers[i] = passengers.get(i);
+		this._flown = flown.toArray(new int[flown.size()][]);
+		if (this._flights.length == 0) throw new SQLException("There are no flights to run the load against");
+
+		double[] weights = parseMix(conf("mix", "search=30,seats=25,book=15,review=10,addPassenger=5,listFlights=5,popular=3,rated=3,byDuration=4"));
+		//operations that need sample rows are left out when there are none
+		if (this._passengers.length == 0) weights[opIndex("book")] = 0;
+		if (this._flown.length == 0) weights[opIndex("review")] = 0;
+		this._mix = cumulative(weights);
+		double skew = Double.parseDouble(conf("zipf", "1.0"));
+		int days = Integer.parseInt(conf("days", "60"));
+		this._flightZipf = new Zipf(this._flights.length, skew);
+		this._dateZipf = new Zipf(days, skew);
+		String start = conf("start", null);
+		this._startDay = start == null ? java.time.LocalDate.now().toEpochDay() : java.time.LocalDate.parse(start).toEpochDay();
+		String engine = conf("engine", "direct");
+		if (engine.equals("memory")){
+			long t = System.nanoTime();
+			c = esql.getPool().borrow();
+			try{
+				this._repository = InMemoryRepository.load(c);
+			}finally{
+				esql.getPool().release(c);
+			}
+			System.out.println(String.format("In-memory engine loaded in %.1f ms", (System.nanoTime() - t) / 1e6));
+		}
+		else if (engine.equals("postgres")) this._repository = new PostgresRepository(esql.getPool(), esql.getKeys());
+		else if (engine.equals("direct")) this._repository = null;
+		else throw new IllegalArgumentException("Unknown engine " + engine);
+		this._warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(conf("warmup", "5")));
+		this._durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(conf("duration", "30")));
+	}
+
+	private String conf(String key, String fallback){
+		String v = this._conf.get(key);
+		return v == null ? fallback : v;
+	}
+
+	private static int opIndex(String name){
+		for (int i = 0; i < OPS.length; ++i) if (OPS[i].equals(name)) return i;
+		throw new IllegalArgumentException("Unknown operation " + name);
+	}
+
+	//weights of the operation mix, indexed like OPS
+	private static double[] parseMix(String mix){
+		double[] weights = new double[OPS.length];
+		for (String part : mix.split(",")){
+			String[] kv = part.split("=");
+			weights[opIndex(kv[0].trim())] = Double.parseDouble(kv[1].trim());
+		}
+		return weights;
+	}
+
+	//turns weights into a cumulative distribution
+	private static double[] cumulative(double[] weights){
+		weights = weights.clone();
+		double sum = 0;
+		for (int i = 0; i < weights.length; ++i){
+			sum += weights[i];
+			weights[i] = sum;
+		}
+		if (sum <= 0) throw new IllegalArgumentException("The operation mix has no positive weight");
+		for (int i = 0; i < weights.length; ++i) weights[i] /= sum;
+		return weights;
+	}
+
+	/**
+	 * Draws the next operation of the configured mix.
+	 */
+	Op generate(Random r, long offsetNanos){
+		double pick = r.nextDouble();
+		int type = 0;
+		while (type < OPS.length - 1 && (pick >= this._mix[type] || this._mix[type] == 0)) type++;
+		ReferenceData.Flight f = this._flights[this._flightZipf.sample(r)];
+		String date = java.time.LocalDate.ofEpochDay(this._startDay + this._dateZipf.sample(r)).toString();
+		switch (OPS[type]){
+			case "search": return new Op(offsetNanos, type, f.origin, f.destination, date, String.valueOf(r.nextBoolean()));
+			case "seats": return new Op(offsetNanos, type, f.flightNum, date);
+			case "book": return new Op(offsetNanos, type, String.valueOf(this._passengers[r.nextInt(this._passengers.length)]), f.flightNum, date);
+			case "review":
+				int[] pair = this._flown[r.nextInt(this._flown.length)];
+				return new Op(offsetNanos, type, String.valueOf(pair[0]), this._flights[pair[1]].flightNum, String.valueOf(r.nextInt(6)), "load test");
+			case "addPassenger":
+				char[] passNum = new char[10];
+				for (int i = 0; i < passNum.length; ++i) passNum[i] = (char) ('A' + r.nextInt(26));
+				return new Op(offsetNanos, type, new String(passNum), "Load Tester", "1980-01-01", "Nowhere");
+			case "listFlights": return new Op(offsetNanos, type, f.origin, f.destination);
+			case "byDuration": return new Op(offsetNanos, type, f.origin, f.destination, "10");
+			default: return new Op(offsetNanos, type, "10");
+		}
+	}
+
+	/**
+	 * Runs one operation through the AirBooking data access methods.
+	 *
+	 * @return false when the operation was refused (flight full, duplicate, not flown)
+	 */
+	boolean execute(Connection c, Op op) throws Exception {
+		if (this._repository != null) return execute(this._repository, op);
+		String[] a = op.args;
+		switch (OPS[op.type]){
+			case "search":
+				AirBooking.searchFlights(c, a[0], a[1], java.sql.Date.valueOf(a[2]), Boolean.parseBoolean(a[3]));
+				return true;
+			case "seats":
+				AirBooking.countBookedSeats(c, a[0], java.sql.Date.valueOf(a[1]));
+				return true;
+			case "book":
+				ReferenceData.Flight f = this._esql.getReferenceData().flight(a[1]);
+				if (f == null) return false;
+				return AirBooking.bookFlight(c, this._esql.getKeys(), this._esql.getBookingIndex(), Integer.parseInt(a[0]), f, java.sql.Date.valueOf(a[2])) != null;
+			case "review":
+				ReviewIngestor reviews = this._esql.getReviewIngestor();
+				if (!reviews.hasFlown(c, Integer.parseInt(a[0]), a[1])) return false;
+				reviews.submit(Integer.parseInt(a[0]), a[1], Integer.parseInt(a[2]), a[3]);
+				return true;
+			case "addPassenger":
+				AirBooking.addPassenger(c, this._esql.getKeys(), a[0], a[1], java.sql.Date.valueOf(a[2]), a[3]);
+				return true;
+			case "listFlights":
+				AirBooking.listFlights(c, a[0], a[1]);
+				return true;
+			case "popular":
+				AirBooking.mostPopularDestinations(c, Integer.parseInt(a[0]));
+				return true;
+			case "rated":
+				AirBooking.highestRatedRoutes(c, Integer.parseInt(a[0]));
+				return true;
+			default:
+				AirBooking.flightsByDuration(c, a[0], a[1], Integer.parseInt(a[2]));
+				return true;
+		}
+	}
+
+	/**
+	 * Runs one operation through a storage implementation.
+	 *
+	 * @return false when the operation was refused (flight full, duplicate, not flown)
+	 */
+	static boolean execute(AirBookingRepository repository, Op op) throws Exception {
+		String[] a = op.args;
+		switch (OPS[op.type]){
+			case "search":
+				repository.searchFlights(a[0], a[1], java.sql.Date.valueOf(a[2]), Boolean.parseBoolean(a[3]));
+				return true;
+			case "seats":
+				repository.countBookedSeats(a[0], java.sql.Date.valueOf(a[1]));
+				return true;
+			case "book":
+				return repository.book(Integer.parseInt(a[0]), a[1], java.sql.Date.valueOf(a[2])) != null;
+			case "review":
+				if (!repository.hasFlown(Integer.parseInt(a[0]), a[1])) return false;
+				repository.addRating(Integer.parseInt(a[0]), a[1], Integer.parseInt(a[2]), a[3]);
+				return true;
+			case "addPassenger":
+				repository.addPassenger(a[0], a[1], java.sql.Date.valueOf(a[2]), a[3]);
+				return true;
+			case "listFlights":
+				repository.listFlights(a[0], a[1]);
+				return true;
+			case "popular":
+				repository.mostPopularDestinations(Integer.parseInt(a[0]));
+				return true;
+			case "rated":
+				repository.highestRatedRoutes(Integer.parseInt(a[0]));
+				return true;
+			default:
+				repository.flightsByDuration(a[0], a[1], Integer.parseInt(a[2]));
+				return true;
+		}
+	}
+
+	private void run(Stats stats, Connection c, Op op, long intendedNanos){
+		boolean ok = true;
+		boolean failed = false;
+		try{
+			ok = execute(c, op);
+		}catch(Exception e){
+			failed = true;
+		}
+		long done = System.nanoTime();
+		//operations intended for the warm-up period are run but not reported
+		if (intendedNanos - this._t0 < this._warmupNanos) return;
+		stats.latency[op.type].record(done - intendedNanos);
+		if (failed) stats.errors[op.type]++;
+		else if (!ok) stats.refused[op.type]++;
+	}
+
+	private synchronized void trace(Op op){
+		if (this._trace == null) return;
+		try{
+			this._trace.write(op.toTraceLine());
+			this._trace.newLine();
+		}catch(IOException e){
+			System.err.println("Trace write failed, recording stopped: " + e.getMessage());
+			this._trace = null;
+		}
+	}
+
+	/**
+	 * Runs the configured load and returns the merged measurements.
+	 */
+	Stats runLoad() throws Exception {
+		int clients = Integer.parseInt(conf("clients", "8"));
+		double rate = Double.parseDouble(conf("rate", "0"));
+		String replay = conf("replay", null);
+		String record = conf("record", null);
+		if (record != null) this._trace = new BufferedWriter(new FileWriter(record));
+		boolean openLoop = rate > 0 || replay != null;
+
+		final LinkedBlockingQueue<Object[]> arrivals = new LinkedBlockingQueue<Object[]>();
+		final Object[] stop = new Object[0];
+		final Stats[] perClient = new Stats[clients];
+		Thread[] workers = new Thread[clients];
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < clients; ++i) connections.add(DriverManager.getConnection(this._url, this._user, ""));
+
+		this._t0 = System.nanoTime();
+		for (int i = 0; i < clients; ++i){
+			final int id = i;
+			final Connection c = connections.get(i);
+			perClient[i] = new Stats();
+			workers[i] = new Thread(() -> {
+				Stats stats = perClient[id];
+				if (openLoop){
+					while (true){
+						Object[] arrival;
+						try{
+							arrival = arrivals.take();
+						}catch(InterruptedException e){
+							return;
+						}
+						if (arrival == stop) return;
+						run(stats, c, (Op) arrival[0], (Long) arrival[1]);
+					}
+				}
+				//closed loop: every client issues its next operation as soon as the last one returns
+				Random r = new Random(Long.parseLong(conf("seed", "42")) + id);
+				while (true){
+					long now = System.nanoTime();
+					if (now - this._t0 >= this._durationNanos) return;
+					Op op = generate(r, now - this._t0);
+					trace(op);
+					run(stats, c, op, now);
+				}
+			}, "load-client-" + i);
+			workers[i].start();
+		}
+
+		if (openLoop){
+			if (replay != null) dispatchTrace(arrivals, replay);
+			else dispatchGenerated(arrivals, rate, "uniform".equals(conf("arrival", "poisson")));
+			for (int i = 0; i < clients; ++i) arrivals.add(stop);
+		}
+		for (Thread w : workers) w.join();
+		long elapsed = System.nanoTime() - this._t0;
+
+		for (Connection c : connections) c.close();
+		if (this._trace != null) this._trace.close();
+
+		Stats total = new Stats();
+		for (Stats s : perClient) total.add(s);
+		report(total, Math.max(1, elapsed - this._warmupNanos));
+		return total;
+	}
+
+	//sleeps until the intended start time and hands the operation to a free client
+	private void dispatch(LinkedBlockingQueue<Object[]> arrivals, Op op){
+		long intended = this._t0 + op.offsetNanos;
+		long wait;
+		while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+		trace(op);
+		arrivals.add(new Object[]{op, intended});
+	}
+
+	private void dispatchGenerated(LinkedBlockingQueue<Object[]> arrivals, double rate, boolean uniform){
+		Random r = new Random(Long.parseLong(conf("seed", "42")));
+		double meanGap = 1e9 / rate;
+		double offset = 0;
+		while (offset < this._durationNanos){
+			dispatch(arrivals, generate(r, (long) offset));
+			offset += uniform ? meanGap : -Math.log(1 - r.nextDouble()) * meanGap;
+		}
+	}
+
+	private void dispatchTrace(LinkedBlockingQueue<Object[]> arrivals, String file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (line.length() == 0) continue;
+				dispatch(arrivals, Op.fromTraceLine(line));
+			}
+		}finally{
+			reader.close();
+		}
+	}
+
+	private void report(Stats total, long measuredNanos){
+		double seconds = measuredNanos / 1e9;
+		System.out.println(String.format("%-13s %9s %8s %7s %10s %9s %9s %9s %9s %9s %9s",
+			"operation", "count", "refused", "errors", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		Histogram all = new Histogram();
+		long refused = 0, errors = 0;
+		for (int i = 0; i < OPS.length; ++i){
+			Histogram h = total.latency[i];
+			all.add(h);
+			refused += total.refused[i];
+			errors += total.errors[i];
+			if (h.count() == 0) continue;
+			printRow(OPS[i], h, total.refused[i], total.errors[i], seconds);
+		}
+		printRow("total", all, refused, errors, seconds);
+		if (this._esql.getReviewIngestor() != null) System.out.println("Review pipeline: " + this._esql.getReviewIngestor().stats());
+	}
+
+	private static void printRow(String name, Histogram h, long refused, long errors, double seconds){
+		System.out.println(String.format("%-13s %9d %8d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f",
+			name, h.count(), refused, errors, h.count() / seconds, h.meanMillis(), h.percentileMillis(50),
+			h.percentileMillis(90), h.percentileMillis(99), h.percentileMillis(99.9), h.maxMillis()));
+	}
+
+	/**
+	 * The load generator entry point.
+	 *
+	 * @param args dbname port user, then key=value options
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + LoadGenerator.class.getName() +
+				" <dbname> <port> <user> [clients=N] [rate=ops/s] [duration=s] [warmup=s] [mix=op=weight,...] [zipf=s] [days=N] [start=yyyy-mm-dd] [seed=N] [record=file] [replay=file] [engine=direct|postgres|memory]");
+			return;
+		}
+		Map<String, String> conf = new HashMap<String, String>();
+		for (int i = 3; i < args.length; ++i){
+			int eq = args[i].indexOf('=');
+			if (eq > 0) conf.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		AirBooking esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			//keep load test reviews out of the interactive review log
+			if (System.getProperty("airbooking.reviewlog") == null) System.setProperty("airbooking.reviewlog", "loadgen-reviews.log");
+			esql = new AirBooking(args[0], args[1], args[2], "");
+			esql.preload();
+			esql.startReviewIngestor();
+			String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+			new LoadGenerator(conf, esql, url, args[2]).runLoad();
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if (esql != null) esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Bulk passenger registration
+ * =============================
+ *
+ * Registers the passenger lists sent by partner airlines: one record per
+ * line, passNum,fullName,birth date (mm/dd/yyyy),country. Every record is
+ * either inserted or reported back with the reason it was rejected.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class imports a stream of passenger records in batches. A record is
+ * rejected when it is malformed, when its passport number already appeared
+ * earlier in the stream, or when the passport number is already registered.
+ *
+ * The last check is fronted by a Bloom filter of the registered passport
+ * numbers: only the records the filter reports as possibly present are
+ * looked up, with one query per batch. A passport registered by another
+ * instance after the filter was built can slip past it, so the inserts use
+ * ON CONFLICT DO NOTHING and a row that inserted nothing is rejected too.
+ *
+ */
+
+public class PassengerImport{
+	/**
+	 * Bloom filter over passport numbers. It never reports a registered
+	 * passport as absent, and reports an unregistered one as present with
+	 * roughly the false positive rate it was sized for.
+	 */
+	public static final class BloomFilter{
+		private final AtomicLongArray _bits;
+		private final long _size;
+		private final int _hashes;
+		private final long _capacity;
+		private final AtomicLong _count = new AtomicLong();
+
+		/**
+		 * @param capacity the number of passports the filter is sized for
+		 * @param falsePositiveRate the false positive rate at that capacity
+		 */
+		public BloomFilter(long capacity, double falsePositiveRate){
+			long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			this._size = Math.max(64, (bits + 63) / 64 * 64);
+			this._hashes = Math.max(1, (int) Math.round((double) this._size / capacity * Math.log(2)));
+			this._bits = new AtomicLongArray((int) (this._size / 64));
+			this._capacity = capacity;
+		}
+
+		/**
+		 * Builds a filter over every passport of Passenger, sized for twice
+		 * their number so it absorbs further registrations.
+		 *
+		 * @param c the connection to read from; its auto-commit is switched off
+		 *          while the cursor is open
+		 * @return the filter
+		 * @throws java.sql.SQLException when failed to execute the queries
+		 */
+		public static BloomFilter load(Connection c) throws SQLException {
+			List<List<String>> count = AirBooking.executePreparedQueryAndReturnResult(c, "SELECT COUNT(*) FROM Passenger;");
+			BloomFilter filter = new BloomFilter(Math.max(1000000L, 2 * Long.parseLong(count.get(0).get(0))), 0.01);
+			boolean autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			PreparedStatement stmt = c.prepareStatement("SELECT passNum FROM Passenger;");
+			try{
+				stmt.setFetchSize(10000);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) filter.add(rs.getString(1));
+			}finally{
+				stmt.close();
+				c.rollback();
+				c.setAutoCommit(autoCommit);
+			}
+			return filter;
+		}
+
+		public void add(String passNum){
+			long h = hash(passNum.trim());
+			int h1 = (int) h, h2 = (int) (h >>> 32);
+			for (int i = 0; i < this._hashes; i++){
+				long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this._size;
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long old;
+				while (((old = this._bits.get(word)) & mask) == 0 && !this._bits.compareAndSet(word, old, old | mask));
+			}
+			this._count.incrementAndGet();
+		}
+
+		/** @return false when the passport is certainly not registered */
+		public boolean mightContain(String passNum){
+			long h = hash(passNum.trim());
+			int h1 = (int) h, h2 = (int) (h >>> 32);
+			for (int i = 0; i < this._hashes; i++){
+				long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this._size;
+				if ((this._bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+			}
+			return true;
+		}
+
+		/** @return true once more passports were added than the filter was sized for */
+		public boolean isSaturated(){
+			return this._count.get() > this._capacity;
+		}
+
+		/** @return the memory held by the bit array, in bytes */
+		public long bytes(){
+			return this._size / 8;
+		}
+
+		//64-bit FNV-1a followed by a murmur finalizer
+		private static long hash(String s){
+			long h = 0xcbf29ce484222325L;
+			for (byte b : s.getBytes(StandardCharsets.UTF_8)){
+				h ^= b & 0xff;
+				h *= 0x100000001b3L;
+			}
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
+	/** A record that was not inserted. */
+	public static final class Reject{
+		public final int line;
+		public final String record;
+		public final String reason;
+
+		Reject(int line, String record, String reason){
+			this.line = line;
+			this.record = record;
+			this.reason = reason;
+		}
+
+		public String toString(){
+			return "line " + this.line + ": " + this.reason + ": " + this.record;
+		}
+	}
+
+	/** The outcome of one import. */
+	public static final class Result{
+		public int read;
+		public int inserted;
+		public final List<Reject> rejects = new ArrayList<Reject>();
+		//records the filter sent to the database, and those found registered there
+		public int lookedUp;
+		public int registered;
+		public long elapsedNanos;
+	}
+
+	//a parsed record waiting for its batch
+	private static final class Record{
+		final int line;
+		final String text;
+		final String passNum, fullName, country;
+		final java.sql.Date bdate;
+
+		Record(int line, String text, String passNum, String fullName, java.sql.Date bdate, String country){
+			this.line = line;
+			this.text = text;
+			this.passNum = passNum;
+			this.fullName = fullName;
+			this.bdate = bdate;
+			this.country = country;
+		}
+	}
+
+	static final String INSERT_SQL = "INSERT INTO Passenger (pID, passNum, fullName, bdate, country) VALUES (?, ?, ?, ?, ?) ON CONFLICT (passNum) DO NOTHING;";
+	static final String REGISTERED_SQL = "SELECT trim(passNum) FROM Passenger WHERE passNum = ANY (?::char(10)[]);";
+
+	private PassengerImport(){
+	}
+
+	/**
+	 * Imports every record of the stream. Each batch is inserted in its own
+	 * transaction, so a failure only loses the batch in flight.
+	 *
+	 * @param c the connection to run the import on; auto-commit is switched
+	 *          off for the duration of the call
+	 * @param keys hands out the pIDs
+	 * @param filter the registered passports; inserted passports are added to it
+	 * @param in the records, one per line; a first line starting with passNum is a header
+	 * @param batchSize the number of records per transaction
+	 * @return the counts and the rejected records
+	 * @throws java.sql.SQLException when a batch fails as a whole
+	 * @throws java.io.IOException when the stream cannot be read
+	 */
+	public static Result run(Connection c, KeyAllocator keys, BloomFilter filter, BufferedReader in, int batchSize) throws SQLException, IOException {
+		long start = System.nanoTime();
+		Result result = new Result();
+		Set<String> seen = new HashSet<String>();
+		SimpleDateFormat format = new SimpleDateFormat("M/d/yyyy");
+		format.setLenient(false);
+		List<Record> batch = new ArrayList<Record>(batchSize);
+
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		try{
+			String line;
+			int lineNum = 0;
+			while ((line = in.readLine()) != null){
+				lineNum++;
+				if (line.trim().length() == 0) continue;
+				if (lineNum == 1 && line.startsWith("passNum")) continue;
+				result.read++;
+				Record r = parse(lineNum, line, format, result);
+				if (r == null) continue;
+				if (!seen.add(r.passNum)){
+					result.rejects.add(new Reject(lineNum, line, "duplicate passport number in the list"));
+					continue;
+				}
+				batch.add(r);
+				if (batch.size() == batchSize){
+					insert(c, keys, filter, batch, result);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) insert(c, keys, filter, batch, result);
+		}finally{
+			c.setAutoCommit(autoCommit);
+		}
+		//database rejects are found after the parse rejects of later lines
+		result.rejects.sort((a, b) -> Integer.compare(a.line, b.line));
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private static Record parse(int lineNum, String line, SimpleDateFormat format, Result result){
+		String[] f = line.split(",", -1);
+		if (f.length != 4){
+			result.rejects.add(new Reject(lineNum, line, "expected 4 fields, found " + f.length));
+			return null;
+		}
+		String passNum = f[0].trim(), fullName = f[1].trim(), country = f[3].trim();
+		if (passNum.length() == 0 || passNum.length() > 10){
+			result.rejects.add(new Reject(lineNum, line, "passport number must have 1 to 10 characters"));
+			return null;
+		}
+		if (fullName.length() == 0 || fullName.length() > 24){
+			result.rejects.add(new Reject(lineNum, line, "full name must have 1 to 24 characters"));
+			return null;
+		}
+		if (country.length() == 0 || country.length() > 24){
+			result.rejects.add(new Reject(lineNum, line, "country must have 1 to 24 characters"));
+			return null;
+		}
+		java.sql.Date bdate;
+		try{
+			bdate = new java.sql.Date(format.parse(f[2].trim()).getTime());
+		}catch(ParseException e){
+			result.rejects.add(new Reject(lineNum, line, "birth date is not mm/dd/yyyy"));
+			return null;
+		}
+		return new Record(lineNum, line, passNum, fullName, bdate, country);
+	}
+
+	private static void insert(Connection c, KeyAllocator keys, BloomFilter filter, List<Record> batch, Result result) throws SQLException {
+		//only the passports the filter cannot rule out go to the database
+		List<String> candidates = new ArrayList<String>();
+		for (Record r : batch){
+			if (filter.mightContain(r.passNum)) candidates.add(r.passNum);
+		}
+		Set<String> registered = new HashSet<String>();
+		if (!candidates.isEmpty()){
+			result.lookedUp += candidates.size();
+			Array array = c.createArrayOf("text", candidates.toArray());
+			PreparedStatement stmt = c.prepareStatement(REGISTERED_SQL);
+			try{
+				stmt.setArray(1, array);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) registered.add(rs.getString(1));
+			}finally{
+				stmt.close();
+			}
+		}
+
+		List<Record> inserting = new ArrayList<Record>(batch.size());
+		PreparedStatement stmt = c.prepareStatement(INSERT_SQL);
+		try{
+			for (Record r : batch){
+				if (registered.contains(r.passNum)){
+					result.registered++;
+					result.rejects.add(new Reject(r.line, r.text, "passport number already registered"));
+					continue;
+				}
+				stmt.setInt(1, keys.nextPassengerId());
+				stmt.setString(2, r.passNum);
+				stmt.setString(3, r.fullName);
+				stmt.setDate(4, r.bdate);
+				stmt.setString(5, r.country);
+				stmt.addBatch();
+				inserting.add(r);
+			}
+			if (inserting.isEmpty()) return;
+			int[] counts = stmt.executeBatch();
+			c.commit();
+			for (int i = 0; i < counts.length; i++){
+				Record r = inserting.get(i);
+				if (counts[i] == 0){
+					//registered since the lookup, e.g. by another instance
+					result.registered++;
+					result.rejects.add(new Reject(r.line, r.text, "passport number already registered"));
+				}
+				else{
+					result.inserted++;
+					filter.add(r.passNum);
+				}
+			}
+		}catch(SQLException e){
+			c.rollback();
+			throw e;
+		}finally{
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * PassengerImport tests
+ * =============================
+ *
+ * Checks the passport Bloom filter of PassengerImport: sizing, membership,
+ * the false positive rate it was sized for and saturation.
+ *
+ */
+
+
+/** Tests the sizing, error rate and saturation of the passport Bloom filter. */
+
+public class PassengerImportTest{
+
+	private PassengerImportTest(){
+	}
+
+	//passport numbers shaped like the loaded ones, which differ in a few trailing digits
+	private static String passport(int i){
+		return String.format("PA%08d", i);
+	}
+
+	private static double falsePositiveRate(PassengerImport.BloomFilter filter, int from, int n){
+		int hits = 0;
+		for (int i = from; i < from + n; i++){
+			if (filter.mightContain(passport(i))) hits++;
+		}
+		return (double) hits / n;
+	}
+
+	private static void sizing(){
+		PassengerImport.BloomFilter filter = new PassengerImport.BloomFilter(10000, 0.01);
+		//-n ln p / (ln 2)^2 bits, rounded up to whole words
+		Checks.check(filter.bytes() * 8 >= 95851, "enough bits for 1% at 10000 passports: " + filter.bytes());
+		Checks.check(filter.bytes() % 8 == 0 && filter.bytes() * 8 < 95851 + 64, "rounded to one word at most: " + filter.bytes());
+		Checks.check(new PassengerImport.BloomFilter(1, 0.5).bytes() == 8, "at least one word");
+	}
+
+	private static void membership(){
+		PassengerImport.BloomFilter filter = new PassengerImport.BloomFilter(10000, 0.01);
+		Checks.check(!filter.mightContain(passport(0)), "an empty filter contains nothing");
+		for (int i = 0; i < 10000; i++) filter.add(passport(i));
+		for (int i = 0; i < 10000; i++) Checks.check(filter.mightContain(passport(i)), "no false negative for " + passport(i));
+		Checks.check(filter.mightContain(" " + passport(42) + "   "), "passports are trimmed, as char(10) values come padded");
+		double rate = falsePositiveRate(filter, 10000, 100000);
+		Checks.check(rate < 0.015, "false positive rate near 1% at capacity: " + rate);
+		Checks.check(rate > 0.002, "the filter is not trivially large: " + rate);
+	}
+
+	private static void saturation(){
+		PassengerImport.BloomFilter filter = new PassengerImport.BloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) filter.add(passport(i));
+		Checks.check(!filter.isSaturated(), "not saturated at capacity");
+		double atCapacity = falsePositiveRate(filter, 1000000, 20000);
+		filter.add(passport(1000));
+		Checks.check(filter.isSaturated(), "saturated past capacity");
+		for (int i = 1001; i < 4000; i++) filter.add(passport(i));
+		double overfilled = falsePositiveRate(filter, 1000000, 20000);
+		Checks.check(overfilled > 4 * atCapacity, "the rate degrades past capacity: " + atCapacity + " then " + overfilled);
+		for (int i = 0; i < 4000; i++) Checks.check(filter.mightContain(passport(i)), "still no false negative for " + passport(i));
+	}
+
+	private static void concurrentAdds() throws InterruptedException {
+		final PassengerImport.BloomFilter filter = new PassengerImport.BloomFilter(40000, 0.01);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++){
+			final int from = t * 10000;
+			threads[t] = new Thread(() -> {
+				for (int i = from; i < from + 10000; i++) filter.add(passport(i));
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		//bits set by racing threads in the same word must all survive
+		for (int i = 0; i < 40000; i++) Checks.check(filter.mightContain(passport(i)), "no lost bit for " + passport(i));
+		Checks.check(!filter.isSaturated(), "every add is counted once");
+		filter.add(passport(40000));
+		Checks.check(filter.isSaturated(), "and the count reaches capacity");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		sizing();
+		membership();
+		saturation();
+		concurrentAdds();
+		Checks.passed(PassengerImportTest.class);
+	}
+}
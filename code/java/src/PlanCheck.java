@@ -0,0 +1,212 @@
+/*
+ * Query plan check
+ * =============================
+ *
+ * Runs EXPLAIN on every hot query of the client and fails when one of them
+ * reads a large table with a sequential scan, so a dropped or unusable
+ * index is caught before it reaches production.
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class is a command line check. Usage:
+ *
+ *   java PlanCheck <dbname> <port> <user> [minrows=10000] [analyze=false]
+ *
+ *   minrows   a sequential scan only counts as a regression on a table with
+ *             at least this many rows; the planner rightly scans small
+ *             tables, so run the check on a database at benchmark scale
+ *   analyze   run ANALYZE first, so the plans use current statistics
+ *
+ * The parameters of the queries are taken from an existing booking. Queries
+ * that aggregate a whole table list the tables they may scan. Prints one
+ * line per query and exits with status 1 when a query regressed.
+ *
+ */
+
+public class PlanCheck{
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+	private static final Pattern ACCESS = Pattern.compile("((?:Parallel )?(?:Seq Scan|Index Scan|Index Only Scan|Bitmap Heap Scan)(?: using \\w+)? on \\w+)");
+	static final String SAMPLE_SQL = "SELECT trim(B.flightNum), B.departure, B.pID, B.bookRef, F.origin, F.destination, P.fullName, P.passNum "
+		+ "FROM Booking B JOIN Flight F ON F.flightNum = B.flightNum JOIN Passenger P ON P.pID = B.pID LIMIT 1;";
+
+	/** One query and the tables it may read in full. */
+	private static final class Check{
+		final String name;
+		final String sql;
+		final Object[] params;
+		final Set<String> fullScans;
+
+		Check(String name, String sql, Object[] params, String... fullScans){
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+			this.fullScans = new HashSet<String>(Arrays.asList(fullScans));
+		}
+	}
+
+	private PlanCheck(){
+	}
+
+	/**
+	 * The hot queries, with parameters from the sample booking.
+	 */
+	private static List<Check> checks(List<String> s){
+		String flightNum = s.get(0), origin = s.get(4), destination = s.get(5), fullName = s.get(6), passNum = s.get(7), bookRef = s.get(3);
+		java.sql.Date departure = java.sql.Date.valueOf(s.get(1));
+		int pID = Integer.parseInt(s.get(2));
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("login", AirBooking.PASSENGER_LOGIN_SQL, new Object[]{fullName, passNum}));
+		checks.add(new Check("find passenger", PostgresRepository.FIND_PASSENGER_SQL, new Object[]{fullName}));
+		checks.add(new Check("seats booked", AirBooking.SEATS_BOOKED_SQL, new Object[]{flightNum, departure}));
+		checks.add(new Check("duplicate booking", AirBooking.DUPLICATE_BOOKING_SQL, new Object[]{flightNum, departure, pID}));
+		checks.add(new Check("has flown", PostgresRepository.HAS_FLOWN_SQL, new Object[]{flightNum, pID}));
+		checks.add(new Check("search by duration", AirBooking.SEARCH_BY_DURATION_SQL, new Object[]{departure, origin, destination}));
+		checks.add(new Check("search by availability", AirBooking.SEARCH_BY_AVAILABILITY_SQL, new Object[]{departure, origin, destination}));
+		checks.add(new Check("list flights", AirBooking.LIST_FLIGHTS_SQL, new Object[]{destination, origin}));
+		checks.add(new Check("flights by duration", AirBooking.FLIGHTS_BY_DURATION_SQL, new Object[]{origin, destination, 10}));
+		checks.add(new Check("itinerary page", Itinerary.FIRST_PAGE_SQL, new Object[]{pID, 10}));
+		checks.add(new Check("itinerary next page", Itinerary.NEXT_PAGE_SQL, new Object[]{pID, departure, bookRef, 10}));
+		//a rare word, which the GIN index on comment_tsv should answer
+		checks.add(new Check("review search", ReviewSearch.sql(false, false), new Object[]{"luggage", 0, 5, 10}));
+		checks.add(new Check("review search page", ReviewSearch.sql(true, true), new Object[]{"luggage", 0, 5, flightNum, 0.5, 0.5, Integer.MAX_VALUE, 10}));
+		//EXPLAIN plans the insert without running it
+		checks.add(new Check("batch booking", BatchRunner.INSERT_BOOKING_SQL, new Object[]{"0", departure, flightNum, passNum, departure, departure}));
+		checks.add(new Check("cancel booking", Waitlist.LOCK_BOOKING_SQL, new Object[]{bookRef}));
+		checks.add(new Check("waitlist head", Waitlist.HEAD_SQL, new Object[]{flightNum, departure}));
+		checks.add(new Check("waitlist candidates", Waitlist.CANDIDATES_SQL, new Object[]{Waitlist.Promoter.CANDIDATES}));
+		checks.add(new Check("popular destinations", AirBooking.POPULAR_DESTINATIONS_SQL, new Object[]{10}, "flight"));
+		checks.add(new Check("highest rated routes", AirBooking.HIGHEST_RATED_SQL, new Object[]{10}, "ratings", "flight"));
+		return checks;
+	}
+
+	/**
+	 * @return the plan of the query, one line per node
+	 */
+	static List<String> explain(Connection c, String sql, Object[] params) throws SQLException {
+		String query = sql.trim();
+		if (query.endsWith(";")) query = query.substring(0, query.length() - 1);
+		PreparedStatement stmt = c.prepareStatement("EXPLAIN " + query);
+		try{
+			for (int i = 0; i < params.length; i++) stmt.setObject(i + 1, params[i]);
+			ResultSet rs = stmt.executeQuery();
+			List<String> plan = new ArrayList<String>();
+			while (rs.next()) plan.add(rs.getString(1));
+			return plan;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static Map<String, Long> tableRows(Connection c) throws SQLException {
+		Map<String, Long> rows = new HashMap<String, Long>();
+		for (List<String> r : AirBooking.executePreparedQueryAndReturnResult(c,
+				"SELECT relname, reltuples::bigint FROM pg_class WHERE relkind = 'r' AND relnamespace = 'public'::regnamespace;")){
+			rows.put(r.get(0), Long.parseLong(r.get(1)));
+		}
+		return rows;
+	}
+
+	/**
+	 * Checks every query and prints the verdicts.
+	 *
+	 * @param c the connection to explain on
+	 * @param minRows the table size from which a sequential scan is a regression
+	 * @return the number of regressed queries
+	 * @throws java.sql.SQLException when a query cannot be explained
+	 */
+	public static int run(Connection c, long minRows) throws SQLException {
+		List<List<String>> sample = AirBooking.executePreparedQueryAndReturnResult(c, SAMPLE_SQL);
+		if (sample.isEmpty()) throw new SQLException("Booking is empty, there are no parameters to explain the queries with");
+		Map<String, Long> rows = tableRows(c);
+		for (Map.Entry<String, Long> e : rows.entrySet()){
+			if (e.getValue() < 0) System.out.println("warning: " + e.getKey() + " was never analyzed, run with analyze=true");
+		}
+		int regressed = 0;
+		for (Check check : checks(sample.get(0))){
+			List<String> plan = explain(c, check.sql, check.params);
+			List<String> scans = new ArrayList<String>();
+			List<String> access = new ArrayList<String>();
+			String verdict = "OK";
+			for (String line : plan){
+				Matcher a = ACCESS.matcher(line);
+				if (a.find()) access.add(a.group(1));
+				Matcher m = SEQ_SCAN.matcher(line);
+				if (!m.find() || check.fullScans.contains(m.group(1))) continue;
+				Long n = rows.get(m.group(1));
+				if (n != null && n < minRows){
+					if (verdict.equals("OK")) verdict = "SMALL";
+					continue;
+				}
+				scans.add(m.group(1) + " (" + n + " rows)");
+				verdict = "SEQSCAN";
+			}
+			if (!scans.isEmpty()) regressed++;
+			System.out.println(String.format("%-8s %-24s %s", verdict, check.name,
+				scans.isEmpty() ? String.join(", ", access) : "sequential scan of " + String.join(", ", scans)));
+			if (!scans.isEmpty()){
+				for (String line : plan) System.out.println("         " + line);
+			}
+		}
+		return regressed;
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + PlanCheck.class.getName() +
+				" <dbname> <port> <user> [minrows=N] [analyze=true|false]");
+			System.exit(2);
+		}
+		Map<String, String> conf = new HashMap<String, String>();
+		for (int i = 3; i < args.length; ++i){
+			int eq = args[i].indexOf('=');
+			if (eq > 0) conf.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		long minRows = Long.parseLong(conf.getOrDefault("minrows", "10000"));
+		int regressed;
+		try{
+			Class.forName("org.postgresql.Driver");
+			Connection c = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+			try{
+				if (Boolean.parseBoolean(conf.getOrDefault("analyze", "false"))){
+					Statement stmt = c.createStatement();
+					try{
+						stmt.execute("ANALYZE;");
+					}finally{
+						stmt.close();
+					}
+				}
+				regressed = run(c, minRows);
+			}finally{
+				c.close();
+			}
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		if (regressed > 0){
+			System.out.println(regressed + " quer" + (regressed == 1 ? "y reads" : "ies read") + " a large table sequentially");
+			System.exit(1);
+		}
+		System.out.println("No sequential scans of tables with " + minRows + " rows or more");
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * PostgreSQL implementation of the storage interface
+ * =============================
+ *
+ * Runs the AirBooking queries on connections borrowed from the pool, one
+ * connection per call.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class implements AirBookingRepository on the database. The constraints
+ * are those of create.sql. Booking takes a transaction-level advisory lock
+ * on the (flight, departure) pair before counting the booked seats, so two
+ * bookings of the last seat, from this or another instance, are serialized.
+ *
+ * With a query cache set, the reads whose queries it caches are answered
+ * from it and every write drops the results of the table it wrote.
+ *
+ */
+
+public class PostgresRepository implements AirBookingRepository{
+	static final String INSERT_FLIGHT_SQL = "INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) VALUES (?, ?, ?, ?, ?, ?, ?) "
+		+ "ON CONFLICT (flightNum) DO UPDATE SET airId = EXCLUDED.airId, origin = EXCLUDED.origin, destination = EXCLUDED.destination, "
+		+ "plane = EXCLUDED.plane, seats = EXCLUDED.seats, duration = EXCLUDED.duration;";
+	static final String ADD_FLIGHT_SQL = "INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) VALUES (?, ?, ?, ?, ?, ?, ?);";
+	static final String INSERT_RATING_SQL = "INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES (?, ?, ?, ?, ?);";
+	static final String FIND_PASSENGER_SQL = "SELECT pID FROM Passenger WHERE fullName = ? LIMIT 1;";
+	static final String HAS_FLOWN_SQL = "SELECT 1 FROM Booking WHERE flightNum = ? AND pID = ? LIMIT 1;";
+
+	private final ConnectionPool _pool;
+	private final KeyAllocator _keys;
+	private final long _borrowTimeoutMillis;
+	private volatile QueryCache _cache = null;
+
+	/**
+	 * @param pool the connections to run the queries on
+	 * @param keys hands out pID, rID and bookRef
+	 */
+	public PostgresRepository(ConnectionPool pool, KeyAllocator keys){
+		this(pool, keys, 0);
+	}
+
+	/**
+	 * @param pool the connections to run the queries on
+	 * @param keys hands out pID, rID and bookRef
+	 * @param borrowTimeoutMillis how long a call waits for a pooled connection
+	 *        before failing with SQLState 57P03; 0 waits indefinitely
+	 */
+	public PostgresRepository(ConnectionPool pool, KeyAllocator keys, long borrowTimeoutMillis){
+		this._pool = pool;
+		this._keys = keys;
+		this._borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	public Map<Integer, ReferenceData.Airline> airlines() throws SQLException {
+		Connection c = borrow();
+		try{
+			return ReferenceData.loadAirlines(c);
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	public Map<String, ReferenceData.Flight> flights() throws SQLException {
+		Connection c = borrow();
+		try{
+			return ReferenceData.loadFlights(c);
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	/**
+	 * Answers the reads the cache holds queries for from it, and drops its
+	 * results on writes.
+	 *
+	 * @param cache the cache, or null for none
+	 */
+	public void setQueryCache(QueryCache cache){
+		this._cache = cache;
+	}
+
+	public void saveFlight(ReferenceData.Flight f) throws SQLException {
+		writeFlight(INSERT_FLIGHT_SQL, f);
+	}
+
+	public void addFlight(ReferenceData.Flight f) throws SQLException {
+		writeFlight(ADD_FLIGHT_SQL, f);
+	}
+
+	private void writeFlight(String sql, ReferenceData.Flight f) throws SQLException {
+		Connection c = borrow();
+		try{
+			PreparedStatement stmt = c.prepareStatement(sql);
+			try{
+				stmt.setInt(1, f.airId);
+				stmt.setString(2, f.flightNum);
+				stmt.setString(3, f.origin);
+				stmt.setString(4, f.destination);
+				stmt.setString(5, f.plane);
+				stmt.setInt(6, f.seats);
+				stmt.setInt(7, f.duration);
+				stmt.executeUpdate();
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			this._pool.release(c);
+		}
+		written("Flight");
+	}
+
+	public int addPassenger(String passNum, String fullName, java.sql.Date bdate, String country) throws SQLException {
+		Connection c = borrow();
+		try{
+			int pID = AirBooking.addPassenger(c, this._keys, passNum, fullName, bdate, country);
+			written("Passenger");
+			return pID;
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	public Integer login(String fullName, String passNum) throws SQLException {
+		return firstInt(AirBooking.PASSENGER_LOGIN_SQL, fullName, passNum);
+	}
+
+	public Integer findPassenger(String fullName) throws SQLException {
+		return firstInt(FIND_PASSENGER_SQL, fullName);
+	}
+
+	public int countBookedSeats(String flightNum, java.sql.Date departure) throws SQLException {
+		return Integer.parseInt(query(AirBooking.SEATS_BOOKED_SQL, flightNum, departure).get(0).get(0));
+	}
+
+	public boolean hasBooking(String flightNum, java.sql.Date departure, int pID) throws SQLException {
+		Connection c = borrow();
+		try{
+			return AirBooking.hasBooking(c, flightNum, departure, pID);
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	public boolean hasFlown(int pID, String flightNum) throws SQLException {
+		return firstInt(HAS_FLOWN_SQL, flightNum, pID) != null;
+	}
+
+	public String book(int pID, String flightNum, java.sql.Date departure) throws SQLException {
+		Connection c = borrow();
+		try{
+			c.setAutoCommit(false);
+			AirBooking.lockDeparture(c, flightNum, departure);
+			int seats = AirBooking.lockFlightSeats(c, flightNum);
+			if (seats < 0) throw new SQLException("Flight " + flightNum + " does not exist", "23503");
+			String bookRef = null;
+			if (AirBooking.countBookedSeats(c, flightNum, departure) < seats && !AirBooking.hasBooking(c, flightNum, departure, pID)){
+				try{
+					bookRef = AirBooking.insertBooking(c, this._keys, pID, flightNum, departure);
+				}catch(SQLException e){
+					//booked meanwhile by a writer that does not take the departure lock
+					if (!AirBooking.isUniqueViolation(e)) throw e;
+					return null;
+				}
+			}
+			c.commit();
+			if (bookRef != null) written("Booking");
+			return bookRef;
+		}finally{
+			//release rolls back whatever is left and restores auto-commit
+			this._pool.release(c);
+		}
+	}
+
+	public int addRating(int pID, String flightNum, int score, String comment) throws SQLException {
+		int rID = this._keys.nextRatingId();
+		Connection c = borrow();
+		try{
+			PreparedStatement stmt = c.prepareStatement(INSERT_RATING_SQL);
+			try{
+				stmt.setInt(1, rID);
+				stmt.setInt(2, pID);
+				stmt.setString(3, flightNum);
+				stmt.setInt(4, score);
+				stmt.setString(5, comment);
+				stmt.executeUpdate();
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			this._pool.release(c);
+		}
+		written("Ratings");
+		return rID;
+	}
+
+	public List<List<String>> searchFlights(String origin, String destination, java.sql.Date departure, boolean byAvailability) throws SQLException {
+		Connection c = borrow();
+		try{
+			return AirBooking.searchFlights(c, origin, destination, departure, byAvailability);
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	public List<List<String>> listFlights(String origin, String destination) throws SQLException {
+		return query(AirBooking.LIST_FLIGHTS_SQL, destination, origin);
+	}
+
+	public List<List<String>> mostPopularDestinations(int k) throws SQLException {
+		return query(AirBooking.POPULAR_DESTINATIONS_SQL, Math.max(k, 0));
+	}
+
+	public List<List<String>> highestRatedRoutes(int k) throws SQLException {
+		return query(AirBooking.HIGHEST_RATED_SQL, Math.max(k, 0));
+	}
+
+	public List<List<String>> flightsByDuration(String origin, String destination, int k) throws SQLException {
+		return query(AirBooking.FLIGHTS_BY_DURATION_SQL, origin, destination, Math.max(k, 0));
+	}
+
+	//runs a read, through the cache when it holds the query
+	private List<List<String>> query(String sql, Object... params) throws SQLException {
+		QueryCache cache = this._cache;
+		Connection c = borrow();
+		try{
+			if (cache != null && cache.caches(sql)) return cache.get(c, sql, params);
+			return AirBooking.executePreparedQueryAndReturnResult(c, sql, params);
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	private void written(String table){
+		QueryCache cache = this._cache;
+		if (cache != null) cache.written(table);
+	}
+
+	private Integer firstInt(String query, Object... params) throws SQLException {
+		Connection c = borrow();
+		try{
+			List<List<String>> result = AirBooking.executePreparedQueryAndReturnResult(c, query, params);
+			return result.size() == 0 ? null : Integer.valueOf(result.get(0).get(0));
+		}finally{
+			this._pool.release(c);
+		}
+	}
+
+	private Connection borrow() throws SQLException {
+		if (this._borrowTimeoutMillis <= 0) return this._pool.borrow();
+		Connection c = this._pool.borrow(this._borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+		if (c == null) throw new SQLException("No pooled connection within " + this._borrowTimeoutMillis + " ms", "57P03");
+		return c;
+	}
+
+	/**
+	 * The pool belongs to the caller and stays open.
+	 */
+	public void close(){
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Query result cache
+ * =============================
+ *
+ * Keeps the results of repeated read queries in memory, bounded in bytes and
+ * in age, and drops them as soon as a table they read from is written.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class caches the results of the query templates registered with
+ * cache, keyed by the SQL text and the bound parameters. Each template has
+ * its own time to live. Entries are evicted least recently used first once
+ * their estimated size exceeds the byte budget.
+ *
+ * The tables a template depends on are the table names that appear in its
+ * SQL. written drops every entry that depends on a table; AirBooking calls
+ * it for its own writes and for the change events of the invalidation
+ * listener, which also covers the writes of other instances. Every table has
+ * a version that written advances, and a result is only stored if the
+ * versions of its tables did not move while it was read, so a write racing
+ * with a read cannot leave a stale entry behind.
+ *
+ * Results are stored as one flat array of cells and handed out as read-only
+ * lists, so callers share them without copying.
+ *
+ */
+
+public class QueryCache{
+	//first table named by a data-changing statement
+	private static final Pattern WRITE = Pattern.compile(
+		"^\\s*(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+(?:ONLY\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern WORD = Pattern.compile("\\w+");
+	//estimated overhead of an entry: key, map node, index sets
+	private static final long ENTRY_BYTES = 200;
+
+	/**
+	 * An immutable query result: column labels and rows of cells.
+	 */
+	public static final class Rows extends AbstractList<List<String>>{
+		private final String[] _columns;
+		private final String[] _cells;
+
+		Rows(String[] columns, String[] cells){
+			this._columns = columns;
+			this._cells = cells;
+		}
+
+		/**
+		 * Runs a query and keeps its result.
+		 *
+		 * @param c the connection to run the query on
+		 * @param sql the query with '?' placeholders
+		 * @param params the values bound to the placeholders
+		 * @return the result
+		 * @throws java.sql.SQLException when failed to execute the query
+		 */
+		public static Rows read(Connection c, String sql, Object... params) throws SQLException {
+			PreparedStatement stmt = c.prepareStatement(sql);
+			try{
+				for (int i = 0; i < params.length; ++i) stmt.setObject(i + 1, params[i]);
+				ResultSet rs = stmt.executeQuery();
+				ResultSetMetaData rsmd = rs.getMetaData();
+				String[] columns = new String[rsmd.getColumnCount()];
+				for (int i = 0; i < columns.length; ++i) columns[i] = rsmd.getColumnName(i + 1);
+				String[] cells = new String[columns.length * 16];
+				int n = 0;
+				while (rs.next()){
+					if (n + columns.length > cells.length) cells = Arrays.copyOf(cells, Math.max(cells.length * 2, n + columns.length));
+					for (int i = 1; i <= columns.length; ++i) cells[n++] = rs.getString(i);
+				}
+				return new Rows(columns, Arrays.copyOf(cells, n));
+			}finally{
+				stmt.close();
+			}
+		}
+
+		/** @return the column labels */
+		public List<String> columns(){
+			return Collections.unmodifiableList(Arrays.asList(this._columns));
+		}
+
+		@Override
+		public List<String> get(int row){
+			if (row < 0 || row >= size()) throw new IndexOutOfBoundsException("row " + row + " of " + size());
+			int from = row * this._columns.length;
+			return Collections.unmodifiableList(Arrays.asList(this._cells).subList(from, from + this._columns.length));
+		}
+
+		@Override
+		public int size(){
+			return this._columns.length == 0 ? 0 : this._cells.length / this._columns.length;
+		}
+
+		/** @return the estimated heap footprint */
+		long bytes(){
+			long bytes = 32 + 16L * (this._columns.length + this._cells.length);
+			for (String s : this._columns) bytes += 40 + 2L * s.length();
+			for (String s : this._cells) if (s != null) bytes += 40 + 2L * s.length();
+			return bytes;
+		}
+	}
+
+	/** A registered template. */
+	private static final class Template{
+		final long ttlNanos;
+		final String[] tables;
+
+		Template(long ttlNanos, String[] tables){
+			this.ttlNanos = ttlNanos;
+			this.tables = tables;
+		}
+	}
+
+	private static final class Key{
+		final String sql;
+		final Object[] params;
+		final int hash;
+
+		Key(String sql, Object[] params){
+			this.sql = sql;
+			this.params = params;
+			this.hash = 31 * sql.hashCode() + Arrays.hashCode(params);
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return this.hash == k.hash && this.sql.equals(k.sql) && Arrays.equals(this.params, k.params);
+		}
+
+		@Override
+		public int hashCode(){
+			return this.hash;
+		}
+	}
+
+	private static final class Entry{
+		final Rows rows;
+		final String[] tables;
+		final long expires;
+		final long bytes;
+
+		Entry(Rows rows, String[] tables, long expires){
+			this.rows = rows;
+			this.tables = tables;
+			this.expires = expires;
+			this.bytes = ENTRY_BYTES + rows.bytes();
+		}
+	}
+
+	private final long _maxBytes;
+	private final Set<String> _tables = new HashSet<String>();
+	private final Map<String, Template> _templates = new HashMap<String, Template>();
+	//access order, least recently used first
+	private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+	private final Map<String, Set<Key>> _byTable = new HashMap<String, Set<Key>>();
+	private final Map<String, Long> _versions = new HashMap<String, Long>();
+	private long _bytes = 0;
+
+	private long _hits = 0, _misses = 0, _evictions = 0, _expirations = 0, _invalidations = 0, _rejected = 0;
+
+	/**
+	 * @param maxBytes the estimated size the entries may take together
+	 * @param tables the tables of the schema, for the dependencies of the templates
+	 */
+	public QueryCache(long maxBytes, String... tables){
+		this._maxBytes = maxBytes;
+		for (String t : tables) this._tables.add(t.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Registers a query template whose results are cached.
+	 *
+	 * @param sql the query, exactly as it is later passed to get
+	 * @param ttlMillis how long a result is served before it is read again
+	 */
+	public synchronized void cache(String sql, long ttlMillis){
+		Set<String> tables = new HashSet<String>();
+		Matcher m = WORD.matcher(sql);
+		while (m.find()){
+			String word = m.group().toLowerCase(Locale.ROOT);
+			if (this._tables.contains(word)) tables.add(word);
+		}
+		this._templates.put(sql, new Template(ttlMillis * 1000000L, tables.toArray(new String[0])));
+	}
+
+	/**
+	 * @return whether results of the query are cached
+	 */
+	public synchronized boolean caches(String sql){
+		return this._templates.containsKey(sql);
+	}
+
+	/**
+	 * Returns the cached result of a registered query, running it on a miss.
+	 *
+	 * @param c the connection to run the query on
+	 * @param sql a registered query
+	 * @param params the values bound to the placeholders
+	 * @return the result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public Rows get(Connection c, String sql, Object... params) throws SQLException {
+		Key key = new Key(sql, params.clone());
+		Template template;
+		long version;
+		synchronized (this){
+			template = this._templates.get(sql);
+			if (template == null) throw new IllegalArgumentException("Query is not cached: " + sql);
+			Entry e = this._entries.get(key);
+			if (e != null && e.expires - System.nanoTime() > 0){
+				this._hits++;
+				return e.rows;
+			}
+			if (e != null){
+				remove(key, e);
+				this._expirations++;
+			}
+			this._misses++;
+			version = version(template.tables);
+		}
+		//the query runs outside the lock; a write meanwhile changes the version
+		Rows rows = Rows.read(c, sql, params);
+		synchronized (this){
+			if (version != version(template.tables)) return rows;
+			Entry e = new Entry(rows, template.tables, System.nanoTime() + template.ttlNanos);
+			if (e.bytes > this._maxBytes){
+				this._rejected++;
+				return rows;
+			}
+			Entry old = this._entries.put(key, e);
+			if (old != null) this._bytes -= old.bytes;
+			this._bytes += e.bytes;
+			for (String t : e.tables) this._byTable.computeIfAbsent(t, k -> new HashSet<Key>()).add(key);
+			Iterator<Map.Entry<Key, Entry>> lru = this._entries.entrySet().iterator();
+			while (this._bytes > this._maxBytes && lru.hasNext()){
+				Map.Entry<Key, Entry> victim = lru.next();
+				lru.remove();
+				unindex(victim.getKey(), victim.getValue());
+				this._evictions++;
+			}
+			return rows;
+		}
+	}
+
+	//the sum of the table versions, which only grows
+	private long version(String[] tables){
+		long v = 0;
+		for (String t : tables){
+			Long n = this._versions.get(t);
+			if (n != null) v += n;
+		}
+		return v;
+	}
+
+	private void remove(Key key, Entry e){
+		this._entries.remove(key);
+		unindex(key, e);
+	}
+
+	private void unindex(Key key, Entry e){
+		this._bytes -= e.bytes;
+		for (String t : e.tables){
+			Set<Key> keys = this._byTable.get(t);
+			if (keys != null && keys.remove(key) && keys.isEmpty()) this._byTable.remove(t);
+		}
+	}
+
+	/**
+	 * Drops the results that depend on a table.
+	 *
+	 * @param table the written table, in any case
+	 */
+	public synchronized void written(String table){
+		String t = table.toLowerCase(Locale.ROOT);
+		this._versions.merge(t, 1L, Long::sum);
+		Set<Key> keys = this._byTable.remove(t);
+		if (keys == null) return;
+		for (Key key : keys){
+			Entry e = this._entries.remove(key);
+			if (e == null) continue;
+			this._invalidations++;
+			unindex(key, e);
+		}
+	}
+
+	/**
+	 * Drops the results that depend on the table a statement writes to, or
+	 * all of them when the statement is not a plain INSERT, UPDATE, DELETE or
+	 * TRUNCATE.
+	 *
+	 * @param sql the executed statement
+	 */
+	public void writtenBy(String sql){
+		Matcher m = WRITE.matcher(sql);
+		if (m.find()) written(m.group(1));
+		else clear();
+	}
+
+	/**
+	 * Drops every result, for when changes may have been missed.
+	 */
+	public synchronized void clear(){
+		for (String t : this._tables) this._versions.merge(t, 1L, Long::sum);
+		this._invalidations += this._entries.size();
+		this._entries.clear();
+		this._byTable.clear();
+		this._bytes = 0;
+	}
+
+	/** @return the share of lookups served from memory */
+	public synchronized double hitRatio(){
+		long lookups = this._hits + this._misses;
+		return lookups == 0 ? 0 : (double) this._hits / lookups;
+	}
+
+	/** @return the number of lookups served from memory */
+	public synchronized long getHitCount() { return this._hits; }
+
+	/** @return the number of lookups that ran the query */
+	public synchronized long getMissCount() { return this._misses; }
+
+	/** @return a one-line summary of the cache */
+	public synchronized String stats(){
+		return String.format("%d entries, %.1f of %.1f KB, %d hits, %d misses (%.1f%% hits), %d evicted, %d expired, %d invalidated, %d too large",
+			this._entries.size(), this._bytes / 1024.0, this._maxBytes / 1024.0, this._hits, this._misses, 100 * hitRatio(),
+			this._evictions, this._expirations, this._invalidations, this._rejected);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * QueryCache tests
+ * =============================
+ *
+ * Checks the hits, expiry, invalidation and byte budget of QueryCache, and
+ * that a write racing with a read leaves no stale entry behind. The queries
+ * run against a stand-in connection.
+ *
+ */
+
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests QueryCache, including a write that races a read. */
+
+public class QueryCacheTest{
+	private static final String FLIGHTS = "SELECT count(*) FROM Flight WHERE origin = ?";
+	private static final String BOOKINGS = "SELECT count(*) FROM Booking B, Flight F WHERE B.flightNum = F.flightNum AND F.origin = ?";
+
+	private QueryCacheTest(){
+	}
+
+	/**
+	 * A connection whose every query returns one row holding the number of
+	 * queries run so far, so a served result tells which execution read it.
+	 */
+	private static final class Database{
+		final AtomicInteger executions = new AtomicInteger();
+		//runs inside executeQuery, while the cache has released its lock
+		volatile Runnable during;
+
+		Connection connection(){
+			return proxy(Connection.class, (name, args) -> {
+				if (name.equals("prepareStatement")) return statement();
+				if (name.equals("close")) return null;
+				throw new UnsupportedOperationException(name);
+			});
+		}
+
+		private PreparedStatement statement(){
+			return proxy(PreparedStatement.class, (name, args) -> {
+				if (name.equals("setObject") || name.equals("close")) return null;
+				if (!name.equals("executeQuery")) throw new UnsupportedOperationException(name);
+				String value = String.format("%04d", this.executions.incrementAndGet());
+				Runnable r = this.during;
+				if (r != null) r.run();
+				return result(value);
+			});
+		}
+
+		private static ResultSet result(String value){
+			final ResultSetMetaData meta = proxy(ResultSetMetaData.class, (name, args) -> {
+				if (name.equals("getColumnCount")) return 1;
+				if (name.equals("getColumnName")) return "count";
+				throw new UnsupportedOperationException(name);
+			});
+			final boolean[] read = {false};
+			return proxy(ResultSet.class, (name, args) -> {
+				if (name.equals("getMetaData")) return meta;
+				if (name.equals("next")){
+					boolean more = !read[0];
+					read[0] = true;
+					return more;
+				}
+				if (name.equals("getString")) return value;
+				if (name.equals("close")) return null;
+				throw new UnsupportedOperationException(name);
+			});
+		}
+	}
+
+	private interface Method{
+		Object call(String name, Object[] args);
+	}
+
+	private static <T> T proxy(Class<T> type, Method method){
+		return type.cast(Proxy.newProxyInstance(QueryCacheTest.class.getClassLoader(), new Class<?>[]{type},
+			(p, m, args) -> method.call(m.getName(), args)));
+	}
+
+	private static String value(QueryCache.Rows rows){
+		return rows.get(0).get(0);
+	}
+
+	private static QueryCache cache(long maxBytes){
+		QueryCache cache = new QueryCache(maxBytes, "Airline", "Flight", "Passenger", "Booking", "Ratings");
+		cache.cache(FLIGHTS, 60000);
+		cache.cache(BOOKINGS, 60000);
+		return cache;
+	}
+
+	private static void hits() throws Exception {
+		Database db = new Database();
+		Connection c = db.connection();
+		QueryCache cache = cache(1 << 20);
+		Checks.check(cache.caches(FLIGHTS) && !cache.caches("SELECT 1"), "only registered queries are cached");
+		QueryCache.Rows first = cache.get(c, FLIGHTS, "Boston");
+		Checks.check(first.columns().get(0).equals("count") && first.size() == 1, "the result is read: " + first);
+		Checks.check(cache.get(c, FLIGHTS, "Boston") == first, "the second lookup is served from memory");
+		Checks.check(db.executions.get() == 1, "and runs no query");
+		Checks.check(value(cache.get(c, FLIGHTS, "Austin")).equals("0002"), "other parameters are another entry");
+		Checks.check(cache.getHitCount() == 1 && cache.getMissCount() == 2, "counted: " + cache.stats());
+		try{
+			cache.get(c, "SELECT 1");
+			Checks.check(false, "an unregistered query is refused");
+		}catch(IllegalArgumentException e){
+			Checks.check(db.executions.get() == 2, "and not run");
+		}
+	}
+
+	private static void expiry() throws Exception {
+		Database db = new Database();
+		Connection c = db.connection();
+		QueryCache cache = cache(1 << 20);
+		cache.cache(FLIGHTS, 0);
+		cache.get(c, FLIGHTS, "Boston");
+		Checks.check(value(cache.get(c, FLIGHTS, "Boston")).equals("0002"), "an expired result is read again");
+		Checks.check(cache.getHitCount() == 0, "and is no hit");
+	}
+
+	private static void invalidation() throws Exception {
+		Database db = new Database();
+		Connection c = db.connection();
+		QueryCache cache = cache(1 << 20);
+		cache.get(c, FLIGHTS, "Boston");
+		cache.get(c, BOOKINGS, "Boston");
+		cache.written("booking");
+		Checks.check(value(cache.get(c, FLIGHTS, "Boston")).equals("0001"), "a write to another table keeps the entry");
+		Checks.check(value(cache.get(c, BOOKINGS, "Boston")).equals("0003"), "a write to a read table drops the entry");
+		cache.writtenBy("UPDATE Flight SET seats = 10 WHERE flightNum = 'TA100'");
+		Checks.check(value(cache.get(c, FLIGHTS, "Boston")).equals("0004"), "writtenBy finds the written table");
+		Checks.check(value(cache.get(c, BOOKINGS, "Boston")).equals("0005"), "every query of the table is dropped");
+		cache.writtenBy("insert into  ONLY Passenger VALUES (1)");
+		Checks.check(value(cache.get(c, FLIGHTS, "Boston")).equals("0004"), "an insert elsewhere keeps the entries");
+		cache.writtenBy("WITH x AS (DELETE FROM Ratings RETURNING *) SELECT 1");
+		Checks.check(value(cache.get(c, FLIGHTS, "Boston")).equals("0006"), "an unrecognised statement drops everything");
+	}
+
+	//the write lands while the query runs, as the cache lock is not held then
+	private static void writeDuringRead() throws Exception {
+		Database db = new Database();
+		Connection c = db.connection();
+		QueryCache cache = cache(1 << 20);
+		db.during = () -> cache.written("Flight");
+		Checks.check(value(cache.get(c, BOOKINGS, "Boston")).equals("0001"), "the caller still gets what was read");
+		db.during = null;
+		Checks.check(value(cache.get(c, BOOKINGS, "Boston")).equals("0002"), "but the possibly stale result is not stored");
+		Checks.check(value(cache.get(c, BOOKINGS, "Boston")).equals("0002"), "the next read is stored again");
+		db.during = () -> cache.written("Airline");
+		cache.get(c, FLIGHTS, "Austin");
+		db.during = null;
+		Checks.check(value(cache.get(c, FLIGHTS, "Austin")).equals("0003"), "a write to an unread table does not hold the store back");
+	}
+
+	//the same race with the write on another thread
+	private static void concurrentWrite() throws Exception {
+		Database db = new Database();
+		Connection c = db.connection();
+		QueryCache cache = cache(1 << 20);
+		CountDownLatch reading = new CountDownLatch(1), written = new CountDownLatch(1);
+		db.during = () -> {
+			reading.countDown();
+			try{
+				if (!written.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("no write");
+			}catch(InterruptedException e){
+				throw new IllegalStateException(e);
+			}
+		};
+		Thread writer = new Thread(() -> {
+			try{
+				reading.await();
+				cache.written("BOOKING");
+				written.countDown();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		});
+		writer.start();
+		cache.get(c, BOOKINGS, "Boston");
+		writer.join();
+		db.during = null;
+		Checks.check(value(cache.get(c, BOOKINGS, "Boston")).equals("0002"), "a result read across another thread's write is not stored");
+		Checks.check(cache.get(c, BOOKINGS, "Boston") == cache.get(c, BOOKINGS, "Boston"), "later reads are");
+	}
+
+	private static void budget() throws Exception {
+		Database db = new Database();
+		Connection c = db.connection();
+		//each result of one four-character cell takes 350 estimated bytes
+		QueryCache cache = cache(1000);
+		cache.get(c, FLIGHTS, "A");
+		cache.get(c, FLIGHTS, "B");
+		cache.get(c, FLIGHTS, "A");
+		cache.get(c, FLIGHTS, "C");
+		Checks.check(db.executions.get() == 3, "two results fit");
+		Checks.check(value(cache.get(c, FLIGHTS, "A")).equals("0001"), "the recently used entry is kept");
+		Checks.check(value(cache.get(c, FLIGHTS, "C")).equals("0003"), "the new entry is kept");
+		Checks.check(value(cache.get(c, FLIGHTS, "B")).equals("0004"), "the least recently used entry is evicted");
+		Checks.check(cache.stats().startsWith("2 entries") && cache.stats().contains("2 evicted"), "B, then A were evicted: " + cache.stats());
+
+		QueryCache tiny = cache(100);
+		tiny.get(c, FLIGHTS, "A");
+		Checks.check(value(tiny.get(c, FLIGHTS, "A")).equals("0006"), "a result larger than the budget is never stored");
+		Checks.check(tiny.stats().startsWith("0 entries") && tiny.stats().contains("2 too large"), tiny.stats());
+	}
+
+	public static void main(String[] args) throws Exception {
+		hits();
+		expiry();
+		invalidation();
+		writeDuringRead();
+		concurrentWrite();
+		budget();
+		Checks.passed(QueryCacheTest.class);
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * In-process inverted index over the most recent reviews
+ * =============================
+ *
+ * Keeps the last N reviews and a term to rID posting map in memory so that
+ * searches over recent feedback never reach the database.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class indexes a sliding window of reviews. Adding a review beyond the
+ * capacity evicts the oldest one, so memory stays bounded however large
+ * Ratings grows. Comments are split into lower-case words; unlike the
+ * 'english' text search configuration there is no stemming, so a keyword
+ * matches whole words only. The rank is the number of keyword occurrences
+ * divided by the comment length, and paging uses the same (rank, rID)
+ * keyset cursor as ReviewSearch.
+ *
+ */
+
+public class RecentReviewIndex{
+	//an indexed review and its term frequencies
+	private static final class Entry{
+		final ReviewSearch.Hit review;
+		final Map<String, Integer> terms;
+		final int length;
+		//removed from the index but still queued in the window
+		boolean removed = false;
+
+		Entry(ReviewSearch.Hit review, List<String> words){
+			this.review = review;
+			this.length = Math.max(1, words.size());
+			this.terms = new HashMap<String, Integer>();
+			for (String w : words) this.terms.merge(w, 1, Integer::sum);
+		}
+	}
+
+	private final int _capacity;
+	private final ArrayDeque<Entry> _window = new ArrayDeque<Entry>();
+	private final Map<Integer, Entry> _byId = new HashMap<Integer, Entry>();
+	private final Map<String, Set<Integer>> _postings = new HashMap<String, Set<Integer>>();
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	//indexed reviews; the window also holds removed ones until they are dropped
+	private int _live = 0;
+
+	/**
+	 * @param capacity the number of most recent reviews kept
+	 */
+	public RecentReviewIndex(int capacity){
+		this._capacity = capacity;
+	}
+
+	/**
+	 * Fills the index with the latest reviews of Ratings, oldest first.
+	 *
+	 * @param c the connection to read from
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void load(Connection c) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement("SELECT rID, pID, flightNum, score, comment FROM Ratings ORDER BY rID DESC LIMIT ?;");
+		List<ReviewSearch.Hit> latest = new ArrayList<ReviewSearch.Hit>();
+		try{
+			stmt.setInt(1, this._capacity);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) latest.add(new ReviewSearch.Hit(rs.getInt(1), rs.getInt(2), rs.getString(3).trim(), rs.getInt(4), rs.getString(5), 0));
+		}finally{
+			stmt.close();
+		}
+		Collections.reverse(latest);
+		for (ReviewSearch.Hit h : latest) add(h.rID, h.pID, h.flightNum, h.score, h.comment);
+	}
+
+	/**
+	 * Indexes a review, evicting the oldest one when the window is full.
+	 * Adding an rID that is already indexed does nothing.
+	 */
+	public void add(int rID, int pID, String flightNum, int score, String comment){
+		Entry entry = new Entry(new ReviewSearch.Hit(rID, pID, flightNum.trim(), score, comment, 0), tokenize(comment));
+		this._lock.writeLock().lock();
+		try{
+			if (this._byId.containsKey(rID)) return;
+			this._window.addLast(entry);
+			this._byId.put(rID, entry);
+			this._live++;
+			for (String term : entry.terms.keySet()){
+				this._postings.computeIfAbsent(term, t -> new HashSet<Integer>()).add(rID);
+			}
+			while (this._live > this._capacity){
+				Entry oldest = this._window.removeFirst();
+				if (!oldest.removed) evict(oldest);
+			}
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops a review from the index, e.g. after it was deleted. The entry is
+	 * only marked in the window, which is compacted once it holds more
+	 * removed entries than indexed ones, so a removal costs O(1) amortized.
+	 */
+	public void remove(int rID){
+		this._lock.writeLock().lock();
+		try{
+			Entry e = this._byId.get(rID);
+			if (e == null) return;
+			evict(e);
+			e.removed = true;
+			if (this._window.size() > 2 * this._live + 16) this._window.removeIf(w -> w.removed);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the current row of a review, e.g. one inserted by another instance.
+	 *
+	 * @param c the connection to read from
+	 * @param rID the review to read
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void reload(Connection c, int rID) throws SQLException {
+		remove(rID);
+		PreparedStatement stmt = c.prepareStatement("SELECT rID, pID, flightNum, score, comment FROM Ratings WHERE rID = ?;");
+		try{
+			stmt.setInt(1, rID);
+			ResultSet rs = stmt.executeQuery();
+			if (rs.next()) add(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getString(5));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private void evict(Entry old){
+		this._live--;
+		this._byId.remove(old.review.rID);
+		for (String term : old.terms.keySet()){
+			Set<Integer> ids = this._postings.get(term);
+			ids.remove(old.review.rID);
+			if (ids.isEmpty()) this._postings.remove(term);
+		}
+	}
+
+	/**
+	 * Searches the indexed reviews; the arguments are those of ReviewSearch.search.
+	 *
+	 * @return the hits of the page, best ranked first
+	 */
+	public List<ReviewSearch.Hit> search(String keywords, String flightNum, int minScore, int maxScore, ReviewSearch.Cursor after, int limit){
+		List<String> words = tokenize(keywords);
+		List<ReviewSearch.Hit> hits = new ArrayList<ReviewSearch.Hit>();
+		if (words.isEmpty()) return hits;
+		this._lock.readLock().lock();
+		try{
+			//intersect starting from the rarest keyword
+			Set<Integer> smallest = null;
+			for (String w : words){
+				Set<Integer> ids = this._postings.get(w);
+				if (ids == null) return hits;
+				if (smallest == null || ids.size() < smallest.size()) smallest = ids;
+			}
+			for (Integer rID : smallest){
+				Entry e = this._byId.get(rID);
+				ReviewSearch.Hit r = e.review;
+				if (r.score < minScore || r.score > maxScore) continue;
+				if (flightNum != null && !r.flightNum.equals(flightNum.trim())) continue;
+				int occurrences = 0;
+				for (String w : words){
+					Integer tf = e.terms.get(w);
+					if (tf == null){
+						occurrences = -1;
+						break;
+					}
+					occurrences += tf;
+				}
+				if (occurrences < 0) continue;
+				double rank = (double) occurrences / e.length;
+				if (after != null && !(rank < after.rank || (rank == after.rank && r.rID < after.rID))) continue;
+				hits.add(new ReviewSearch.Hit(r.rID, r.pID, r.flightNum, r.score, r.comment, rank));
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+		hits.sort((a, b) -> a.rank != b.rank ? Double.compare(b.rank, a.rank) : Integer.compare(b.rID, a.rID));
+		return hits.size() > limit ? new ArrayList<ReviewSearch.Hit>(hits.subList(0, limit)) : hits;
+	}
+
+	/** @return whether the review is indexed */
+	public boolean contains(int rID){
+		this._lock.readLock().lock();
+		try{
+			return this._byId.containsKey(rID);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/** @return the number of reviews currently indexed */
+	public int size(){
+		this._lock.readLock().lock();
+		try{
+			return this._live;
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	private static List<String> tokenize(String text){
+		List<String> words = new ArrayList<String>();
+		if (text == null) return words;
+		for (String w : text.toLowerCase().split("[^\\p{L}\\p{N}]+")){
+			if (w.length() > 1) words.add(w);
+		}
+		return words;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Immutable snapshot of the reference tables
+ * =============================
+ *
+ * Airline, Flight and the distinct city names change rarely and are read by
+ * almost every menu operation, so they are loaded once and served from memory.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * This class holds a read-only copy of Airline, Flight and the city names.
+ * A snapshot never changes after construction; a refresh builds a new one
+ * and swaps the reference, so readers on other threads need no locking.
+ *
+ */
+
+public final class ReferenceData{
+	/** One row of Airline. */
+	public static final class Airline{
+		public final int airId;
+		public final String name;
+		public final int founded;
+		public final String country;
+		public final String hub;
+
+		Airline(int airId, String name, int founded, String country, String hub){
+			this.airId = airId;
+			this.name = name;
+			this.founded = founded;
+			this.country = country;
+			this.hub = hub;
+		}
+	}
+
+	/** One row of Flight. */
+	public static final class Flight{
+		public final int airId;
+		public final String flightNum;
+		public final String origin;
+		public final String destination;
+		public final String plane;
+		public final int seats;
+		public final int duration;
+
+		Flight(int airId, String flightNum, String origin, String destination, String plane, int seats, int duration){
+			this.airId = airId;
+			this.flightNum = flightNum;
+			this.origin = origin;
+			this.destination = destination;
+			this.plane = plane;
+			this.seats = seats;
+			this.duration = duration;
+		}
+	}
+
+	private final Map<Integer, Airline> _airlines;
+	private final Map<String, Flight> _flights;
+	private final String[] _cities;
+	private final CityIndex _cityIndex;
+
+	/**
+	 * Builds a snapshot from already loaded tables.
+	 *
+	 * @param airlines Airline keyed by airId
+	 * @param flights Flight keyed by flightNum
+	 * @param cities the distinct origin and destination names
+	 */
+	public ReferenceData(Map<Integer, Airline> airlines, Map<String, Flight> flights, String[] cities){
+		this._airlines = Collections.unmodifiableMap(new TreeMap<Integer, Airline>(airlines));
+		this._flights = Collections.unmodifiableMap(new HashMap<String, Flight>(flights));
+		this._cities = cities.clone();
+		Arrays.sort(this._cities);
+		this._cityIndex = new CityIndex(this._cities);
+	}
+
+	/**
+	 * @return a snapshot with the same airlines and the given flights and cities
+	 */
+	public ReferenceData withFlights(Map<String, Flight> flights, String[] cities){
+		return new ReferenceData(this._airlines, flights, cities);
+	}
+
+	/**
+	 * @param airId the airline that changed
+	 * @param airline its new row, or null when it was deleted
+	 * @return a snapshot with that one airline replaced
+	 */
+	public ReferenceData withAirline(int airId, Airline airline){
+		Map<Integer, Airline> airlines = new HashMap<Integer, Airline>(this._airlines);
+		if (airline == null) airlines.remove(airId);
+		else airlines.put(airId, airline);
+		return new ReferenceData(airlines, this._flights, this._cities);
+	}
+
+	/**
+	 * @param flightNum the flight that changed
+	 * @param flight its new row, or null when it was deleted
+	 * @return a snapshot with that one flight replaced and the cities recomputed
+	 */
+	public ReferenceData withFlight(String flightNum, Flight flight){
+		Map<String, Flight> flights = new HashMap<String, Flight>(this._flights);
+		if (flight == null) flights.remove(flightNum.trim());
+		else flights.put(flight.flightNum, flight);
+		TreeSet<String> cities = new TreeSet<String>();
+		for (Flight f : flights.values()){
+			cities.add(f.origin);
+			cities.add(f.destination);
+		}
+		return new ReferenceData(this._airlines, flights, cities.toArray(new String[cities.size()]));
+	}
+
+	/** @return every airline, ordered by airId */
+	public Iterable<Airline> airlines() { return this._airlines.values(); }
+
+	/** @return the airline with the given id, or null */
+	public Airline airline(int airId) { return this._airlines.get(airId); }
+
+	/** @return every flight, keyed by flight number */
+	public Map<String, Flight> flights() { return this._flights; }
+
+	/** @return the flight with the given number, or null */
+	public Flight flight(String flightNum) { return this._flights.get(flightNum.trim()); }
+
+	/** @return the prefix and fuzzy lookup over the city names */
+	public CityIndex cityIndex() { return this._cityIndex; }
+
+	/**
+	 * @return the flights from origin to destination, shortest first
+	 */
+	public List<Flight> flightsBetween(String origin, String destination){
+		List<Flight> result = new ArrayList<Flight>();
+		for (Flight f : this._flights.values()){
+			if (f.origin.equals(origin.trim()) && f.destination.equals(destination.trim())) result.add(f);
+		}
+		Collections.sort(result, new java.util.Comparator<Flight>(){
+			public int compare(Flight a, Flight b){ return Integer.compare(a.duration, b.duration); }
+		});
+		return result;
+	}
+
+	/**
+	 * Reads Airline.
+	 *
+	 * @param c the connection to read from
+	 * @return Airline keyed by airId
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Map<Integer, Airline> loadAirlines(Connection c) throws SQLException {
+		Map<Integer, Airline> airlines = new HashMap<Integer, Airline>();
+		Statement stmt = c.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT airId, name, founded, country, hub FROM Airline;");
+			while (rs.next()){
+				Airline a = new Airline(rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getString(4).trim(), rs.getString(5).trim());
+				airlines.put(a.airId, a);
+			}
+		}finally{
+			stmt.close();
+		}
+		return airlines;
+	}
+
+	/**
+	 * Reads Flight.
+	 *
+	 * @param c the connection to read from
+	 * @return Flight keyed by flightNum
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Map<String, Flight> loadFlights(Connection c) throws SQLException {
+		Map<String, Flight> flights = new HashMap<String, Flight>();
+		Statement stmt = c.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight;");
+			while (rs.next()){
+				Flight f = new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+					rs.getString(5).trim(), rs.getInt(6), rs.getInt(7));
+				flights.put(f.flightNum, f);
+			}
+		}finally{
+			stmt.close();
+		}
+		return flights;
+	}
+
+	/**
+	 * Reads one row of Airline.
+	 *
+	 * @param c the connection to read from
+	 * @param airId the airline to read
+	 * @return the airline, or null when there is none
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Airline loadAirline(Connection c, int airId) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement("SELECT airId, name, founded, country, hub FROM Airline WHERE airId = ?;");
+		try{
+			stmt.setInt(1, airId);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) return null;
+			return new Airline(rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getString(4).trim(), rs.getString(5).trim());
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Reads one row of Flight.
+	 *
+	 * @param c the connection to read from
+	 * @param flightNum the flight to read
+	 * @return the flight, or null when there is none
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Flight loadFlight(Connection c, String flightNum) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement("SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight WHERE flightNum = ?;");
+		try{
+			stmt.setString(1, flightNum);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) return null;
+			return new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+				rs.getString(5).trim(), rs.getInt(6), rs.getInt(7));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Reads the distinct origin and destination names of Flight.
+	 *
+	 * @param c the connection to read from
+	 * @return the city names
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static String[] loadCities(Connection c) throws SQLException {
+		TreeSet<String> cities = new TreeSet<String>();
+		Statement stmt = c.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT origin FROM Flight UNION SELECT destination FROM Flight;");
+			while (rs.next()) cities.add(rs.getString(1).trim());
+		}finally{
+			stmt.close();
+		}
+		return cities.toArray(new String[cities.size()]);
+	}
+}
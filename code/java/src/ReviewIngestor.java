@@ -0,0 +1,571 @@
+/*
+ * Write-behind ingestion of customer reviews
+ * =============================
+ *
+ * Reviews are validated against cached Passenger/Booking data, appended to a
+ * local log for durability and handed back to the caller immediately. A
+ * background flusher writes them to Ratings in JDBC batches.
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Savepoint;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class accepts reviews on behalf of TakeCustomerReview. A review is
+ * durable once submit returns: it has been forced to the append-only log.
+ * The flusher thread inserts pending reviews with a JDBC batch and records
+ * the highest flushed log sequence number in ReviewIngestCheckpoint inside
+ * the same transaction, so replaying the log after a crash never inserts a
+ * review twice.
+ *
+ * The checkpoint row is keyed by an identity generated for the log on first
+ * use and kept next to it in <log>.id, so instances with logs of the same
+ * name never share a row. The checkpoint only moves forward. The table comes
+ * from create.sql or migration 1.
+ *
+ * The flusher reopens its connection after a failed flush, so a database
+ * restart delays reviews but does not stop them. close waits a bounded time
+ * for the queue to drain; whatever is left stays in the log for replay.
+ *
+ */
+
+public class ReviewIngestor{
+	//one pending review, as written to the log
+	static final class Review{
+		final long seq;
+		final int pID;
+		final String flightNum;
+		final int score;
+		final String comment;
+		//assigned when the review is inserted, -1 while pending or when rejected
+		int rID = -1;
+
+		Review(long seq, int pID, String flightNum, int score, String comment){
+			this.seq = seq;
+			this.pID = pID;
+			this.flightNum = flightNum;
+			this.score = score;
+			this.comment = comment;
+		}
+	}
+
+	private static final String INSERT_RATING = "INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES (?, ?, ?, ?, ?);";
+	private static final String UPDATE_CHECKPOINT = "UPDATE ReviewIngestCheckpoint SET lastSeq = GREATEST(lastSeq, ?) WHERE logName = ?;";
+	//how long close waits for the pending reviews to reach Ratings
+	static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+	//connection owned by the flusher thread, reopened after a failure
+	private Connection _connection;
+	private final String _url, _user, _passwd;
+	private final KeyAllocator _keys;
+	private final String _logName;
+	private final FileChannel _log;
+	private final Object _logLock = new Object();
+	private final int _batchSize;
+	private final long _flushIntervalMillis;
+
+	private final LinkedBlockingQueue<Review> _queue = new LinkedBlockingQueue<Review>();
+	private final Map<String, Integer> _passengers = new ConcurrentHashMap<String, Integer>();
+	private final BookingIndex _bookings;
+
+	private long _nextSeq;
+	private volatile long _flushedSeq;
+	private volatile boolean _running = true;
+	//set when close stops waiting; the flusher gives up on what is left
+	private volatile boolean _abandoned = false;
+	private final Thread _flusher;
+
+	//metrics
+	private final AtomicLong _flushedCount = new AtomicLong();
+	private final AtomicLong _rejectedCount = new AtomicLong();
+	private final AtomicLong _flushCount = new AtomicLong();
+	private final AtomicLong _flushNanosTotal = new AtomicLong();
+	private volatile long _lastFlushNanos;
+	private volatile long _maxFlushNanos;
+	//told about every review once its batch is committed
+	private volatile Consumer<Review> _onFlushed = null;
+
+	/**
+	 * Opens the log, replays every entry not yet recorded as flushed and starts
+	 * the background flusher.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param keys hands out the rIDs of the inserted reviews
+	 * @param bookings answers the has-flown check locally
+	 * @param logFile the append-only review log
+	 * @param batchSize flush as soon as this many reviews are pending
+	 * @param flushIntervalMillis flush pending reviews at least this often
+	 * @throws java.sql.SQLException when the flusher connection cannot be set up
+	 * @throws java.io.IOException when the log cannot be opened or replayed
+	 */
+	public ReviewIngestor(String url, String user, String passwd, KeyAllocator keys, BookingIndex bookings, File logFile, int batchSize, long flushIntervalMillis) throws SQLException, IOException {
+		this._keys = keys;
+		this._bookings = bookings;
+		this._batchSize = batchSize;
+		this._flushIntervalMillis = flushIntervalMillis;
+		this._logName = logIdentity(logFile);
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._connection = DriverManager.getConnection(url, user, passwd);
+
+		Statement stmt = this._connection.createStatement();
+		try{
+			PreparedStatement init = this._connection.prepareStatement("INSERT INTO ReviewIngestCheckpoint (logName, lastSeq) VALUES (?, 0) ON CONFLICT (logName) DO NOTHING;");
+			init.setString(1, this._logName);
+			init.executeUpdate();
+			init.close();
+
+			PreparedStatement last = this._connection.prepareStatement("SELECT lastSeq FROM ReviewIngestCheckpoint WHERE logName = ?;");
+			last.setString(1, this._logName);
+			ResultSet rs = last.executeQuery();
+			this._flushedSeq = rs.next() ? rs.getLong(1) : 0;
+			last.close();
+
+			warm(stmt);
+		}finally{
+			stmt.close();
+		}
+
+		this._nextSeq = replay(logFile) + 1;
+		if (this._nextSeq <= this._flushedSeq) this._nextSeq = this._flushedSeq + 1;
+		this._log = new RandomAccessFile(logFile, "rw").getChannel();
+		this._log.position(this._log.size());
+		terminateTornLine();
+
+		this._flusher = new Thread(new Runnable(){
+			public void run(){ flushLoop(); }
+		}, "review-flusher");
+		this._flusher.setDaemon(true);
+		this._flusher.start();
+	}
+
+	/**
+	 * Returns the checkpoint key of a log: a random id created with the log
+	 * and stored in <log>.id. The log itself is truncated when compacted, so
+	 * the id does not live in it.
+	 */
+	static String logIdentity(File logFile) throws IOException {
+		File idFile = new File(logFile.getPath() + ".id");
+		if (idFile.exists()){
+			String id = new String(java.nio.file.Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8).trim();
+			if (!id.isEmpty()) return id;
+		}
+		String id = logFile.getName() + "-" + java.util.UUID.randomUUID();
+		FileChannel out = new RandomAccessFile(idFile, "rw").getChannel();
+		try{
+			out.truncate(0);
+			out.write(ByteBuffer.wrap((id + "\n").getBytes(StandardCharsets.UTF_8)));
+			out.force(true);
+		}finally{
+			out.close();
+		}
+		return id;
+	}
+
+	/**
+	 * Loads the passenger names that TakeCustomerReview validates against.
+	 */
+	private void warm(Statement stmt) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT pID, fullName FROM Passenger;");
+		while (rs.next()){
+			//keep the first passenger seen for a name, like the interactive lookup
+			this._passengers.putIfAbsent(rs.getString(2).trim(), rs.getInt(1));
+		}
+		rs.close();
+	}
+
+	/**
+	 * Re-queues every logged review with a sequence number above the flushed
+	 * checkpoint.
+	 *
+	 * @return the highest sequence number found in the log
+	 */
+	private long replay(File logFile) throws IOException {
+		long maxSeq = 0;
+		if (!logFile.exists()) return maxSeq;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8));
+		try{
+			String line;
+			while ((line = reader.readLine()) != null){
+				Review review = decode(line);
+				//a torn last line from a crash mid-append is skipped
+				if (review == null) continue;
+				maxSeq = Math.max(maxSeq, review.seq);
+				if (review.seq > this._flushedSeq) this._queue.add(review);
+			}
+		}finally{
+			reader.close();
+		}
+		return maxSeq;
+	}
+
+	/**
+	 * Ends a line left unterminated by a crash mid-append so the next review
+	 * starts on a line of its own.
+	 */
+	private void terminateTornLine() throws IOException {
+		long size = this._log.size();
+		if (size == 0) return;
+		ByteBuffer last = ByteBuffer.allocate(1);
+		this._log.read(last, size - 1);
+		if (last.get(0) != '\n'){
+			this._log.write(ByteBuffer.wrap(new byte[]{'\n'}));
+			this._log.force(false);
+		}
+	}
+
+	/**
+	 * Returns the pID of the passenger with the given full name, consulting
+	 * the database only when the name is not cached yet.
+	 *
+	 * @param c the caller's connection, used on a cache miss
+	 * @param fullName the passenger's full name
+	 * @return the pID, or null when there is no such passenger
+	 * @throws java.sql.SQLException when the fallback lookup fails
+	 */
+	public Integer lookupPassenger(Connection c, String fullName) throws SQLException {
+		Integer pID = this._passengers.get(fullName.trim());
+		if (pID != null) return pID;
+		List<List<String>> result = AirBooking.executePreparedQueryAndReturnResult(c, "SELECT pID FROM Passenger WHERE fullName = ?;", fullName);
+		if (result.size() == 0) return null;
+		pID = Integer.valueOf(result.get(0).get(0));
+		this._passengers.put(fullName.trim(), pID);
+		return pID;
+	}
+
+	/**
+	 * Checks whether the passenger has a booking on the flight. The booking
+	 * index answers locally; only a miss, which may be a booking made by
+	 * another instance and not yet announced, is confirmed with the database.
+	 *
+	 * @param c the caller's connection, used on a cache miss
+	 * @param pID the passenger
+	 * @param flightNum the flight number
+	 * @return true when the passenger booked that flight
+	 * @throws java.sql.SQLException when the fallback lookup fails
+	 */
+	public boolean hasFlown(Connection c, int pID, String flightNum) throws SQLException {
+		if (this._bookings.hasFlown(pID, flightNum)) return true;
+		List<List<String>> result = AirBooking.executePreparedQueryAndReturnResult(c, "SELECT 1 FROM Booking WHERE flightNum = ? AND pID = ? LIMIT 1;", flightNum, pID);
+		return result.size() > 0;
+	}
+
+	/**
+	 * Drops a cached passenger name so the next lookup goes to the database.
+	 *
+	 * @param fullName the passenger's full name, or null to drop every name
+	 */
+	public void invalidatePassenger(String fullName) {
+		if (fullName == null) this._passengers.clear();
+		else this._passengers.remove(fullName.trim());
+	}
+
+	/**
+	 * Reloads the passenger name cache, used when change events may have been
+	 * missed. Lookups racing with the reload fall back to the database.
+	 *
+	 * @param c the connection to read from
+	 * @throws java.sql.SQLException when failed to execute the queries
+	 */
+	public void resync(Connection c) throws SQLException {
+		this._passengers.clear();
+		Statement stmt = c.createStatement();
+		try{
+			warm(stmt);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Registers a callback run on the flusher thread for every review stored
+	 * in Ratings, after its batch has been committed.
+	 *
+	 * @param onFlushed the callback, or null to remove it
+	 */
+	public void setFlushListener(Consumer<Review> onFlushed) {
+		this._onFlushed = onFlushed;
+	}
+
+	/**
+	 * Accepts a validated review. The review is durable when this returns;
+	 * the insert into Ratings happens later on the flusher thread.
+	 *
+	 * @param pID the reviewing passenger
+	 * @param flightNum the reviewed flight
+	 * @param score the rating score, 0 to 5
+	 * @param comment the free text comment, may be empty
+	 * @return the log sequence number assigned to the review
+	 * @throws java.io.IOException when the review could not be logged
+	 */
+	public long submit(int pID, String flightNum, int score, String comment) throws IOException {
+		if (score < 0 || score > 5) throw new IllegalArgumentException("Score must be between 0 and 5");
+		synchronized (this._logLock){
+			Review review = new Review(this._nextSeq, pID, flightNum.trim(), score, comment == null ? "" : comment);
+			ByteBuffer line = ByteBuffer.wrap(encode(review).getBytes(StandardCharsets.UTF_8));
+			while (line.hasRemaining()) this._log.write(line);
+			this._log.force(false);
+			this._nextSeq++;
+			this._queue.add(review);
+			return review.seq;
+		}
+	}
+
+	private void flushLoop() {
+		List<Review> batch = new ArrayList<Review>();
+		while (!this._abandoned && (this._running || !this._queue.isEmpty() || !batch.isEmpty())){
+			try{
+				if (batch.isEmpty()){
+					Review first = this._queue.poll(this._flushIntervalMillis, TimeUnit.MILLISECONDS);
+					if (first == null) continue;
+					batch.add(first);
+				}
+				//size trigger: drain what is there; time trigger: wait out the interval
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this._flushIntervalMillis);
+				while (batch.size() < this._batchSize && this._running){
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) break;
+					Review next = this._queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null) break;
+					batch.add(next);
+				}
+				this._queue.drainTo(batch, Math.max(0, this._batchSize - batch.size()));
+				flush(batch);
+				batch.clear();
+				compactLog();
+			}catch(InterruptedException e){
+				//shutdown requested; the loop drains what is left
+				this._running = false;
+			}catch(SQLException e){
+				if (this._abandoned) break;
+				System.err.println("Review flush failed, reconnecting and retrying: " + e.getMessage());
+				try{
+					Thread.sleep(this._flushIntervalMillis);
+				}catch(InterruptedException ie){
+					this._running = false;
+				}
+				reconnect();
+			}catch(IOException e){
+				System.err.println("Review log compaction failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Replaces the flusher connection, which may have died with the server.
+	 * A failed attempt is retried after the next failed flush.
+	 */
+	private void reconnect() {
+		try{
+			this._connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		try{
+			this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+		}catch(SQLException e){
+			System.err.println("Review flusher could not reconnect: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Inserts a batch and advances the checkpoint in one transaction. When the
+	 * batch fails, rows are retried one by one behind savepoints; a row the
+	 * database refuses as data (e.g. a flight deleted since validation) is
+	 * dropped and counted as rejected so it cannot block the rows behind it.
+	 * Any other error, such as a lost connection or a deadlock, fails the whole
+	 * batch, which stays in the log past the checkpoint and is retried.
+	 */
+	private void flush(List<Review> batch) throws SQLException {
+		long start = System.nanoTime();
+		this._connection.setAutoCommit(false);
+		try{
+			try{
+				insert(batch);
+			}catch(SQLException e){
+				this._connection.rollback();
+				for (Review review : batch){
+					Savepoint row = this._connection.setSavepoint();
+					try{
+						insert(java.util.Collections.singletonList(review));
+					}catch(SQLException rowError){
+						if (!isDataError(rowError)) throw rowError;
+						this._connection.rollback(row);
+						review.rID = -1;
+						this._rejectedCount.incrementAndGet();
+						System.err.println("Review " + review.seq + " rejected: " + rowError.getMessage());
+					}
+				}
+			}
+			long lastSeq = batch.get(batch.size() - 1).seq;
+			PreparedStatement checkpoint = this._connection.prepareStatement(UPDATE_CHECKPOINT);
+			checkpoint.setLong(1, lastSeq);
+			checkpoint.setString(2, this._logName);
+			checkpoint.executeUpdate();
+			checkpoint.close();
+			this._connection.commit();
+			this._flushedSeq = lastSeq;
+			Consumer<Review> onFlushed = this._onFlushed;
+			if (onFlushed != null){
+				for (Review review : batch) if (review.rID >= 0) onFlushed.accept(review);
+			}
+		}catch(SQLException e){
+			this._connection.rollback();
+			throw e;
+		}finally{
+			this._connection.setAutoCommit(true);
+		}
+		long elapsed = System.nanoTime() - start;
+		this._flushCount.incrementAndGet();
+		this._flushedCount.addAndGet(batch.size());
+		this._flushNanosTotal.addAndGet(elapsed);
+		this._lastFlushNanos = elapsed;
+		if (elapsed > this._maxFlushNanos) this._maxFlushNanos = elapsed;
+	}
+
+	//data exceptions (class 22) and integrity constraint violations (class 23) fail again on retry
+	private static boolean isDataError(SQLException e){
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("22") || state.startsWith("23"));
+	}
+
+	private void insert(List<Review> rows) throws SQLException {
+		PreparedStatement stmt = this._connection.prepareStatement(INSERT_RATING);
+		try{
+			for (Review review : rows){
+				review.rID = this._keys.nextRatingId();
+				stmt.setInt(1, review.rID);
+				stmt.setInt(2, review.pID);
+				stmt.setString(3, review.flightNum);
+				stmt.setInt(4, review.score);
+				stmt.setString(5, review.comment);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Truncates the log once everything in it has been flushed.
+	 */
+	private void compactLog() throws IOException {
+		synchronized (this._logLock){
+			if (this._queue.isEmpty() && this._flushedSeq == this._nextSeq - 1){
+				this._log.truncate(0);
+				this._log.force(true);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting work, flushes what is still pending within
+	 * CLOSE_TIMEOUT_MILLIS and closes the log and the flusher connection.
+	 * Reviews not flushed by then are replayed from the log on the next start.
+	 */
+	public void close() {
+		this._running = false;
+		try{
+			this._flusher.join(CLOSE_TIMEOUT_MILLIS);
+		}catch(InterruptedException e){
+			// ignored.
+		}
+		if (this._flusher.isAlive()){
+			this._abandoned = true;
+			System.err.println("Review flusher did not drain in time; " + this._queue.size() + " reviews stay in the log for replay");
+		}
+		try{
+			this._log.close();
+			this._connection.close();
+		}catch(Exception e){
+			// ignored.
+		}
+	}
+
+	/** @return the number of reviews accepted but not yet in Ratings */
+	public int getQueueDepth() { return this._queue.size(); }
+
+	/** @return the number of reviews written to Ratings */
+	public long getFlushedCount() { return this._flushedCount.get(); }
+
+	/** @return the number of reviews refused by the database */
+	public long getRejectedCount() { return this._rejectedCount.get(); }
+
+	/** @return the duration of the last batch flush in milliseconds */
+	public double getLastFlushMillis() { return this._lastFlushNanos / 1e6; }
+
+	/** @return the longest batch flush in milliseconds */
+	public double getMaxFlushMillis() { return this._maxFlushNanos / 1e6; }
+
+	/** @return the mean batch flush duration in milliseconds */
+	public double getAvgFlushMillis() {
+		long flushes = this._flushCount.get();
+		return flushes == 0 ? 0 : this._flushNanosTotal.get() / 1e6 / flushes;
+	}
+
+	/** @return a one line summary of the ingestion metrics */
+	public String stats() {
+		return String.format("queue=%d flushed=%d rejected=%d flushes=%d lastFlush=%.2fms avgFlush=%.2fms maxFlush=%.2fms",
+			getQueueDepth(), getFlushedCount(), getRejectedCount(), this._flushCount.get(),
+			getLastFlushMillis(), getAvgFlushMillis(), getMaxFlushMillis());
+	}
+
+	private static String encode(Review review) {
+		return review.seq + "\t" + review.pID + "\t" + escape(review.flightNum) + "\t" + review.score + "\t" + escape(review.comment) + "\n";
+	}
+
+	private static Review decode(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length != 5) return null;
+		try{
+			return new Review(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), unescape(fields[2]), Integer.parseInt(fields[3]), unescape(fields[4]));
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String s) {
+		StringBuilder out = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i){
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()){
+				char n = s.charAt(++i);
+				out.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			}
+			else out.append(c);
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Full-text search over rating comments
+ * =============================
+ *
+ * Ranked keyword search over Ratings.comment, backed by the comment_tsv
+ * generated column and its GIN index (see create.sql).
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class searches reviews by keywords, flight and score range. Results
+ * are ordered by rank, best first, with rID as the tie breaker, and are paged
+ * with a keyset cursor: the next page starts strictly after the (rank, rID)
+ * of the last hit of the previous one, so no OFFSET skips over the earlier
+ * pages. The rank is still computed and sorted for every match on every
+ * page, so a page costs about as much as the number of matches; keywords
+ * that match a large share of the reviews stay expensive however deep the
+ * page.
+ *
+ */
+
+public final class ReviewSearch{
+	/** One matching review. */
+	public static final class Hit{
+		public final int rID;
+		public final int pID;
+		public final String flightNum;
+		public final int score;
+		public final String comment;
+		public final double rank;
+
+		public Hit(int rID, int pID, String flightNum, int score, String comment, double rank){
+			this.rID = rID;
+			this.pID = pID;
+			this.flightNum = flightNum;
+			this.score = score;
+			this.comment = comment;
+			this.rank = rank;
+		}
+
+		/** @return the cursor of the page that follows this hit */
+		public Cursor next(){
+			return new Cursor(this.rank, this.rID);
+		}
+	}
+
+	/** Position after which the next page starts. */
+	public static final class Cursor{
+		public final double rank;
+		public final int rID;
+
+		public Cursor(double rank, int rID){
+			this.rank = rank;
+			this.rID = rID;
+		}
+	}
+
+	private ReviewSearch(){
+	}
+
+	/**
+	 * Searches Ratings through the GIN index on comment_tsv.
+	 *
+	 * @param c the connection to run the query on
+	 * @param keywords the words every returned comment must contain
+	 * @param flightNum only reviews of this flight, or null for all flights
+	 * @param minScore the lowest score returned
+	 * @param maxScore the highest score returned
+	 * @param after the cursor of the previous page, or null for the first page
+	 * @param limit the page size
+	 * @return the hits of the page, best ranked first
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static List<Hit> search(Connection c, String keywords, String flightNum, int minScore, int maxScore, Cursor after, int limit) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement(sql(flightNum != null, after != null));
+		try{
+			int p = 1;
+			stmt.setString(p++, keywords);
+			stmt.setInt(p++, minScore);
+			stmt.setInt(p++, maxScore);
+			if (flightNum != null) stmt.setString(p++, flightNum);
+			if (after != null){
+				stmt.setDouble(p++, after.rank);
+				stmt.setDouble(p++, after.rank);
+				stmt.setInt(p++, after.rID);
+			}
+			stmt.setInt(p, limit);
+			ResultSet rs = stmt.executeQuery();
+			List<Hit> hits = new ArrayList<Hit>();
+			while (rs.next()){
+				hits.add(new Hit(rs.getInt(1), rs.getInt(2), rs.getString(3).trim(), rs.getInt(4), rs.getString(5), rs.getDouble(6)));
+			}
+			return hits;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * @return the query of search: keywords, minScore, maxScore, then the
+	 * flightNum and the cursor (rank, rank, rID) when present, then the limit
+	 */
+	static String sql(boolean byFlight, boolean afterCursor){
+		StringBuilder query = new StringBuilder(
+			"SELECT rID, pID, flightNum, score, comment, rank FROM ("
+			+ "SELECT R.rID, R.pID, R.flightNum, R.score, R.comment, ts_rank(R.comment_tsv, Q.q)::float8 AS rank "
+			+ "FROM Ratings R, plainto_tsquery('english', ?) Q(q) "
+			+ "WHERE R.comment_tsv @@ Q.q AND R.score BETWEEN ? AND ?");
+		if (byFlight) query.append(" AND R.flightNum = ?");
+		query.append(") S");
+		if (afterCursor) query.append(" WHERE rank < ? OR (rank = ? AND rID < ?)");
+		query.append(" ORDER BY rank DESC, rID DESC LIMIT ?;");
+		return query.toString();
+	}
+}
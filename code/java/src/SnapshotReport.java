@@ -0,0 +1,176 @@
+/*
+ * Snapshot-consistent parallel reporting
+ * =============================
+ *
+ * Runs the queries of a multi-section report concurrently on several pooled
+ * connections that all read the same database snapshot, so the report is
+ * a point-in-time view and takes about as long as its slowest section.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is one reporting snapshot. open starts a REPEATABLE READ, READ
+ * ONLY transaction on a pooled connection and exports its snapshot with
+ * pg_export_snapshot(). Every section submitted afterwards runs on its own
+ * pooled connection, in a transaction that imports that snapshot with SET
+ * TRANSACTION SNAPSHOT before its first query, so all sections see exactly
+ * the committed state of the moment open was called, whatever commits in
+ * between. Their results are merged on the client by the caller.
+ *
+ * The exporting transaction stays open, holding its connection, until
+ * close; an exported snapshot can only be imported while it is. Sections
+ * beyond the remaining pool size wait for a connection.
+ *
+ */
+
+public class SnapshotReport implements AutoCloseable{
+	/**
+	 * One query, or several, of a report.
+	 */
+	public interface Section<T>{
+		T run(Connection c) throws Exception;
+	}
+
+	private static final String BEGIN_SQL = "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY;";
+
+	private final ConnectionPool _pool;
+	private final Connection _exporter;
+	private final String _snapshot;
+	private final ExecutorService _workers;
+	private final long _start = System.nanoTime();
+	private final Map<String, Long> _sectionNanos = new LinkedHashMap<String, Long>();
+	private final List<Future<?>> _running = new ArrayList<Future<?>>();
+
+	private SnapshotReport(ConnectionPool pool, Connection exporter, String snapshot){
+		this._pool = pool;
+		this._exporter = exporter;
+		this._snapshot = snapshot;
+		this._workers = Executors.newFixedThreadPool(Math.max(1, pool.size() - 1));
+	}
+
+	/**
+	 * Exports a snapshot of the current committed state.
+	 *
+	 * @param pool the connections of the exporting and the section transactions
+	 * @return the snapshot to submit sections to
+	 * @throws java.sql.SQLException when the snapshot cannot be exported
+	 */
+	public static SnapshotReport open(ConnectionPool pool) throws SQLException {
+		Connection c = pool.borrow();
+		try{
+			c.setAutoCommit(false);
+			Statement stmt = c.createStatement();
+			try{
+				stmt.execute(BEGIN_SQL);
+				ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot();");
+				rs.next();
+				return new SnapshotReport(pool, c, rs.getString(1));
+			}finally{
+				stmt.close();
+			}
+		}catch(SQLException | RuntimeException e){
+			//release rolls back the transaction and restores auto-commit
+			pool.release(c);
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts a section on a connection of its own, reading the snapshot.
+	 *
+	 * @param name the section name, for the timings
+	 * @param section the queries of the section
+	 * @return the result of the section once it completes
+	 */
+	public synchronized <T> Future<T> submit(String name, Section<T> section){
+		Future<T> f = this._workers.submit(() -> {
+			long t = System.nanoTime();
+			Connection c = this._pool.borrow();
+			try{
+				c.setAutoCommit(false);
+				Statement stmt = c.createStatement();
+				try{
+					stmt.execute(BEGIN_SQL);
+					//the id comes from the server, it is not user input
+					stmt.execute("SET TRANSACTION SNAPSHOT '" + this._snapshot + "';");
+				}finally{
+					stmt.close();
+				}
+				return section.run(c);
+			}finally{
+				this._pool.release(c);
+				synchronized (this){
+					this._sectionNanos.put(name, System.nanoTime() - t);
+				}
+			}
+		});
+		this._running.add(f);
+		return f;
+	}
+
+	/**
+	 * Waits for a section and unwraps its failure.
+	 *
+	 * @throws java.lang.Exception what the section threw
+	 */
+	public static <T> T get(Future<T> section) throws Exception {
+		try{
+			return section.get();
+		}catch(ExecutionException e){
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/** @return the id of the exported snapshot */
+	public String snapshotId(){
+		return this._snapshot;
+	}
+
+	/** @return the time since open, in milliseconds */
+	public double elapsedMillis(){
+		return (System.nanoTime() - this._start) / 1e6;
+	}
+
+	/** @return the wall time of every finished section, in completion order, in milliseconds */
+	public synchronized Map<String, Double> sectionMillis(){
+		Map<String, Double> millis = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, Long> e : this._sectionNanos.entrySet()) millis.put(e.getKey(), e.getValue() / 1e6);
+		return millis;
+	}
+
+	/**
+	 * Waits for the sections still running and ends the exporting transaction.
+	 */
+	public void close(){
+		List<Future<?>> running;
+		synchronized (this){
+			running = new ArrayList<Future<?>>(this._running);
+		}
+		for (Future<?> f : running){
+			try{
+				f.get();
+			}catch(ExecutionException e){
+				// reported to whoever waits for the section.
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		this._workers.shutdown();
+		this._pool.release(this._exporter);
+	}
+}
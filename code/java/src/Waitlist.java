@@ -0,0 +1,326 @@
+/*
+ * Booking cancellation and waitlists
+ * =============================
+ *
+ * Passengers who find a departure fully booked can wait for a seat. A
+ * cancellation hands its seat to the first of them at once, and background
+ * promoters hand out seats freed any other way.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps one queue per (flightNum, departure) in the Waitlist
+ * table, ordered by wID.
+ *
+ * A cancellation deletes the booking and promotes the head of the queue in
+ * the same transaction, holding the departure lock of AirBooking.lockDeparture
+ * like every other path that inserts bookings, so the seat count it checks
+ * is exact.
+ *
+ * A Promoter runs worker threads that look for queue heads whose departure
+ * has a free seat, e.g. after a flight got more seats. The candidates come
+ * from a skip scan of the waitlist_departure index, one probe per waiting
+ * departure, and only those departures' bookings are counted, so the cost
+ * follows the number of departures with a queue, not the length of the
+ * queues. A worker then only tries the departure lock of a candidate: when
+ * a booking, a cancellation or another worker holds it, the worker moves on
+ * to the next candidate instead of queueing behind the busiest departures.
+ *
+ * The head of a queue is only ever read and deleted under the departure
+ * lock, so it is locked with a plain FOR UPDATE and never skipped.
+ *
+ */
+
+public class Waitlist{
+	static final String JOIN_SQL = "INSERT INTO Waitlist (flightNum, departure, pID) VALUES (?, ?, ?) RETURNING wID;";
+	static final String POSITION_SQL = "SELECT COUNT(*) FROM Waitlist WHERE flightNum = ? AND departure = ? AND wID <= ?;";
+	static final String LOCK_BOOKING_SQL = "SELECT flightNum, departure, pID FROM Booking WHERE bookRef = ? FOR UPDATE;";
+	static final String DELETE_BOOKING_SQL = "DELETE FROM Booking WHERE bookRef = ? RETURNING bookRef;";
+	//callers hold the departure lock, so nobody else holds the head
+	static final String HEAD_SQL = "SELECT wID, pID, (extract(epoch FROM clock_timestamp() - requested) * 1000)::bigint FROM Waitlist "
+		+ "WHERE flightNum = ? AND departure = ? ORDER BY wID LIMIT 1 FOR UPDATE;";
+	//departures with a waitlist and a free seat, oldest head first; the recursive part skips from one departure to the next
+	static final String CANDIDATES_SQL = "WITH RECURSIVE D AS ("
+		+ "(SELECT flightNum, departure FROM Waitlist ORDER BY flightNum, departure LIMIT 1) "
+		+ "UNION ALL SELECT N.flightNum, N.departure FROM D CROSS JOIN LATERAL ("
+		+ "SELECT W.flightNum, W.departure FROM Waitlist W WHERE (W.flightNum, W.departure) > (D.flightNum, D.departure) "
+		+ "ORDER BY W.flightNum, W.departure LIMIT 1) N) "
+		+ "SELECT trim(D.flightNum), D.departure FROM D JOIN Flight F ON F.flightNum = D.flightNum "
+		+ "CROSS JOIN LATERAL (SELECT W.wID FROM Waitlist W WHERE W.flightNum = D.flightNum AND W.departure = D.departure ORDER BY W.wID LIMIT 1) H "
+		+ "WHERE (SELECT COUNT(*) FROM Booking B WHERE B.flightNum = D.flightNum AND B.departure = D.departure) < F.seats "
+		+ "ORDER BY H.wID LIMIT ?;";
+	static final String TRY_LOCK_SQL = "SELECT pg_try_advisory_xact_lock(hashtext(?));";
+	static final String DELETE_ENTRY_SQL = "DELETE FROM Waitlist WHERE wID = ? RETURNING wID;";
+
+	/** The outcome of a cancellation. */
+	public static final class Cancellation{
+		public final String flightNum;
+		public final java.sql.Date departure;
+		public final int pID;
+		//the passenger who got the seat, or null when nobody was waiting
+		public final Integer promotedPID;
+		public final String promotedBookRef;
+
+		Cancellation(String flightNum, java.sql.Date departure, int pID, Integer promotedPID, String promotedBookRef){
+			this.flightNum = flightNum;
+			this.departure = departure;
+			this.pID = pID;
+			this.promotedPID = promotedPID;
+			this.promotedBookRef = promotedBookRef;
+		}
+	}
+
+	/**
+	 * Promotion counters and latencies, shared by cancellations and promoters.
+	 */
+	public static final class Stats{
+		private final LoadGenerator.Histogram _waited = new LoadGenerator.Histogram();
+		private final LoadGenerator.Histogram _promotion = new LoadGenerator.Histogram();
+		private final AtomicLong _byCancellation = new AtomicLong();
+		private final AtomicLong _byPromoter = new AtomicLong();
+		private final AtomicLong _busy = new AtomicLong();
+		private final AtomicLong _errors = new AtomicLong();
+
+		synchronized void record(long waitedMillis, long promotionNanos){
+			this._waited.record(waitedMillis * 1000000L);
+			this._promotion.record(promotionNanos);
+		}
+
+		public synchronized String toString(){
+			return String.format("%d promoted on cancellation, %d by promoters, %d skipped on a busy departure, %d errors | "
+				+ "waited p50 %.0f ms p99 %.0f ms | promotion transaction p50 %.2f ms p99 %.2f ms max %.2f ms",
+				this._byCancellation.get(), this._byPromoter.get(), this._busy.get(), this._errors.get(),
+				this._waited.percentileMillis(50), this._waited.percentileMillis(99),
+				this._promotion.percentileMillis(50), this._promotion.percentileMillis(99), this._promotion.maxMillis());
+		}
+	}
+
+	private Waitlist(){
+	}
+
+	/**
+	 * Puts a passenger at the end of the waitlist of a departure.
+	 *
+	 * @param c the connection to run the insert on
+	 * @param pID the passenger
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @return the position in the queue, 1 for the head
+	 * @throws java.sql.SQLException when the insert failed, with SQLState 23505
+	 *         when the passenger is already waiting for that departure
+	 */
+	public static int join(Connection c, int pID, String flightNum, java.sql.Date departure) throws SQLException {
+		long wID = Long.parseLong(AirBooking.executePreparedQueryAndReturnResult(c, JOIN_SQL, flightNum, departure, pID).get(0).get(0));
+		return Integer.parseInt(AirBooking.executePreparedQueryAndReturnResult(c, POSITION_SQL, flightNum, departure, wID).get(0).get(0));
+	}
+
+	/**
+	 * Cancels a booking and, in the same transaction, books the freed seat
+	 * for the first passenger waiting for the departure.
+	 *
+	 * @param c the connection to run the transaction on; auto-commit is
+	 *          switched off for the duration of the call
+	 * @param keys hands out the bookRef of the promoted passenger
+	 * @param bookRef the booking to cancel
+	 * @param stats records the promotion, may be null
+	 * @return the outcome, or null when there is no such booking
+	 * @throws java.sql.SQLException when failed to execute the queries
+	 */
+	public static Cancellation cancel(Connection c, KeyAllocator keys, String bookRef, Stats stats) throws SQLException {
+		long start = System.nanoTime();
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		try{
+			List<List<String>> booking = AirBooking.executePreparedQueryAndReturnResult(c, LOCK_BOOKING_SQL, bookRef);
+			if (booking.isEmpty()) return null;
+			String flightNum = booking.get(0).get(0).trim();
+			java.sql.Date departure = java.sql.Date.valueOf(booking.get(0).get(1));
+			int pID = Integer.parseInt(booking.get(0).get(2));
+			AirBooking.lockDeparture(c, flightNum, departure);
+			AirBooking.executePreparedQueryAndReturnResult(c, DELETE_BOOKING_SQL, bookRef);
+
+			int seats = AirBooking.lockFlightSeats(c, flightNum);
+			Integer promoted = null;
+			String promotedRef = null;
+			long waited = 0;
+			while (AirBooking.countBookedSeats(c, flightNum, departure) < seats){
+				List<List<String>> head = AirBooking.executePreparedQueryAndReturnResult(c, HEAD_SQL, flightNum, departure);
+				if (head.isEmpty()) break;
+				long wID = Long.parseLong(head.get(0).get(0));
+				int waiting = Integer.parseInt(head.get(0).get(1));
+				AirBooking.executePreparedQueryAndReturnResult(c, DELETE_ENTRY_SQL, wID);
+				//booked that departure directly while waiting
+				if (AirBooking.hasBooking(c, flightNum, departure, waiting)) continue;
+				promotedRef = AirBooking.insertBooking(c, keys, waiting, flightNum, departure);
+				promoted = waiting;
+				waited = Long.parseLong(head.get(0).get(2));
+				break;
+			}
+			c.commit();
+			if (promoted != null && stats != null){
+				stats._byCancellation.incrementAndGet();
+				stats.record(waited, System.nanoTime() - start);
+			}
+			return new Cancellation(flightNum, departure, pID, promoted, promotedRef);
+		}finally{
+			//nothing left to roll back after the commit
+			c.rollback();
+			c.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Worker threads that promote waiting passengers whenever their
+	 * departure has a free seat.
+	 */
+	public static final class Promoter{
+		//departures a worker considers per round
+		static final int CANDIDATES = 8;
+		private final ConnectionPool _pool;
+		private final KeyAllocator _keys;
+		private final BookingIndex _bookings;
+		private final long _idleMillis;
+		private final Stats _stats;
+		private final List<Thread> _workers = new ArrayList<Thread>();
+		private volatile boolean _running = true;
+
+		/**
+		 * Starts the workers. Each borrows a pooled connection for one
+		 * promotion at a time and sleeps idleMillis when there is nothing to
+		 * promote.
+		 *
+		 * @param pool the connections to promote on
+		 * @param keys hands out the bookRef of the promoted passengers
+		 * @param bookings records the promotions, may be null
+		 * @param workers the number of worker threads
+		 * @param idleMillis the pause after finding nothing to promote
+		 * @param stats receives the counters and latencies
+		 */
+		public Promoter(ConnectionPool pool, KeyAllocator keys, BookingIndex bookings, int workers, long idleMillis, Stats stats){
+			this._pool = pool;
+			this._keys = keys;
+			this._bookings = bookings;
+			this._idleMillis = idleMillis;
+			this._stats = stats;
+			for (int i = 0; i < workers; i++){
+				Thread t = new Thread(this::work, "waitlist-promoter-" + i);
+				t.setDaemon(true);
+				t.start();
+				this._workers.add(t);
+			}
+		}
+
+		private void work(){
+			while (this._running){
+				boolean promoted = false;
+				try{
+					promoted = promoteOne();
+				}catch(SQLException | RuntimeException e){
+					//e.g. a malformed head row; the worker must outlive it like the invalidation listener
+					this._stats._errors.incrementAndGet();
+				}
+				if (!promoted){
+					try{
+						Thread.sleep(this._idleMillis);
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Books the head of the first candidate departure whose lock is free
+		 * and that still has a seat under it; a departure found full there is
+		 * skipped for the next candidate.
+		 *
+		 * @return true when a passenger was promoted or a stale entry removed
+		 */
+		boolean promoteOne() throws SQLException {
+			long start = System.nanoTime();
+			Connection c = this._pool.borrow();
+			try{
+				c.setAutoCommit(false);
+				for (List<String> d : AirBooking.executePreparedQueryAndReturnResult(c, CANDIDATES_SQL, CANDIDATES)){
+					String flightNum = d.get(0);
+					java.sql.Date departure = java.sql.Date.valueOf(d.get(1));
+					if (!tryLockDeparture(c, flightNum, departure)){
+						this._stats._busy.incrementAndGet();
+						continue;
+					}
+					if (promote(c, flightNum, departure, start)) return true;
+					//releases the departure and flight locks before the next candidate
+					c.rollback();
+				}
+				return false;
+			}finally{
+				//release rolls back whatever is left and restores auto-commit
+				this._pool.release(c);
+			}
+		}
+
+		//books the head of a departure whose lock the transaction holds; false when it has no free seat or no head
+		private boolean promote(Connection c, String flightNum, java.sql.Date departure, long start) throws SQLException {
+			//the candidates were counted before the lock; count again under it
+			if (AirBooking.countBookedSeats(c, flightNum, departure) >= AirBooking.lockFlightSeats(c, flightNum)) return false;
+			List<List<String>> head = AirBooking.executePreparedQueryAndReturnResult(c, HEAD_SQL, flightNum, departure);
+			if (head.isEmpty()) return false;
+			List<String> h = head.get(0);
+			long wID = Long.parseLong(h.get(0));
+			int pID = Integer.parseInt(h.get(1));
+			AirBooking.executePreparedQueryAndReturnResult(c, DELETE_ENTRY_SQL, wID);
+			if (AirBooking.hasBooking(c, flightNum, departure, pID)){
+				c.commit();
+				return true;
+			}
+			AirBooking.insertBooking(c, this._keys, pID, flightNum, departure);
+			c.commit();
+			if (this._bookings != null) this._bookings.add(flightNum, departure, pID);
+			this._stats._byPromoter.incrementAndGet();
+			this._stats.record(Long.parseLong(h.get(2)), System.nanoTime() - start);
+			return true;
+		}
+
+		private static boolean tryLockDeparture(Connection c, String flightNum, java.sql.Date departure) throws SQLException {
+			PreparedStatement stmt = c.prepareStatement(TRY_LOCK_SQL);
+			try{
+				stmt.setString(1, AirBooking.departureLockKey(flightNum, departure));
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				return rs.getBoolean(1);
+			}finally{
+				stmt.close();
+			}
+		}
+
+		/** @return the counters and latencies of the promotions */
+		public Stats stats(){
+			return this._stats;
+		}
+
+		/**
+		 * Stops the workers after their current promotion.
+		 */
+		public void close(){
+			this._running = false;
+			for (Thread t : this._workers){
+				t.interrupt();
+				try{
+					t.join(5000);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -4,6 +4,9 @@ DROP TABLE IF EXISTS Passenger CASCADE;
 DROP TABLE IF EXISTS Flight CASCADE;
 DROP TABLE IF EXISTS Ratings CASCADE;
 DROP TABLE IF EXISTS Booking CASCADE;
+DROP TABLE IF EXISTS ReviewIngestCheckpoint CASCADE;
+DROP TABLE IF EXISTS Waitlist CASCADE;
+DROP TABLE IF EXISTS SchemaMigration CASCADE;
 
 DROP DOMAIN IF EXISTS _YEAR CASCADE;
 DROP DOMAIN IF EXISTS _HOURS CASCADE;
@@ -15,19 +18,6 @@ DROP SEQUENCE IF EXISTS rID_seq;
 DROP SEQUENCE IF EXISTS flightNum_seq; 
 DROP SEQUENCE IF EXISTS bookRef_seq; 
 
--- CREATE INDICES 
-CREATE INDEX pIDi
-ON Passenger
-USING BTREE (pID);
-
-CREATE INDEX airIDi
-ON Airline
-USING BTREE (airId);
-
-CREATE INDEX f_airIDi
-ON Flight
-USING BTREE (airId);
-
 -- CREATE DOMAINS
 CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1900);--YEAR ONLY GREATER THAN 1900
 CREATE DOMAIN _HOURS AS int4 CHECK(VALUE > 0 AND VALUE < 24);--At most 24 hours duration
@@ -72,6 +62,8 @@ CREATE TABLE Ratings(
 	flightNum CHAR(8) NOT NULL,
 	score _SCORE NOT NULL,
 	comment TEXT,
+	--searchable form of comment, kept in step by the server (ReviewSearch.java)
+	comment_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', coalesce(comment, ''))) STORED,
 	PRIMARY KEY (rID),
 	FOREIGN KEY (pID) REFERENCES Passenger(pID),
 	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
@@ -88,6 +80,39 @@ CREATE TABLE Booking(
 	UNIQUE(departure,flightNum,pID)
 );
 
+--Highest review log entry flushed to Ratings, per client review log
+CREATE TABLE ReviewIngestCheckpoint(
+	logName TEXT NOT NULL,
+	lastSeq BIGINT NOT NULL,
+	PRIMARY KEY(logName)
+);
+
+--Passengers waiting for a seat on a fully booked departure, served in wID
+--order; cancellations and promoters book the head (Waitlist.java)
+CREATE TABLE Waitlist(
+	wID BIGSERIAL NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	pID INTEGER NOT NULL,
+	requested TIMESTAMPTZ NOT NULL DEFAULT now(),
+	PRIMARY KEY(wID),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
+	FOREIGN KEY (pID) REFERENCES Passenger(pID),
+	UNIQUE(flightNum, departure, pID)
+);
+--the queue of a departure in order, for the head lookups
+CREATE INDEX waitlist_departure ON Waitlist USING BTREE (flightNum, departure, wID);
+
+--Schema changes applied to this database; a fresh database starts at the
+--latest version, older ones run the missing files of migrations/ in order
+CREATE TABLE SchemaMigration(
+	version INTEGER NOT NULL,
+	description TEXT NOT NULL,
+	applied TIMESTAMPTZ NOT NULL DEFAULT now(),
+	PRIMARY KEY(version)
+);
+INSERT INTO SchemaMigration (version, description) VALUES (1, 'review search, waitlist, key blocks, change notifications, access path indexes');
+
 --CREATE USER WITH PASSWORD TO CONNECT TO DATABASE--CHANGE username accordingly
 DROP USER IF EXISTS username;
 CREATE USER username WITH PASSWORD '';
@@ -97,6 +122,10 @@ GRANT ALL PRIVILEGES ON TABLE Passenger TO username;
 GRANT ALL PRIVILEGES ON TABLE Flight TO username;
 GRANT ALL PRIVILEGES ON TABLE Ratings TO username;
 GRANT ALL PRIVILEGES ON TABLE Booking TO username;
+GRANT ALL PRIVILEGES ON TABLE ReviewIngestCheckpoint TO username;
+GRANT ALL PRIVILEGES ON TABLE Waitlist TO username;
+GRANT USAGE ON SEQUENCE waitlist_wid_seq TO username;
+GRANT SELECT ON TABLE SchemaMigration TO username;
 ------------------------------------------------------------------------------------
 
 COPY Airline (
@@ -118,6 +147,8 @@ COPY Passenger (
 FROM 'passenger.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Passenger;
+--passenger lookups by name
+CREATE INDEX passenger_fullname ON Passenger USING BTREE (fullName) INCLUDE (pID);
 
 COPY Flight (
 	airId,
@@ -130,6 +161,10 @@ COPY Flight (
 FROM 'flights.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Flight;
+--route lookups: search, list and shortest flights read only the index
+CREATE INDEX flight_route ON Flight USING BTREE (origin, destination) INCLUDE (flightNum, plane, duration, airId, seats);
+--the airline join of the flight listings
+CREATE INDEX f_airIDi ON Flight USING BTREE (airId);
 
 COPY Ratings (
 	rID,
@@ -140,6 +175,10 @@ COPY Ratings (
 FROM 'ratings.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Ratings;
+--built after the load so COPY does not maintain it row by row
+CREATE INDEX ratings_comment_tsv ON Ratings USING GIN (comment_tsv);
+--per flight scores, for the highest rated routes
+CREATE INDEX ratings_flight ON Ratings USING BTREE (flightNum) INCLUDE (score);
 
 COPY Booking (
 	bookRef,
@@ -149,21 +188,33 @@ COPY Booking (
 FROM 'bookings.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Booking;
+--a passenger's bookings in departure order: itinerary pages (Itinerary.java)
+--and the has-flown check of reviews use it through its pID prefix
+CREATE INDEX booking_pid_departure ON Booking USING BTREE (pID, departure, bookRef);
+--seat counts and duplicate checks of a departure, answered from the index
+CREATE INDEX booking_flight_departure ON Booking USING BTREE (flightNum, departure) INCLUDE (pID);
+--the passenger's own rating of a flight, joined into the itinerary
+CREATE INDEX ratings_pid_flight ON Ratings USING BTREE (pID, flightNum);
 
 -- CREATE SEQUENCES
-CREATE SEQUENCE pID_seq; 
+-- pID, rID and bookRef advance in blocks of 1000: the client reserves a
+-- block with one nextval and hands out its keys from memory (KeyAllocator.java)
+CREATE SEQUENCE pID_seq INCREMENT BY 1000; 
 SELECT setval('pID_seq', (SELECT MAX(pID)+1 FROM Passenger), false); 
-CREATE SEQUENCE rID_seq;  
+CREATE SEQUENCE rID_seq INCREMENT BY 1000;  
 SELECT setval('rID_seq', (SELECT MAX(rID)+1 FROM Ratings), false); 
-CREATE SEQUENCE bookRef_seq START WITH 10000; 
+CREATE SEQUENCE bookRef_seq INCREMENT BY 1000 START WITH 10000; 
 CREATE SEQUENCE flightNum_seq START WITH 10000;
 
 -- CREATE TRIGGERS
+-- The triggers only assign a key when the insert does not carry one
 CREATE LANGUAGE plpgsql; 
 CREATE OR REPLACE FUNCTION next_id()
 RETURNS "trigger" AS 
 	'BEGIN 
-	new.pID = nextval(''pID_seq''); 
+	IF new.pID IS NULL THEN 
+		new.pID = nextval(''pID_seq''); 
+	END IF; 
 	Return new; 
 	END;'
 LANGUAGE 'plpgsql' VOLATILE; 
@@ -172,7 +223,9 @@ CREATE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION next_rid()
 RETURNS "trigger" AS 
 	'BEGIN 
-	new.rID = nextval(''rID_seq''); 
+	IF new.rID IS NULL THEN 
+		new.rID = nextval(''rID_seq''); 
+	END IF; 
 	Return new; 
 	END;'
 LANGUAGE 'plpgsql' VOLATILE; 
@@ -180,7 +233,101 @@ LANGUAGE 'plpgsql' VOLATILE;
 CREATE OR REPLACE FUNCTION next_bookRef()
 RETURNS "trigger" AS 
 	'BEGIN 
-	new.bookRef = nextval(''bookRef_seq''); 
+	IF new.bookRef IS NULL THEN 
+		new.bookRef = nextval(''bookRef_seq''); 
+	END IF; 
 	Return new; 
 	END;'
 LANGUAGE 'plpgsql' VOLATILE; 
+
+-- CHANGE NOTIFICATIONS
+-- Every row change of a cached table is published on the airbooking_changes
+-- channel as table|op|key so that other client instances can invalidate
+-- their caches (see InvalidationListener.java). Updates publish both the old
+-- and the new key.
+CREATE OR REPLACE FUNCTION notify_airline()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Airline|'' || left(TG_OP, 1) || ''|'' || OLD.airId); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Airline|'' || left(TG_OP, 1) || ''|'' || NEW.airId); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION notify_flight()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Flight|'' || left(TG_OP, 1) || ''|'' || trim(OLD.flightNum)); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Flight|'' || left(TG_OP, 1) || ''|'' || trim(NEW.flightNum)); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION notify_passenger()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Passenger|'' || left(TG_OP, 1) || ''|'' || OLD.pID || ''|'' || trim(OLD.fullName)); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Passenger|'' || left(TG_OP, 1) || ''|'' || NEW.pID || ''|'' || trim(NEW.fullName)); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+-- an updated booking is announced as the removal of the old row and the
+-- insertion of the new one, so membership indexes need no extra lookup
+CREATE OR REPLACE FUNCTION notify_booking()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Booking|D|'' || trim(OLD.flightNum) || ''|'' || to_char(OLD.departure, ''YYYY-MM-DD'') || ''|'' || OLD.pID); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Booking|I|'' || trim(NEW.flightNum) || ''|'' || to_char(NEW.departure, ''YYYY-MM-DD'') || ''|'' || NEW.pID); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION notify_rating()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Ratings|'' || left(TG_OP, 1) || ''|'' || OLD.rID); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Ratings|'' || left(TG_OP, 1) || ''|'' || NEW.rID); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE TRIGGER airline_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Airline FOR EACH ROW 
+EXECUTE PROCEDURE notify_airline(); 
+
+CREATE TRIGGER flight_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Flight FOR EACH ROW 
+EXECUTE PROCEDURE notify_flight(); 
+
+CREATE TRIGGER passenger_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Passenger FOR EACH ROW 
+EXECUTE PROCEDURE notify_passenger(); 
+
+CREATE TRIGGER booking_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Booking FOR EACH ROW 
+EXECUTE PROCEDURE notify_booking(); 
+
+CREATE TRIGGER rating_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Ratings FOR EACH ROW 
+EXECUTE PROCEDURE notify_rating();
@@ -0,0 +1,211 @@
+-- Migration 1: from the baseline schema to version 1
+--
+-- Brings a database created before SchemaMigration existed to version 1,
+-- the schema of create.sql: the review search column, the Waitlist and
+-- ReviewIngestCheckpoint tables, the key sequences handing out blocks, the
+-- change notifications and every index.
+-- Run it with psql outside a transaction block, naming the client user the
+-- new tables are granted to:
+--
+--   psql -v app_user=<client user> -f 001_upgrade_baseline_to_v1.sql
+--
+-- CREATE INDEX CONCURRENTLY
+-- builds without blocking bookings. Adding comment_tsv rewrites Ratings
+-- under an exclusive lock, so run the file while reviews are quiet. Every
+-- statement can be rerun, so a build that failed halfway is finished by
+-- running the file again; drop an index that a failed concurrent build
+-- left INVALID before doing so.
+
+\if :{?app_user}
+\else
+\echo 'Set the client user with -v app_user=<name>; nothing was changed.'
+\quit
+\endif
+
+CREATE TABLE IF NOT EXISTS SchemaMigration(
+	version INTEGER NOT NULL,
+	description TEXT NOT NULL,
+	applied TIMESTAMPTZ NOT NULL DEFAULT now(),
+	PRIMARY KEY(version)
+);
+
+--duplicates of the Passenger and Airline primary keys
+DROP INDEX CONCURRENTLY IF EXISTS pIDi;
+DROP INDEX CONCURRENTLY IF EXISTS airIDi;
+
+--searchable form of comment (ReviewSearch.java)
+ALTER TABLE Ratings ADD COLUMN IF NOT EXISTS comment_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', coalesce(comment, ''))) STORED;
+
+CREATE TABLE IF NOT EXISTS ReviewIngestCheckpoint(
+	logName TEXT NOT NULL,
+	lastSeq BIGINT NOT NULL,
+	PRIMARY KEY(logName)
+);
+
+CREATE TABLE IF NOT EXISTS Waitlist(
+	wID BIGSERIAL NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	pID INTEGER NOT NULL,
+	requested TIMESTAMPTZ NOT NULL DEFAULT now(),
+	PRIMARY KEY(wID),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
+	FOREIGN KEY (pID) REFERENCES Passenger(pID),
+	UNIQUE(flightNum, departure, pID)
+);
+
+--the client user, as create.sql grants it
+GRANT ALL PRIVILEGES ON TABLE ReviewIngestCheckpoint TO :"app_user";
+GRANT ALL PRIVILEGES ON TABLE Waitlist TO :"app_user";
+GRANT USAGE ON SEQUENCE waitlist_wid_seq TO :"app_user";
+GRANT SELECT ON TABLE SchemaMigration TO :"app_user";
+
+--KeyAllocator reserves a block of 1000 keys per nextval
+ALTER SEQUENCE pID_seq INCREMENT BY 1000;
+ALTER SEQUENCE rID_seq INCREMENT BY 1000;
+ALTER SEQUENCE bookRef_seq INCREMENT BY 1000;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS waitlist_departure ON Waitlist USING BTREE (flightNum, departure, wID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS f_airIDi ON Flight USING BTREE (airId);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS flight_route ON Flight USING BTREE (origin, destination) INCLUDE (flightNum, plane, duration, airId, seats);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS passenger_fullname ON Passenger USING BTREE (fullName) INCLUDE (pID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ratings_flight ON Ratings USING BTREE (flightNum) INCLUDE (score);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ratings_comment_tsv ON Ratings USING GIN (comment_tsv);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ratings_pid_flight ON Ratings USING BTREE (pID, flightNum);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS booking_flight_departure ON Booking USING BTREE (flightNum, departure) INCLUDE (pID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS booking_pid_departure ON Booking USING BTREE (pID, departure, bookRef);
+
+-- The triggers only assign a key when the insert does not carry one
+CREATE OR REPLACE FUNCTION next_id()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF new.pID IS NULL THEN 
+		new.pID = nextval(''pID_seq''); 
+	END IF; 
+	Return new; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION next_rid()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF new.rID IS NULL THEN 
+		new.rID = nextval(''rID_seq''); 
+	END IF; 
+	Return new; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION next_bookRef()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF new.bookRef IS NULL THEN 
+		new.bookRef = nextval(''bookRef_seq''); 
+	END IF; 
+	Return new; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+-- CHANGE NOTIFICATIONS
+-- Every row change of a cached table is published on the airbooking_changes
+-- channel as table|op|key so that other client instances can invalidate
+-- their caches (see InvalidationListener.java). Updates publish both the old
+-- and the new key.
+CREATE OR REPLACE FUNCTION notify_airline()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Airline|'' || left(TG_OP, 1) || ''|'' || OLD.airId); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Airline|'' || left(TG_OP, 1) || ''|'' || NEW.airId); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION notify_flight()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Flight|'' || left(TG_OP, 1) || ''|'' || trim(OLD.flightNum)); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Flight|'' || left(TG_OP, 1) || ''|'' || trim(NEW.flightNum)); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION notify_passenger()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Passenger|'' || left(TG_OP, 1) || ''|'' || OLD.pID || ''|'' || trim(OLD.fullName)); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Passenger|'' || left(TG_OP, 1) || ''|'' || NEW.pID || ''|'' || trim(NEW.fullName)); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+-- an updated booking is announced as the removal of the old row and the
+-- insertion of the new one, so membership indexes need no extra lookup
+CREATE OR REPLACE FUNCTION notify_booking()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Booking|D|'' || trim(OLD.flightNum) || ''|'' || to_char(OLD.departure, ''YYYY-MM-DD'') || ''|'' || OLD.pID); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Booking|I|'' || trim(NEW.flightNum) || ''|'' || to_char(NEW.departure, ''YYYY-MM-DD'') || ''|'' || NEW.pID); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+CREATE OR REPLACE FUNCTION notify_rating()
+RETURNS "trigger" AS 
+	'BEGIN 
+	IF TG_OP <> ''INSERT'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Ratings|'' || left(TG_OP, 1) || ''|'' || OLD.rID); 
+	END IF; 
+	IF TG_OP <> ''DELETE'' THEN 
+		PERFORM pg_notify(''airbooking_changes'', ''Ratings|'' || left(TG_OP, 1) || ''|'' || NEW.rID); 
+	END IF; 
+	Return NULL; 
+	END;'
+LANGUAGE 'plpgsql' VOLATILE; 
+
+DROP TRIGGER IF EXISTS airline_notify ON Airline;
+CREATE TRIGGER airline_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Airline FOR EACH ROW 
+EXECUTE PROCEDURE notify_airline(); 
+
+DROP TRIGGER IF EXISTS flight_notify ON Flight;
+CREATE TRIGGER flight_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Flight FOR EACH ROW 
+EXECUTE PROCEDURE notify_flight(); 
+
+DROP TRIGGER IF EXISTS passenger_notify ON Passenger;
+CREATE TRIGGER passenger_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Passenger FOR EACH ROW 
+EXECUTE PROCEDURE notify_passenger(); 
+
+DROP TRIGGER IF EXISTS booking_notify ON Booking;
+CREATE TRIGGER booking_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Booking FOR EACH ROW 
+EXECUTE PROCEDURE notify_booking(); 
+
+DROP TRIGGER IF EXISTS rating_notify ON Ratings;
+CREATE TRIGGER rating_notify AFTER INSERT OR UPDATE OR DELETE 
+ON Ratings FOR EACH ROW 
+EXECUTE PROCEDURE notify_rating();
+
+ANALYZE Flight;
+ANALYZE Passenger;
+ANALYZE Ratings;
+ANALYZE Booking;
+
+INSERT INTO SchemaMigration (version, description) VALUES (1, 'review search, waitlist, key blocks, change notifications, access path indexes') ON CONFLICT (version) DO NOTHING;
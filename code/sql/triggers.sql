@@ -6,7 +6,9 @@ CREATE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION next_id()
 RETURNS "trigger" AS 
 	'BEGIN 
-	new.pID = nextval(''pID_seq''); 
+	IF new.pID IS NULL THEN 
+		new.pID = nextval(''pID_seq''); 
+	END IF; 
 	Return new; 
 	END;'
 LANGUAGE 'plpgsql' VOLATILE; 
@@ -14,7 +16,9 @@ LANGUAGE 'plpgsql' VOLATILE;
 CREATE OR REPLACE FUNCTION next_bookRef()
 RETURNS "trigger" AS 
 	'BEGIN 
-	new.bookRef = nextval(''bookRef_seq''); 
+	IF new.bookRef IS NULL THEN 
+		new.bookRef = nextval(''bookRef_seq''); 
+	END IF; 
 	Return new; 
 	END;'
 LANGUAGE 'plpgsql' VOLATILE; 